@@ -46,12 +46,15 @@ java {
 application {
     // Define the main class for the application.
     mainClass = "fi.eonwe.wikilinks.Main"
+    // Segment warmup gives access advice through posix_madvise.
+    applicationDefaultJvmArgs = listOf("--enable-native-access=ALL-UNNAMED")
 }
 
 tasks.named<com.github.jengelman.gradle.plugins.shadow.tasks.ShadowJar>("shadowJar") {
     archiveFileName.set("wikilinks.jar")
     manifest {
         attributes["Main-Class"] = "fi.eonwe.wikilinks.Main"
+        attributes["Enable-Native-Access"] = "ALL-UNNAMED"
     }
 }
 
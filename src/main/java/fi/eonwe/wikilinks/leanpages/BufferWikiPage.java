@@ -44,21 +44,35 @@ public class BufferWikiPage implements LeanWikiPage<BufferWikiPage> {
 
     private static ByteBuffer bufferFrom(int id, int[] links, String title, boolean isRedirect) {
         byte[] stringBytes = title.getBytes(StandardCharsets.UTF_8);
-        final int linksSize = Integer.BYTES * links.length;
-        final int stringSize = Byte.BYTES * stringBytes.length;
-        ByteBuffer buffer = ByteBuffer.allocate(getHeaderSize() + linksSize + stringSize);
+        ByteBuffer buffer = ByteBuffer.allocate(sizeOf(links.length, stringBytes.length));
         buffer.order(ByteOrder.LITTLE_ENDIAN);
+        write(buffer, id, links, links.length, stringBytes, stringBytes.length, isRedirect);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return the bytes a page with this many links and title bytes takes
+     */
+    public static int sizeOf(int linkCount, int titleLength) {
+        return getHeaderSize() + Integer.BYTES * linkCount + Byte.BYTES * titleLength;
+    }
+
+    /**
+     * Writes a page at the position of a little-endian {@code buffer}, which is then advanced past it. The page
+     * can be read back with {@link #BufferWikiPage(ByteBuffer, int)} at the old position.
+     */
+    public static void write(ByteBuffer buffer, int id, int[] links, int linkCount, byte[] title, int titleLength, boolean isRedirect) {
+        final int linksSize = Integer.BYTES * linkCount;
         buffer.putInt(Ints.checkedCast(isRedirect ? -id : id)); // ID_OFFSET
-        buffer.putShort(Shorts.checkedCast(links.length)); // LINK_SIZE_OFFSET
+        buffer.putShort(Shorts.checkedCast(linkCount)); // LINK_SIZE_OFFSET
         buffer.putInt(getHeaderSize()); // LINKS_OFFSET
-        buffer.putShort(Shorts.checkedCast(stringBytes.length)); // TITLE_SIZE_OFFSET
+        buffer.putShort(Shorts.checkedCast(titleLength)); // TITLE_SIZE_OFFSET
         buffer.putInt(getHeaderSize() + linksSize); // TITLE_OFFSET
-        for (int link : links) {
-            buffer.putInt(link);
+        for (int i = 0; i < linkCount; i++) {
+            buffer.putInt(links[i]);
         }
-        buffer.put(stringBytes);
-        buffer.flip();
-        return buffer;
+        buffer.put(title, 0, titleLength);
     }
 
     public static BufferWikiPage createFrom(int id, int[] links, String title, boolean isRedirect) {
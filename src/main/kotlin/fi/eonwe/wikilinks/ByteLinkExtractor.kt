@@ -0,0 +1,565 @@
+package fi.eonwe.wikilinks
+
+import java.io.InputStream
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Reads pages and their links straight from the UTF-8 bytes of a dump, without an XML parser and without turning
+ * page text into strings. Only titles, redirect targets and distinct link targets become strings.
+ *
+ * Links and redirects are recognized the way bliki's `WikiPatternMatcher` does it: `[[target|label]]` on a single
+ * line, skipping targets with a `:`, and a case-sensitive `#REDIRECT [[target]]` anywhere in the text. With
+ * [stripSectionAnchors], `#section` parts are cut off link and redirect targets and redirect targets are normalized
+ * like links; without it the result matches bliki exactly. Pages are kept by their `<ns>` element, and pages in
+ * other namespaces are skipped to their end without decoding their text.
+ *
+ * An instance reuses its buffers and must not be shared between threads.
+ */
+class ByteLinkExtractor(private val stripSectionAnchors: Boolean = true) {
+
+    private val title = ByteString()
+    private val text = ByteString()
+    private val scratch = ByteString()
+    private val links = DistinctLinks()
+
+    fun parsePages(input: InputStream, consumer: (WikiProcessor.ParsedPage) -> Unit) {
+        val xml = XmlByteReader(input)
+        var pageTitle: String? = null
+        var namespace = 0
+        while (true) {
+            when (xml.nextTag()) {
+                Tag.END_OF_INPUT -> return
+                Tag.PAGE -> {
+                    pageTitle = null
+                    namespace = 0
+                }
+
+                Tag.TITLE -> if (!xml.selfClosing) {
+                    xml.readContent(title)
+                    pageTitle = title.decode(0, title.length)
+                }
+
+                Tag.NS -> if (!xml.selfClosing) {
+                    xml.readContent(scratch)
+                    namespace = scratch.parseInt() ?: 0
+                    // The rest of the page, its text included, is not looked at.
+                    if (namespace != 0) xml.skipPast(PAGE_END)
+                }
+
+                // Like bliki, a page is handed over at the end of each of its texts.
+                Tag.TEXT -> {
+                    if (xml.selfClosing) text.clear() else xml.readContent(text)
+                    if (namespace == 0 && pageTitle != null) {
+                        consumer(parsePage(pageTitle))
+                    }
+                }
+
+                Tag.OTHER -> Unit
+            }
+        }
+    }
+
+    private fun parsePage(pageTitle: String): WikiProcessor.ParsedPage {
+        val redirect = findRedirect()
+        if (redirect != null) {
+            return WikiProcessor.ParsedPage(pageTitle, isRedirect = true, redirectTarget = redirect, links = emptyList())
+        }
+        links.clear()
+        val t = text.bytes
+        val n = text.length
+        var i = 0
+        while (i + 1 < n) {
+            if (t[i] != OPEN || t[i + 1] != OPEN) {
+                i++
+                continue
+            }
+            val close = findClose(i + 2)
+            if (close < 0) {
+                i++
+                continue
+            }
+            addLink(i + 2, close)
+            i = close + 2
+        }
+        return WikiProcessor.ParsedPage(pageTitle, isRedirect = false, redirectTarget = null, links = links.toList())
+    }
+
+    /**
+     * `#REDIRECT\s+\[\[(.*?)\]\]`, tried at each `#REDIRECT` in turn.
+     */
+    private fun findRedirect(): String? {
+        val t = text.bytes
+        val n = text.length
+        var from = 0
+        while (true) {
+            val at = indexOf(t, n, REDIRECT, from)
+            if (at < 0) return null
+            from = at + 1
+            var i = at + REDIRECT.size
+            val afterKeyword = i
+            while (i < n && isRegexWhitespace(t[i])) i++
+            if (i == afterKeyword || i + 1 >= n || t[i] != OPEN || t[i + 1] != OPEN) continue
+            val close = findClose(i + 2)
+            if (close < 0) continue
+            if (!stripSectionAnchors) return text.decode(i + 2, close - i - 2)
+            val end = cutAt(i + 2, cutAt(i + 2, close, PIPE), HASH)
+            return normalize(i + 2, end)?.let { scratch.decode(0, scratch.length) }
+        }
+    }
+
+    /**
+     * Finds the `]]` closing a link whose content starts at [from], or -1 if a line ends first.
+     */
+    private fun findClose(from: Int): Int {
+        val t = text.bytes
+        val n = text.length
+        var j = from
+        while (j < n) {
+            val b = t[j]
+            if (b == CLOSE) {
+                if (j + 1 < n && t[j + 1] == CLOSE) return j
+            } else if (isLineTerminatorAt(t, j, n)) {
+                return -1
+            }
+            j++
+        }
+        return -1
+    }
+
+    private fun addLink(start: Int, end: Int) {
+        val t = text.bytes
+        var targetEnd = cutAt(start, end, PIPE)
+        if (targetEnd == start && end > start) {
+            // String.split drops trailing empty parts: "|label" yields an empty target, "||" yields nothing.
+            var onlyPipes = true
+            for (i in start until end) {
+                if (t[i] != PIPE) {
+                    onlyPipes = false
+                    break
+                }
+            }
+            if (onlyPipes) return
+        }
+        if (stripSectionAnchors) {
+            targetEnd = cutAt(start, targetEnd, HASH)
+            if (targetEnd == start) return
+        }
+        for (i in start until targetEnd) {
+            if (t[i] == COLON) return
+        }
+        if (normalize(start, targetEnd) != null) {
+            links.add(scratch)
+        }
+    }
+
+    private fun cutAt(start: Int, end: Int, separator: Byte): Int {
+        val t = text.bytes
+        for (i in start until end) {
+            if (t[i] == separator) return i
+        }
+        return end
+    }
+
+    /**
+     * Copies text bytes [start, end) to [scratch], upper-casing the first character the way `possiblyCapitalize`
+     * does: only characters in the basic multilingual plane that are not upper case already.
+     */
+    private fun normalize(start: Int, end: Int): ByteString? {
+        val t = text.bytes
+        scratch.clear()
+        if (start == end) return scratch
+        val first = t[start].toInt() and 0xFF
+        val (codePoint, width) = when {
+            first < 0x80 -> first to 1
+            (first and 0xE0) == 0xC0 && start + 1 < end -> ((first and 0x1F) shl 6 or (t[start + 1].toInt() and 0x3F)) to 2
+            (first and 0xF0) == 0xE0 && start + 2 < end ->
+                ((first and 0x0F) shl 12 or ((t[start + 1].toInt() and 0x3F) shl 6) or (t[start + 2].toInt() and 0x3F)) to 3
+            else -> -1 to 0
+        }
+        if (codePoint >= 0 && !Character.isUpperCase(codePoint.toChar())) {
+            scratch.appendCodePoint(Character.toUpperCase(codePoint.toChar()).code)
+            scratch.append(t, start + width, end)
+        } else {
+            scratch.append(t, start, end)
+        }
+        return scratch
+    }
+
+    private enum class Tag { PAGE, TITLE, NS, TEXT, OTHER, END_OF_INPUT }
+
+    /**
+     * Just enough of XML for dumps: element tags, character content and the predefined and numeric entities.
+     * Content never contains a raw `<`, so markup can be found without looking inside it.
+     */
+    private class XmlByteReader(private val input: InputStream) {
+        private var buffer = ByteArray(BUFFER_SIZE)
+        private var pos = 0
+        private var limit = 0
+        private var eof = false
+
+        /**
+         * Whether the tag last returned by [nextTag] closed itself with `/>`.
+         */
+        var selfClosing = false
+            private set
+
+        fun nextTag(): Tag {
+            while (true) {
+                if (!skipTo(LT)) return Tag.END_OF_INPUT
+                pos++
+                if (!ensure(MAX_NAME_LOOKAHEAD) && pos >= limit) return Tag.END_OF_INPUT
+                if (buffer[pos] == '/'.code.toByte() || buffer[pos] == '!'.code.toByte() || buffer[pos] == '?'.code.toByte()) {
+                    skipTag()
+                    continue
+                }
+                val tag = when {
+                    nameIs(PAGE) -> Tag.PAGE
+                    nameIs(TITLE) -> Tag.TITLE
+                    nameIs(NS) -> Tag.NS
+                    nameIs(TEXT) -> Tag.TEXT
+                    else -> Tag.OTHER
+                }
+                skipTag()
+                return tag
+            }
+        }
+
+        /**
+         * Reads character content up to the next tag into [out], decoding entities and line ends.
+         */
+        fun readContent(out: ByteString) {
+            out.clear()
+            while (true) {
+                if (pos >= limit && !fill()) return
+                var i = pos
+                while (i < limit) {
+                    val b = buffer[i]
+                    if (b == LT || b == AMP || b == CR) break
+                    i++
+                }
+                out.append(buffer, pos, i)
+                pos = i
+                if (pos >= limit) continue
+                when (buffer[pos]) {
+                    LT -> return
+                    CR -> {
+                        pos++
+                        out.append(LF)
+                        if (ensure(1) && buffer[pos] == LF) pos++
+                    }
+
+                    else -> readEntity(out)
+                }
+            }
+        }
+
+        private fun readEntity(out: ByteString) {
+            ensure(MAX_ENTITY_LENGTH)
+            var end = pos + 1
+            while (end < limit && end - pos < MAX_ENTITY_LENGTH && buffer[end] != SEMICOLON) end++
+            if (end >= limit || buffer[end] != SEMICOLON) {
+                out.append(AMP)
+                pos++
+                return
+            }
+            val name = String(buffer, pos + 1, end - pos - 1, Charsets.US_ASCII)
+            val codePoint = when {
+                name == "lt" -> '<'.code
+                name == "gt" -> '>'.code
+                name == "amp" -> '&'.code
+                name == "quot" -> '"'.code
+                name == "apos" -> '\''.code
+                name.startsWith("#x") -> name.substring(2).toIntOrNull(16)
+                name.startsWith("#") -> name.substring(1).toIntOrNull()
+                else -> null
+            }
+            if (codePoint == null || !Character.isValidCodePoint(codePoint)) {
+                out.append(AMP)
+                pos++
+                return
+            }
+            out.appendCodePoint(codePoint)
+            pos = end + 1
+        }
+
+        /**
+         * Moves past the next occurrence of [needle] without decoding anything before it.
+         */
+        fun skipPast(needle: ByteArray) {
+            while (true) {
+                var i = pos
+                val last = limit - needle.size
+                while (i <= last) {
+                    var j = 0
+                    while (j < needle.size && buffer[i + j] == needle[j]) j++
+                    if (j == needle.size) {
+                        pos = i + needle.size
+                        return
+                    }
+                    i++
+                }
+                pos = maxOf(pos, limit - (needle.size - 1))
+                if (!fill()) {
+                    pos = limit
+                    return
+                }
+            }
+        }
+
+        private fun nameIs(name: ByteArray): Boolean {
+            if (limit - pos <= name.size) return false
+            for (i in name.indices) {
+                if (buffer[pos + i] != name[i]) return false
+            }
+            val after = buffer[pos + name.size]
+            return after == GT || after == SLASH || after == SPACE || after == TAB || after == LF || after == CR
+        }
+
+        /**
+         * Moves past the `>` ending the current tag, minding quoted attribute values.
+         */
+        private fun skipTag() {
+            var quote: Byte = 0
+            var previous: Byte = 0
+            while (true) {
+                if (pos >= limit && !fill()) return
+                val b = buffer[pos++]
+                if (quote != 0.toByte()) {
+                    if (b == quote) quote = 0
+                } else if (b == QUOTE || b == APOSTROPHE) {
+                    quote = b
+                } else if (b == GT) {
+                    selfClosing = previous == SLASH
+                    return
+                }
+                previous = b
+            }
+        }
+
+        private fun skipTo(target: Byte): Boolean {
+            while (true) {
+                while (pos < limit) {
+                    if (buffer[pos] == target) return true
+                    pos++
+                }
+                if (!fill()) return false
+            }
+        }
+
+        /**
+         * Tries to have at least [count] bytes available from [pos].
+         */
+        private fun ensure(count: Int): Boolean {
+            while (limit - pos < count) {
+                if (!fill()) return false
+            }
+            return true
+        }
+
+        private fun fill(): Boolean {
+            if (eof) return false
+            if (pos > 0) {
+                buffer.copyInto(buffer, 0, pos, limit)
+                limit -= pos
+                pos = 0
+            }
+            if (limit == buffer.size) buffer = buffer.copyOf(buffer.size * 2)
+            val read = input.read(buffer, limit, buffer.size - limit)
+            if (read < 0) {
+                eof = true
+                return false
+            }
+            limit += read
+            return true
+        }
+    }
+
+    /**
+     * Growable byte buffer that is reused from page to page.
+     */
+    private class ByteString {
+        var bytes = ByteArray(256)
+            private set
+        var length = 0
+            private set
+
+        fun clear() {
+            length = 0
+        }
+
+        fun append(b: Byte) {
+            if (length == bytes.size) bytes = bytes.copyOf(bytes.size * 2)
+            bytes[length++] = b
+        }
+
+        fun append(source: ByteArray, from: Int, to: Int) {
+            val count = to - from
+            if (length + count > bytes.size) bytes = bytes.copyOf(maxOf(bytes.size * 2, length + count))
+            source.copyInto(bytes, length, from, to)
+            length += count
+        }
+
+        fun appendCodePoint(codePoint: Int) {
+            when {
+                codePoint < 0x80 -> append(codePoint.toByte())
+                codePoint < 0x800 -> {
+                    append((0xC0 or (codePoint shr 6)).toByte())
+                    append((0x80 or (codePoint and 0x3F)).toByte())
+                }
+
+                codePoint < 0x10000 -> {
+                    append((0xE0 or (codePoint shr 12)).toByte())
+                    append((0x80 or ((codePoint shr 6) and 0x3F)).toByte())
+                    append((0x80 or (codePoint and 0x3F)).toByte())
+                }
+
+                else -> {
+                    append((0xF0 or (codePoint shr 18)).toByte())
+                    append((0x80 or ((codePoint shr 12) and 0x3F)).toByte())
+                    append((0x80 or ((codePoint shr 6) and 0x3F)).toByte())
+                    append((0x80 or (codePoint and 0x3F)).toByte())
+                }
+            }
+        }
+
+        fun decode(from: Int, count: Int): String = String(bytes, from, count, UTF_8)
+
+        fun parseInt(): Int? {
+            var i = 0
+            while (i < length && isRegexWhitespace(bytes[i])) i++
+            var end = length
+            while (end > i && isRegexWhitespace(bytes[end - 1])) end--
+            return if (i < end) String(bytes, i, end - i, Charsets.US_ASCII).toIntOrNull() else null
+        }
+    }
+
+    /**
+     * The distinct links of one page in order of appearance. Link bytes are kept in one arena and hashed in an
+     * open-addressed table of arena offsets, so duplicates never become strings.
+     */
+    private class DistinctLinks {
+        private val arena = ByteString()
+        private var starts = IntArray(64)
+        private var ends = IntArray(64)
+        private var count = 0
+        private var slots = IntArray(128)
+
+        fun clear() {
+            arena.clear()
+            count = 0
+            slots.fill(0)
+        }
+
+        fun add(link: ByteString) {
+            if ((count + 1) * 2 > slots.size) grow()
+            val hash = hash(link.bytes, 0, link.length)
+            var slot = hash and (slots.size - 1)
+            while (true) {
+                val entry = slots[slot] - 1
+                if (entry < 0) break
+                if (equalsEntry(entry, link)) return
+                slot = (slot + 1) and (slots.size - 1)
+            }
+            if (count == starts.size) {
+                starts = starts.copyOf(count * 2)
+                ends = ends.copyOf(count * 2)
+            }
+            starts[count] = arena.length
+            arena.append(link.bytes, 0, link.length)
+            ends[count] = arena.length
+            slots[slot] = ++count
+        }
+
+        fun toList(): List<String> {
+            if (count == 0) return emptyList()
+            return List(count) { arena.decode(starts[it], ends[it] - starts[it]) }
+        }
+
+        private fun equalsEntry(entry: Int, link: ByteString): Boolean {
+            val start = starts[entry]
+            val length = ends[entry] - start
+            if (length != link.length) return false
+            val bytes = arena.bytes
+            for (i in 0 until length) {
+                if (bytes[start + i] != link.bytes[i]) return false
+            }
+            return true
+        }
+
+        private fun grow() {
+            slots = IntArray(slots.size * 2)
+            for (entry in 0 until count) {
+                var slot = hash(arena.bytes, starts[entry], ends[entry]) and (slots.size - 1)
+                while (slots[slot] != 0) slot = (slot + 1) and (slots.size - 1)
+                slots[slot] = entry + 1
+            }
+        }
+
+        private fun hash(bytes: ByteArray, from: Int, to: Int): Int {
+            var h = 1
+            for (i in from until to) h = 31 * h + bytes[i]
+            return h xor (h ushr 16)
+        }
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 1 shl 16
+        private const val MAX_NAME_LOOKAHEAD = 8
+        private const val MAX_ENTITY_LENGTH = 12
+
+        private const val OPEN = '['.code.toByte()
+        private const val CLOSE = ']'.code.toByte()
+        private const val PIPE = '|'.code.toByte()
+        private const val HASH = '#'.code.toByte()
+        private const val COLON = ':'.code.toByte()
+        private const val LT = '<'.code.toByte()
+        private const val GT = '>'.code.toByte()
+        private const val AMP = '&'.code.toByte()
+        private const val SEMICOLON = ';'.code.toByte()
+        private const val SLASH = '/'.code.toByte()
+        private const val QUOTE = '"'.code.toByte()
+        private const val APOSTROPHE = '\''.code.toByte()
+        private const val SPACE = ' '.code.toByte()
+        private const val TAB = '\t'.code.toByte()
+        private const val LF = '\n'.code.toByte()
+        private const val CR = '\r'.code.toByte()
+
+        private val REDIRECT = "#REDIRECT".toByteArray(UTF_8)
+        private val PAGE = "page".toByteArray(UTF_8)
+        private val TITLE = "title".toByteArray(UTF_8)
+        private val NS = "ns".toByteArray(UTF_8)
+        private val TEXT = "text".toByteArray(UTF_8)
+        private val PAGE_END = "</page>".toByteArray(UTF_8)
+
+        /**
+         * `\s` in a Java regex: ASCII whitespace only.
+         */
+        private fun isRegexWhitespace(b: Byte): Boolean {
+            return b == SPACE || b == TAB || b == LF || b == CR || b == 0x0B.toByte() || b == 0x0C.toByte()
+        }
+
+        /**
+         * Whether a line terminator as understood by `.` in a Java regex starts at [i]: `\n`, `\r`, U+0085, U+2028
+         * or U+2029.
+         */
+        private fun isLineTerminatorAt(t: ByteArray, i: Int, n: Int): Boolean {
+            val b = t[i]
+            if (b == LF || b == CR) return true
+            if (b == 0xC2.toByte()) return i + 1 < n && t[i + 1] == 0x85.toByte()
+            if (b == 0xE2.toByte()) {
+                return i + 2 < n && t[i + 1] == 0x80.toByte() && (t[i + 2] == 0xA8.toByte() || t[i + 2] == 0xA9.toByte())
+            }
+            return false
+        }
+
+        private fun indexOf(t: ByteArray, n: Int, needle: ByteArray, from: Int): Int {
+            outer@ for (i in from..n - needle.size) {
+                for (j in needle.indices) {
+                    if (t[i + j] != needle[j]) continue@outer
+                }
+                return i
+            }
+            return -1
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package fi.eonwe.wikilinks
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.lang.foreign.MemorySegment
+import java.lang.foreign.ValueLayout
+import java.nio.ByteOrder
+import java.util.BitSet
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import kotlin.ranges.OpenEndRange
+
+/**
+ * Bit offsets of the block and end-of-stream magics found in bzip2 data, in ascending order.
+ */
+class Bzip2Markers(val bitOffsets: LongArray, private val endOfStream: BitSet) {
+    val size: Int
+        get() = bitOffsets.size
+
+    fun isEndOfStream(index: Int): Boolean = endOfStream.get(index)
+}
+
+/**
+ * Finds bzip2 block boundaries. Every block starts with the 48-bit magic `0x314159265359` and the last block of a
+ * stream is followed by `0x177245385090`, but neither is byte-aligned, so all eight bit alignments are checked at
+ * every byte.
+ */
+object Bzip2BlockScanner {
+
+    const val BLOCK_MAGIC = 0x314159265359L
+    const val END_OF_STREAM_MAGIC = 0x177245385090L
+    private const val MAGIC_MASK = (1L shl 48) - 1
+    private const val DEFAULT_SLICE_SIZE = 16L shl 20
+
+    private val I8: ValueLayout.OfByte = ValueLayout.JAVA_BYTE
+    private val I64: ValueLayout.OfLong =
+        ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN) as ValueLayout.OfLong
+
+    /**
+     * For each value of the second byte of an 8-byte window, which (magic, alignment) pairs it allows: bit
+     * `magic * 8 + shift`. The second byte lies entirely inside a magic starting at any shift of the first byte,
+     * so this rules out almost every position with a single lookup.
+     */
+    private val candidatesBySecondByte = IntArray(256).also { table ->
+        listOf(BLOCK_MAGIC, END_OF_STREAM_MAGIC).forEachIndexed { magicIndex, magic ->
+            for (shift in 0..7) {
+                val secondByte = ((magic ushr (32 + shift)) and 0xFF).toInt()
+                table[secondByte] = table[secondByte] or (1 shl (magicIndex * 8 + shift))
+            }
+        }
+    }
+
+    fun scan(data: MemorySegment, parallelism: Int, sliceSize: Long = DEFAULT_SLICE_SIZE): Bzip2Markers {
+        require(sliceSize > 0) { "Slice size must be positive" }
+        val size = data.byteSize()
+        val sliceCount = ((size + sliceSize - 1) / sliceSize).toInt()
+        val encoded = if (parallelism <= 1 || sliceCount <= 1) {
+            scanSlice(data, 0, size)
+        } else {
+            Executors.newFixedThreadPool(minOf(parallelism, sliceCount)).use { executor ->
+                (0 until sliceCount)
+                    .map { slice ->
+                        val from = slice * sliceSize
+                        executor.submit(Callable { scanSlice(data, from, minOf(size, from + sliceSize)) })
+                    }
+                    .flatMap { it.get() }
+            }
+        }.toLongArray()
+        // Within one byte the two magics are not found in bit order.
+        encoded.sort()
+        val endOfStream = BitSet(encoded.size)
+        val offsets = LongArray(encoded.size) { i ->
+            if (encoded[i] and 1L != 0L) endOfStream.set(i)
+            encoded[i] ushr 1
+        }
+        return Bzip2Markers(offsets, endOfStream)
+    }
+
+    /**
+     * @return `bitOffset shl 1 | isEndOfStream` for every magic starting in the bytes [from, to)
+     */
+    private fun scanSlice(data: MemorySegment, from: Long, to: Long): List<Long> {
+        val size = data.byteSize()
+        val found = mutableListOf<Long>()
+        var pos = from
+        while (pos < to) {
+            var candidates = if (pos + 1 < size) candidatesBySecondByte[data.get(I8, pos + 1).toInt() and 0xFF] else 0
+            if (candidates != 0) {
+                val window = windowAt(data, pos, size)
+                while (candidates != 0) {
+                    val bit = Integer.numberOfTrailingZeros(candidates)
+                    val shift = bit and 7
+                    val magic = if (bit < 8) BLOCK_MAGIC else END_OF_STREAM_MAGIC
+                    if ((window ushr (16 - shift)) and MAGIC_MASK == magic) {
+                        found.add(((pos * 8 + shift) shl 1) or (if (bit < 8) 0L else 1L))
+                    }
+                    candidates = candidates and (candidates - 1)
+                }
+            }
+            pos++
+        }
+        return found
+    }
+
+    private fun windowAt(data: MemorySegment, pos: Long, size: Long): Long {
+        if (pos + Long.SIZE_BYTES <= size) return data.get(I64, pos)
+        var window = 0L
+        for (i in 0 until Long.SIZE_BYTES) {
+            val b = if (pos + i < size) data.get(I8, pos + i).toLong() and 0xFF else 0L
+            window = (window shl 8) or b
+        }
+        return window
+    }
+}
+
+/**
+ * The blocks of a bzip2 file as separately decompressible parts. Ranges are in bits, from a block magic to the
+ * next marker. Each block is decoded by wrapping it into a one-block stream of its own: the stream header, the
+ * block, and an end-of-stream marker whose combined CRC is the block CRC, since that is what the combined CRC of a
+ * single block works out to.
+ */
+internal class Bzip2BlockParts internal constructor(
+    private val data: MemorySegment,
+    private val markers: Bzip2Markers,
+    private val level: Int
+) : Bzip2Parts {
+
+    override val partName: String = "block"
+
+    override val ranges: List<OpenEndRange<Long>> = buildList {
+        for (i in 0 until markers.size) {
+            if (!markers.isEndOfStream(i)) {
+                add(markers.bitOffsets[i] until boundaryAfter(i))
+            }
+        }
+    }
+
+    override fun open(range: OpenEndRange<Long>): InputStream {
+        return BZip2CompressorInputStream(ByteArrayInputStream(standaloneStream(range)), false)
+    }
+
+    override fun compressedBytes(range: OpenEndRange<Long>): Long = (range.endExclusive - range.start) / 8
+
+    override fun widen(range: OpenEndRange<Long>): OpenEndRange<Long>? {
+        val start = markers.bitOffsets.binarySearch(range.start)
+        val end = markers.bitOffsets.binarySearch(range.endExclusive)
+        if (start < 0 || end < 0 || end - start > MAX_WIDENING) return null
+        return range.start until boundaryAfter(end)
+    }
+
+    private fun boundaryAfter(markerIndex: Int): Long {
+        return if (markerIndex + 1 < markers.size) markers.bitOffsets[markerIndex + 1] else data.byteSize() * 8
+    }
+
+    private fun standaloneStream(range: OpenEndRange<Long>): ByteArray {
+        val blockBits = range.endExclusive - range.start
+        val out = BitWriter(ByteArray((4 + (blockBits + 48 + 32 + 7) / 8).toInt()))
+        out.write(STREAM_HEADER, 24)
+        out.write(('0'.code + level).toLong(), 8)
+        var pos = range.start
+        while (pos + 32 <= range.endExclusive) {
+            out.write(readBits(pos, 32), 32)
+            pos += 32
+        }
+        val rest = (range.endExclusive - pos).toInt()
+        if (rest > 0) out.write(readBits(pos, rest), rest)
+        out.write(Bzip2BlockScanner.END_OF_STREAM_MAGIC, 48)
+        out.write(readBits(range.start + 48, 32), 32)
+        return out.finish()
+    }
+
+    private fun readBits(bitOffset: Long, count: Int): Long {
+        val first = bitOffset ushr 3
+        val skip = (bitOffset and 7).toInt()
+        val byteCount = (skip + count + 7) / 8
+        var value = 0L
+        for (i in 0 until byteCount) {
+            val index = first + i
+            val b = if (index < data.byteSize()) data.get(ValueLayout.JAVA_BYTE, index).toLong() and 0xFF else 0L
+            value = (value shl 8) or b
+        }
+        return (value ushr (byteCount * 8 - skip - count)) and ((1L shl count) - 1)
+    }
+
+    private class BitWriter(private val bytes: ByteArray) {
+        private var position = 0
+        private var pending = 0L
+        private var pendingBits = 0
+
+        fun write(value: Long, bits: Int) {
+            pending = (pending shl bits) or value
+            pendingBits += bits
+            while (pendingBits >= 8) {
+                bytes[position++] = (pending ushr (pendingBits - 8)).toByte()
+                pendingBits -= 8
+            }
+        }
+
+        fun finish(): ByteArray {
+            if (pendingBits > 0) {
+                bytes[position++] = (pending shl (8 - pendingBits)).toByte()
+                pendingBits = 0
+            }
+            return if (position == bytes.size) bytes else bytes.copyOf(position)
+        }
+    }
+
+    companion object {
+        private const val STREAM_HEADER = 0x425A68L // BZh
+        /**
+         * How many markers a block may be widened over. A false match inside a block needs one; more than a few
+         * means the data is broken rather than unlucky.
+         */
+        private const val MAX_WIDENING = 4
+
+        /**
+         * @return the blocks of [data], or null when it does not start like a bzip2 stream
+         */
+        fun of(data: MemorySegment, parallelism: Int): Bzip2BlockParts? {
+            if (data.byteSize() < 4) return null
+            val header = ByteArray(4) { data.get(ValueLayout.JAVA_BYTE, it.toLong()) }
+            if (header[0] != 'B'.code.toByte() || header[1] != 'Z'.code.toByte() || header[2] != 'h'.code.toByte()) {
+                return null
+            }
+            val level = header[3] - '0'.code.toByte()
+            if (level !in 1..9) return null
+            val markers = Bzip2BlockScanner.scan(data, parallelism)
+            if (markers.size == 0 || markers.bitOffsets[0] != 32L || markers.isEndOfStream(0)) return null
+            return Bzip2BlockParts(data, markers, level)
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package fi.eonwe.wikilinks
+
+import java.lang.foreign.MemorySegment
+import java.lang.foreign.ValueLayout
+import java.nio.ByteOrder
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import kotlin.math.max
+import kotlin.ranges.OpenEndRange
+
+/**
+ * Finds where concatenated bzip2 streams start, so that multistream dumps can be decompressed in parallel even
+ * without their index file.
+ *
+ * A stream start is the 4-byte file header `BZh1`..`BZh9` directly followed by the 48-bit magic of its first block.
+ * Blocks are not byte-aligned anywhere else in a stream, so this signature only shows up at stream starts (barring
+ * an 80-bit coincidence in compressed data).
+ */
+object Bzip2StreamScanner {
+
+    private const val DEFAULT_SLICE_SIZE = 16L shl 20
+    private const val SIGNATURE_LENGTH = 10
+    private const val REPEATED_B = 0x4242424242424242L
+    private const val LOW_BITS = 0x0101010101010101L
+    private const val HIGH_BITS = -0x7F7F7F7F7F7F7F80L // 0x8080808080808080
+
+    private val I8: ValueLayout.OfByte = ValueLayout.JAVA_BYTE
+    private val I64: ValueLayout.OfLong =
+        ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN) as ValueLayout.OfLong
+
+    /**
+     * @return ranges from each stream start to the next one, the last one ending at the end of [data]
+     */
+    fun substreamRanges(data: MemorySegment, parallelism: Int): List<OpenEndRange<Long>> {
+        val starts = streamStarts(data, parallelism)
+        return List(starts.size) { i ->
+            val end = if (i + 1 < starts.size) starts[i + 1] else data.byteSize()
+            starts[i] until end
+        }
+    }
+
+    /**
+     * Scans [data] in slices on [parallelism] threads. A signature may start in one slice and end in the next one;
+     * it is reported by the slice it starts in.
+     */
+    fun streamStarts(data: MemorySegment, parallelism: Int, sliceSize: Long = DEFAULT_SLICE_SIZE): LongArray {
+        require(sliceSize > 0) { "Slice size must be positive" }
+        val size = data.byteSize()
+        if (size < SIGNATURE_LENGTH) return LongArray(0)
+        val sliceCount = ((size + sliceSize - 1) / sliceSize).toInt()
+        if (parallelism <= 1 || sliceCount == 1) {
+            return scanSlice(data, 0, size).toLongArray()
+        }
+        val perSlice = Executors.newFixedThreadPool(max(1, minOf(parallelism, sliceCount))).use { executor ->
+            (0 until sliceCount)
+                .map { slice ->
+                    val from = slice * sliceSize
+                    val to = minOf(size, from + sliceSize)
+                    executor.submit(Callable { scanSlice(data, from, to) })
+                }
+                .map { it.get() }
+        }
+        return perSlice.flatten().toLongArray()
+    }
+
+    private fun scanSlice(data: MemorySegment, from: Long, to: Long): List<Long> {
+        val size = data.byteSize()
+        val starts = mutableListOf<Long>()
+        var pos = from
+        // Look for 'B' eight bytes at a time; only those positions get the full signature check.
+        while (pos + Long.SIZE_BYTES <= to) {
+            val word = data.get(I64, pos) xor REPEATED_B
+            var candidates = (word - LOW_BITS) and word.inv() and HIGH_BITS
+            while (candidates != 0L) {
+                val candidate = pos + (java.lang.Long.numberOfTrailingZeros(candidates) ushr 3)
+                if (isStreamStart(data, candidate, size)) {
+                    starts.add(candidate)
+                }
+                candidates = candidates and (candidates - 1)
+            }
+            pos += Long.SIZE_BYTES
+        }
+        while (pos < to) {
+            if (isStreamStart(data, pos, size)) {
+                starts.add(pos)
+            }
+            pos++
+        }
+        return starts
+    }
+
+    private fun isStreamStart(data: MemorySegment, pos: Long, size: Long): Boolean {
+        if (pos + SIGNATURE_LENGTH > size) return false
+        return data.get(I8, pos) == 0x42.toByte() && // B
+            data.get(I8, pos + 1) == 0x5A.toByte() && // Z
+            data.get(I8, pos + 2) == 0x68.toByte() && // h
+            data.get(I8, pos + 3) in '1'.code.toByte()..'9'.code.toByte() &&
+            data.get(I8, pos + 4) == 0x31.toByte() &&
+            data.get(I8, pos + 5) == 0x41.toByte() &&
+            data.get(I8, pos + 6) == 0x59.toByte() &&
+            data.get(I8, pos + 7) == 0x26.toByte() &&
+            data.get(I8, pos + 8) == 0x53.toByte() &&
+            data.get(I8, pos + 9) == 0x59.toByte()
+    }
+}
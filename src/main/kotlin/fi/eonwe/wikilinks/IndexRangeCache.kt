@@ -0,0 +1,156 @@
+package fi.eonwe.wikilinks
+
+import java.lang.foreign.Arena
+import java.lang.foreign.MemorySegment
+import java.lang.foreign.ValueLayout
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import kotlin.ranges.OpenEndRange
+
+/**
+ * Keeps the substream offsets resolved from a multistream index in a binary file next to the index, so that later
+ * runs map them instead of decompressing and parsing the whole index again.
+ *
+ * The file is a header followed by the sorted start offsets as little-endian longs. The header records the size
+ * and modification time of both the dump and the index; a cache that does not match them is ignored.
+ */
+object IndexRangeCache {
+
+    const val MAGIC: Long = 0x3130584449474B57L // "WKGIDX01"
+    const val VERSION: Int = 1
+    const val HEADER_SIZE_BYTES: Int = 56
+
+    private const val HEADER_MAGIC_OFFSET: Long = 0
+    private const val HEADER_VERSION_OFFSET: Long = 8
+    private const val HEADER_DUMP_SIZE_OFFSET: Long = 16
+    private const val HEADER_DUMP_MTIME_OFFSET: Long = 24
+    private const val HEADER_INDEX_SIZE_OFFSET: Long = 32
+    private const val HEADER_INDEX_MTIME_OFFSET: Long = 40
+    private const val HEADER_COUNT_OFFSET: Long = 48
+
+    private val I32: ValueLayout.OfInt =
+        ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN) as ValueLayout.OfInt
+    private val I64: ValueLayout.OfLong =
+        ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN) as ValueLayout.OfLong
+
+    fun cachePathFor(indexPath: Path): Path = indexPath.resolveSibling(indexPath.fileName.toString() + ".offsets")
+
+    /**
+     * @return the cached ranges, mapped from the cache file, or null when there is no cache matching both files
+     */
+    fun load(indexPath: Path, dumpPath: Path): List<OpenEndRange<Long>>? {
+        val cachePath = cachePathFor(indexPath)
+        if (!Files.isRegularFile(cachePath)) return null
+        val identity = FileIdentity.of(indexPath, dumpPath)
+        FileChannel.open(cachePath, StandardOpenOption.READ).use { channel ->
+            val size = channel.size()
+            if (size < HEADER_SIZE_BYTES) return null
+            // Auto arena: the mapping lives as long as the returned list is reachable.
+            val data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, Arena.ofAuto())
+            if (data.get(I64, HEADER_MAGIC_OFFSET) != MAGIC || data.get(I32, HEADER_VERSION_OFFSET) != VERSION) {
+                return null
+            }
+            if (FileIdentity.read(data) != identity) return null
+            val count = data.get(I64, HEADER_COUNT_OFFSET)
+            if (count !in 1..Int.MAX_VALUE.toLong() || size != HEADER_SIZE_BYTES + count * Long.SIZE_BYTES) return null
+            val offsets = data.asSlice(HEADER_SIZE_BYTES.toLong())
+            if (offsets.get(I64, 0) != 0L || offsets.get(I64, (count - 1) * Long.SIZE_BYTES) >= identity.dumpSize) {
+                return null
+            }
+            return MappedRanges(offsets, count.toInt(), identity.dumpSize)
+        }
+    }
+
+    /**
+     * Writes [ranges] for later runs. The file is written next to the index and moved into place, so a concurrent
+     * or interrupted run never sees half of it.
+     */
+    fun store(indexPath: Path, dumpPath: Path, ranges: List<OpenEndRange<Long>>) {
+        if (ranges.isEmpty()) return
+        val identity = FileIdentity.of(indexPath, dumpPath)
+        val cachePath = cachePathFor(indexPath)
+        val temp = Files.createTempFile(cachePath.toAbsolutePath().parent, cachePath.fileName.toString(), ".tmp")
+        try {
+            FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).use { channel ->
+                val header = ByteBuffer.allocate(HEADER_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+                header.putLong(MAGIC)
+                header.putInt(VERSION)
+                header.putInt(0)
+                header.putLong(identity.dumpSize)
+                header.putLong(identity.dumpModified)
+                header.putLong(identity.indexSize)
+                header.putLong(identity.indexModified)
+                header.putLong(ranges.size.toLong())
+                header.flip()
+                writeFully(channel, header)
+
+                val body = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN)
+                for (range in ranges) {
+                    if (!body.hasRemaining()) {
+                        body.flip()
+                        writeFully(channel, body)
+                        body.clear()
+                    }
+                    body.putLong(range.start)
+                }
+                body.flip()
+                writeFully(channel, body)
+            }
+            Files.move(temp, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+    }
+
+    private fun writeFully(channel: FileChannel, buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
+        }
+    }
+
+    private data class FileIdentity(
+        val dumpSize: Long,
+        val dumpModified: Long,
+        val indexSize: Long,
+        val indexModified: Long
+    ) {
+        companion object {
+            fun of(indexPath: Path, dumpPath: Path): FileIdentity {
+                return FileIdentity(
+                    dumpSize = Files.size(dumpPath),
+                    dumpModified = Files.getLastModifiedTime(dumpPath).toMillis(),
+                    indexSize = Files.size(indexPath),
+                    indexModified = Files.getLastModifiedTime(indexPath).toMillis()
+                )
+            }
+
+            fun read(header: MemorySegment): FileIdentity {
+                return FileIdentity(
+                    dumpSize = header.get(I64, HEADER_DUMP_SIZE_OFFSET),
+                    dumpModified = header.get(I64, HEADER_DUMP_MTIME_OFFSET),
+                    indexSize = header.get(I64, HEADER_INDEX_SIZE_OFFSET),
+                    indexModified = header.get(I64, HEADER_INDEX_MTIME_OFFSET)
+                )
+            }
+        }
+    }
+
+    private class MappedRanges(
+        private val offsets: MemorySegment,
+        override val size: Int,
+        private val compressedSize: Long
+    ) : AbstractList<OpenEndRange<Long>>() {
+        override fun get(index: Int): OpenEndRange<Long> {
+            if (index !in 0 until size) throw IndexOutOfBoundsException("Index $index not in [0, $size)")
+            val start = offsets.get(I64, index.toLong() * Long.SIZE_BYTES)
+            val end = if (index + 1 < size) offsets.get(I64, (index + 1).toLong() * Long.SIZE_BYTES) else compressedSize
+            return start until end
+        }
+    }
+}
+
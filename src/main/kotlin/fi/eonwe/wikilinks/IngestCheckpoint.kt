@@ -0,0 +1,268 @@
+package fi.eonwe.wikilinks
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Saves the pages parsed from each multistream substream, so that a conversion that dies can resume after the
+ * last substream on disk instead of starting over.
+ *
+ * The file is a header identifying the dump followed by one record per completed substream, in substream order.
+ * A record stands on its own: it holds a table of the titles its pages use and the pages with their titles,
+ * redirect targets and link targets as indexes into that table, so nothing is kept in memory between records.
+ * Replaying the records gives the parsed pages back in their order; page ids are handed out and links resolved
+ * again as they are indexed, which gives the same ids and links as the first read. Records carry a CRC, and a record cut short by a crash is dropped.
+ *
+ * Records are written as substreams complete and forced to disk every [intervalMillis].
+ */
+internal class IngestCheckpoint private constructor(
+    private val path: Path,
+    private val identity: Identity,
+    /**
+     * Number of substreams, from the first one on, whose pages are in the checkpoint.
+     */
+    val completedSubstreams: Int,
+    private val validLength: Long,
+    private val intervalMillis: Long
+) : AutoCloseable {
+    private var channel: FileChannel? = null
+    private var output: DataOutputStream? = null
+    private var lastSync = System.nanoTime()
+
+    /**
+     * The saved pages followed by the pages of [live], which must start at substream [completedSubstreams].
+     * Substreams read from [live] are added to the checkpoint as they are handed out.
+     */
+    fun chunks(live: Iterator<List<WikiProcessor.ParsedPage>>): Iterator<List<WikiProcessor.ParsedPage>> {
+        return iterator {
+            if (completedSubstreams > 0) {
+                DataInputStream(BufferedInputStream(Files.newInputStream(path))).use { input ->
+                    input.skipNBytes(HEADER_SIZE_BYTES.toLong())
+                    repeat(completedSubstreams) {
+                        val length = input.readInt()
+                        input.readInt()
+                        val payload = DataInputStream(input.readNBytes(length).inputStream())
+                        yield(readPages(payload))
+                    }
+                }
+            }
+            var index = completedSubstreams
+            for (chunk in live) {
+                append(index++, chunk)
+                yield(chunk)
+            }
+            sync()
+        }
+    }
+
+    override fun close() {
+        output?.let {
+            it.flush()
+            channel!!.force(false)
+            it.close()
+        }
+        output = null
+        channel = null
+    }
+
+    private fun readPages(payload: DataInputStream): List<WikiProcessor.ParsedPage> {
+        payload.readInt()
+        val titles = List(payload.readInt()) {
+            val bytes = ByteArray(payload.readInt())
+            payload.readFully(bytes)
+            String(bytes, UTF_8)
+        }
+        return List(payload.readInt()) {
+            val title = titles[payload.readInt()]
+            when (payload.readByte()) {
+                KIND_REDIRECT -> WikiProcessor.ParsedPage(title, true, titles[payload.readInt()], emptyList())
+                KIND_REDIRECT_WITHOUT_TARGET -> WikiProcessor.ParsedPage(title, true, null, emptyList())
+                else -> WikiProcessor.ParsedPage(title, false, null, List(payload.readInt()) { titles[payload.readInt()] })
+            }
+        }
+    }
+
+    private fun append(substreamIndex: Int, pages: List<WikiProcessor.ParsedPage>) {
+        // Ids point into this record's own title table, which is dropped once the record has been written.
+        val titleIds = HashMap<String, Int>()
+        val titles = ArrayList<String>()
+        fun idOf(title: String): Int {
+            return titleIds.getOrPut(title) {
+                titles.add(title)
+                titles.size - 1
+            }
+        }
+
+        val body = ByteArrayOutputStream()
+        DataOutputStream(body).use { out ->
+            for (page in pages) {
+                out.writeInt(idOf(page.title))
+                when {
+                    page.isRedirect && page.redirectTarget != null -> {
+                        out.writeByte(KIND_REDIRECT.toInt())
+                        out.writeInt(idOf(page.redirectTarget))
+                    }
+
+                    page.isRedirect -> out.writeByte(KIND_REDIRECT_WITHOUT_TARGET.toInt())
+                    else -> {
+                        out.writeByte(KIND_ARTICLE.toInt())
+                        out.writeInt(page.links.size)
+                        page.links.forEach { out.writeInt(idOf(it)) }
+                    }
+                }
+            }
+        }
+        val payload = ByteArrayOutputStream(body.size() + 64)
+        DataOutputStream(payload).use { out ->
+            out.writeInt(substreamIndex)
+            out.writeInt(titles.size)
+            for (title in titles) {
+                val bytes = title.toByteArray(UTF_8)
+                out.writeInt(bytes.size)
+                out.write(bytes)
+            }
+            out.writeInt(pages.size)
+            body.writeTo(out)
+        }
+        val crc = CRC32()
+        crc.update(payload.toByteArray())
+
+        val out = output ?: openForAppend()
+        out.writeInt(payload.size())
+        out.writeInt(crc.value.toInt())
+        payload.writeTo(out)
+        if (System.nanoTime() - lastSync >= intervalMillis * 1_000_000L) {
+            sync()
+        }
+    }
+
+    private fun sync() {
+        val out = output ?: return
+        out.flush()
+        channel!!.force(false)
+        lastSync = System.nanoTime()
+    }
+
+    private fun openForAppend(): DataOutputStream {
+        val opened = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+        if (completedSubstreams == 0) {
+            opened.truncate(0)
+            val header = ByteArrayOutputStream(HEADER_SIZE_BYTES)
+            DataOutputStream(header).use { out ->
+                out.writeLong(MAGIC)
+                out.writeInt(VERSION)
+                identity.write(out)
+            }
+            val buffer = ByteBuffer.wrap(header.toByteArray())
+            while (buffer.hasRemaining()) {
+                opened.write(buffer)
+            }
+        } else {
+            opened.truncate(validLength)
+            opened.position(validLength)
+        }
+        channel = opened
+        return DataOutputStream(BufferedOutputStream(Channels.newOutputStream(opened), 1 shl 16)).also { output = it }
+    }
+
+    private data class Identity(
+        val dumpSize: Long,
+        val dumpModified: Long,
+        val substreamCount: Int,
+        val extractor: Int
+    ) {
+        fun write(out: DataOutputStream) {
+            out.writeLong(dumpSize)
+            out.writeLong(dumpModified)
+            out.writeInt(substreamCount)
+            out.writeInt(extractor)
+        }
+
+        companion object {
+            fun read(input: DataInputStream): Identity {
+                return Identity(input.readLong(), input.readLong(), input.readInt(), input.readInt())
+            }
+        }
+    }
+
+    companion object {
+        const val MAGIC: Long = 0x574B47434B505431L // "WKGCKPT1"
+        const val VERSION: Int = 2
+        private const val HEADER_SIZE_BYTES = 36
+
+        private const val KIND_ARTICLE: Byte = 0
+        private const val KIND_REDIRECT: Byte = 1
+        private const val KIND_REDIRECT_WITHOUT_TARGET: Byte = 2
+
+        /**
+         * Opens the checkpoint at [path] for reading [dumpPath] split into [substreamCount] substreams. A missing
+         * checkpoint, or one written for another dump or with another link extractor, starts from scratch.
+         */
+        fun open(
+            path: Path,
+            dumpPath: Path,
+            substreamCount: Int,
+            extractor: WikiProcessor.LinkExtractor,
+            intervalMillis: Long
+        ): IngestCheckpoint {
+            val identity = Identity(
+                dumpSize = Files.size(dumpPath),
+                dumpModified = Files.getLastModifiedTime(dumpPath).toMillis(),
+                substreamCount = substreamCount,
+                extractor = extractor.ordinal
+            )
+            var completed = 0
+            var validLength = 0L
+            if (Files.isRegularFile(path)) {
+                try {
+                    DataInputStream(BufferedInputStream(Files.newInputStream(path))).use { input ->
+                        if (input.readLong() == MAGIC && input.readInt() == VERSION && Identity.read(input) == identity) {
+                            validLength = HEADER_SIZE_BYTES.toLong()
+                            while (completed < substreamCount) {
+                                val record = readRecord(input) ?: break
+                                if (DataInputStream(record.inputStream()).readInt() != completed) break
+                                completed++
+                                validLength += 8 + record.size
+                            }
+                        }
+                    }
+                } catch (e: IOException) {
+                    System.err.printf("Could not read checkpoint %s (%s), starting over%n", path, e.message)
+                    completed = 0
+                }
+            }
+            return IngestCheckpoint(path, identity, completed, validLength, intervalMillis)
+        }
+
+        /**
+         * @return the payload of the next record, or null if the file ends or the record is damaged
+         */
+        private fun readRecord(input: DataInputStream): ByteArray? {
+            return try {
+                val length = input.readInt()
+                val crc = input.readInt()
+                if (length < 0) return null
+                val payload = input.readNBytes(length)
+                if (payload.size < length) return null
+                val actual = CRC32()
+                actual.update(payload)
+                if (actual.value.toInt() != crc) null else payload
+            } catch (_: EOFException) {
+                null
+            }
+        }
+    }
+}
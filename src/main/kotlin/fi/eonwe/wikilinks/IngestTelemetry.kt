@@ -0,0 +1,317 @@
+package fi.eonwe.wikilinks
+
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.io.PrintStream
+import java.lang.management.ManagementFactory
+import java.util.Locale
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Progress counters for a conversion. Readers, decompression workers and the page indexer update them as they go;
+ * [startReporting] prints throughput for each interval, and [toJson] sums up the whole run for scripts.
+ *
+ * Work is split into named stages, which may be nested. Each stage records its duration and the heap high-water
+ * mark reached during it, the largest heap use sampled every [HEAP_SAMPLE_MILLIS] while it ran.
+ */
+class IngestTelemetry {
+    data class Stage(val name: String, val millis: Long, val heapPeakBytes: Long)
+
+    data class Snapshot(
+        val nanos: Long,
+        val compressedBytes: Long,
+        val decompressedBytes: Long,
+        val pages: Long,
+        /** Links as parsed, before they are resolved to pages. */
+        val links: Long,
+        /** Links resolved to the pages they lead to. */
+        val resolvedLinks: Long,
+        val titles: Int,
+        val buffersInUse: Int,
+        val bufferCapacity: Int,
+        val workerBusyNanos: Long,
+        val workerIdleNanos: Long,
+        val workerBlockedNanos: Long,
+        val heapUsedBytes: Long
+    )
+
+    private class BufferGauge(val capacity: Int, val inUse: () -> Int)
+
+    private class OpenStage {
+        val heapPeak = AtomicLong()
+    }
+
+    private val compressedBytes = LongAdder()
+    private val decompressedBytes = LongAdder()
+    private val pages = LongAdder()
+    private val links = LongAdder()
+    private val resolvedLinks = LongAdder()
+    private val workerBusyNanos = LongAdder()
+    private val workerIdleNanos = LongAdder()
+    private val workerBlockedNanos = LongAdder()
+    private val maxBuffersInUse = AtomicInteger()
+    private val stages = CopyOnWriteArrayList<Stage>()
+    private val openStages = CopyOnWriteArrayList<OpenStage>()
+
+    /** Samples heap use while stages are open; guarded by [openStages]. */
+    private var heapSampler: Thread? = null
+
+    @Volatile
+    private var titles = 0
+
+    @Volatile
+    private var buffers: BufferGauge? = null
+
+    @Volatile
+    private var currentStage: String? = null
+
+    fun addCompressedBytes(count: Long) = compressedBytes.add(count)
+
+    fun addDecompressedBytes(count: Long) = decompressedBytes.add(count)
+
+    /**
+     * Records an indexed page with [linkCount] links as parsed, before they are resolved to pages, and the title
+     * dictionary at [titleCount].
+     */
+    fun addPage(linkCount: Int, titleCount: Int) {
+        pages.increment()
+        links.add(linkCount.toLong())
+        titles = titleCount
+    }
+
+    /**
+     * Records [count] links resolved to the pages they lead to.
+     */
+    fun addResolvedLinks(count: Int) = resolvedLinks.add(count.toLong())
+
+    /**
+     * Sets the number of distinct titles once it is known exactly, after the titles given to [addPage].
+     */
+    fun setTitleCount(titleCount: Int) {
+        titles = titleCount
+    }
+
+    /**
+     * Time a worker spent decompressing or parsing.
+     */
+    fun addWorkerBusy(nanos: Long) = workerBusyNanos.add(nanos)
+
+    /**
+     * Time a worker spent waiting for something to work on.
+     */
+    fun addWorkerIdle(nanos: Long) = workerIdleNanos.add(nanos)
+
+    /**
+     * Time a worker had output but spent waiting for room to put it.
+     */
+    fun addWorkerBlocked(nanos: Long) = workerBlockedNanos.add(nanos)
+
+    /**
+     * Reports buffer occupancy from [inUse] until another gauge replaces it.
+     */
+    fun watchBuffers(capacity: Int, inUse: () -> Int) {
+        buffers = BufferGauge(capacity, inUse)
+    }
+
+    fun countCompressed(input: InputStream): InputStream = CountingInputStream(input, compressedBytes)
+
+    fun countDecompressed(input: InputStream): InputStream = CountingInputStream(input, decompressedBytes)
+
+    fun <T> stage(name: String, block: () -> T): T {
+        val open = OpenStage()
+        synchronized(openStages) {
+            openStages.add(open)
+            if (heapSampler == null) heapSampler = startHeapSampler()
+        }
+        sampleHeap()
+        val previous = currentStage
+        currentStage = name
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            val millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            sampleHeap()
+            openStages.remove(open)
+            stages.add(Stage(name, millis, open.heapPeak.get()))
+            currentStage = previous
+        }
+    }
+
+    /**
+     * Raises the high-water mark of every open stage to the heap in use now.
+     */
+    private fun sampleHeap() {
+        val used = ManagementFactory.getMemoryMXBean().heapMemoryUsage.used
+        openStages.forEach { it.heapPeak.accumulateAndGet(used, ::maxOf) }
+    }
+
+    private fun startHeapSampler(): Thread {
+        return Thread.ofPlatform().daemon().name("ingest-heap-sampler").start {
+            while (true) {
+                Thread.sleep(HEAP_SAMPLE_MILLIS)
+                synchronized(openStages) {
+                    if (openStages.isEmpty()) {
+                        heapSampler = null
+                        return@start
+                    }
+                }
+                sampleHeap()
+            }
+        }
+    }
+
+    val completedStages: List<Stage> get() = stages.toList()
+
+    fun snapshot(): Snapshot {
+        val gauge = buffers
+        val inUse = gauge?.inUse?.invoke() ?: 0
+        maxBuffersInUse.accumulateAndGet(inUse, ::maxOf)
+        return Snapshot(
+            nanos = System.nanoTime(),
+            compressedBytes = compressedBytes.sum(),
+            decompressedBytes = decompressedBytes.sum(),
+            pages = pages.sum(),
+            links = links.sum(),
+            resolvedLinks = resolvedLinks.sum(),
+            titles = titles,
+            buffersInUse = inUse,
+            bufferCapacity = gauge?.capacity ?: 0,
+            workerBusyNanos = workerBusyNanos.sum(),
+            workerIdleNanos = workerIdleNanos.sum(),
+            workerBlockedNanos = workerBlockedNanos.sum(),
+            heapUsedBytes = ManagementFactory.getMemoryMXBean().heapMemoryUsage.used
+        )
+    }
+
+    /**
+     * Prints a line of throughput figures to [out] every [intervalMillis] until the returned handle is closed.
+     */
+    fun startReporting(intervalMillis: Long, out: PrintStream): AutoCloseable {
+        require(intervalMillis > 0) { "Reporting interval must be positive: $intervalMillis" }
+        val start = snapshot()
+        val reporter = Thread.ofPlatform().daemon().name("ingest-telemetry").start {
+            var previous = start
+            try {
+                while (true) {
+                    Thread.sleep(intervalMillis)
+                    val current = snapshot()
+                    out.println(formatInterval(start, previous, current))
+                    previous = current
+                }
+            } catch (_: InterruptedException) {
+                return@start
+            }
+        }
+        return AutoCloseable {
+            reporter.interrupt()
+            reporter.join()
+        }
+    }
+
+    private fun formatInterval(start: Snapshot, previous: Snapshot, current: Snapshot): String {
+        val seconds = (current.nanos - previous.nanos) / 1e9
+        val elapsed = TimeUnit.NANOSECONDS.toSeconds(current.nanos - start.nanos)
+        val busy = current.workerBusyNanos - previous.workerBusyNanos
+        val idle = current.workerIdleNanos - previous.workerIdleNanos
+        val blocked = current.workerBlockedNanos - previous.workerBlockedNanos
+        val workerTotal = (busy + idle + blocked).coerceAtLeast(1)
+        return String.format(
+            Locale.ROOT,
+            "[%s %d:%02d:%02d] compressed %.1f MB/s, decompressed %.1f MB/s, %.0f pages/s, %.0f parsed links/s, %.0f resolved links/s, " +
+                "buffers %d/%d, workers %d%% busy %d%% blocked, %d titles, heap %d MiB",
+            currentStage ?: "idle",
+            elapsed / 3600, elapsed / 60 % 60, elapsed % 60,
+            (current.compressedBytes - previous.compressedBytes) / seconds / 1e6,
+            (current.decompressedBytes - previous.decompressedBytes) / seconds / 1e6,
+            (current.pages - previous.pages) / seconds,
+            (current.links - previous.links) / seconds,
+            (current.resolvedLinks - previous.resolvedLinks) / seconds,
+            current.buffersInUse, current.bufferCapacity,
+            busy * 100 / workerTotal, blocked * 100 / workerTotal,
+            current.titles,
+            current.heapUsedBytes / MIB
+        )
+    }
+
+    /**
+     * Totals of the run so far. Rates are per second of the [READ_STAGE] stages, when there are any, except for
+     * resolved links, which are per second of the [RESOLVE_STAGE] stages.
+     */
+    fun toJson(): String {
+        val totals = snapshot()
+        val readMillis = stages.filter { it.name == READ_STAGE }.sumOf { it.millis }
+        val readSeconds = readMillis.coerceAtLeast(1) / 1000.0
+        val resolveMillis = stages.filter { it.name == RESOLVE_STAGE }.sumOf { it.millis }
+        val stageJson = stages.joinToString(",", "[", "]") {
+            """{"name":"${it.name}","millis":${it.millis},"heapPeakBytes":${it.heapPeakBytes}}"""
+        }
+        return buildString {
+            append('{')
+            append("\"compressedBytes\":").append(totals.compressedBytes).append(',')
+            append("\"decompressedBytes\":").append(totals.decompressedBytes).append(',')
+            append("\"pages\":").append(totals.pages).append(',')
+            append("\"parsedLinks\":").append(totals.links).append(',')
+            append("\"resolvedLinks\":").append(totals.resolvedLinks).append(',')
+            append("\"titles\":").append(totals.titles).append(',')
+            append("\"readMillis\":").append(readMillis).append(',')
+            append("\"resolveMillis\":").append(resolveMillis).append(',')
+            append("\"compressedMBPerSecond\":").append(rate(totals.compressedBytes / 1e6, readSeconds)).append(',')
+            append("\"decompressedMBPerSecond\":").append(rate(totals.decompressedBytes / 1e6, readSeconds)).append(',')
+            append("\"pagesPerSecond\":").append(rate(totals.pages.toDouble(), readSeconds)).append(',')
+            append("\"parsedLinksPerSecond\":").append(rate(totals.links.toDouble(), readSeconds)).append(',')
+            append("\"resolvedLinksPerSecond\":")
+                .append(rate(totals.resolvedLinks.toDouble(), resolveMillis.coerceAtLeast(1) / 1000.0)).append(',')
+            append("\"maxBuffersInUse\":").append(maxBuffersInUse.get()).append(',')
+            append("\"bufferCapacity\":").append(totals.bufferCapacity).append(',')
+            append("\"workerBusyMillis\":").append(TimeUnit.NANOSECONDS.toMillis(totals.workerBusyNanos)).append(',')
+            append("\"workerIdleMillis\":").append(TimeUnit.NANOSECONDS.toMillis(totals.workerIdleNanos)).append(',')
+            append("\"workerBlockedMillis\":").append(TimeUnit.NANOSECONDS.toMillis(totals.workerBlockedNanos)).append(',')
+            append("\"stages\":").append(stageJson)
+            append('}')
+        }
+    }
+
+    fun printStages(out: PrintStream) {
+        stages.forEach {
+            out.printf("Stage %s took %d ms, heap high-water %d MiB%n", it.name, it.millis, it.heapPeakBytes / MIB)
+        }
+    }
+
+    private fun rate(amount: Double, seconds: Double): String = String.format(Locale.ROOT, "%.2f", amount / seconds)
+
+    private class CountingInputStream(input: InputStream, private val counter: LongAdder) : FilterInputStream(input) {
+        override fun read(): Int {
+            val b = super.read()
+            if (b >= 0) counter.increment()
+            return b
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            val read = `in`.read(b, off, len)
+            if (read > 0) counter.add(read.toLong())
+            return read
+        }
+
+        override fun skip(n: Long): Long {
+            val skipped = super.skip(n)
+            counter.add(skipped)
+            return skipped
+        }
+    }
+
+    companion object {
+        const val READ_STAGE = "read"
+        const val RESOLVE_STAGE = "resolve"
+        const val SORT_STAGE = "sort"
+        const val WRITE_STAGE = "write"
+
+        /** How often heap use is sampled for the high-water marks of open stages. */
+        const val HEAP_SAMPLE_MILLIS = 10L
+        private const val MIB = 1_048_576L
+    }
+}
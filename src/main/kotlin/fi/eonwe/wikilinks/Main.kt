@@ -8,6 +8,7 @@ import com.github.ajalt.clikt.parameters.options.default
 import com.github.ajalt.clikt.parameters.options.flag
 import com.github.ajalt.clikt.parameters.options.option
 import com.github.ajalt.clikt.parameters.types.file
+import com.github.ajalt.clikt.parameters.types.int
 import fi.eonwe.wikilinks.leanpages.BufferWikiPage
 import fi.eonwe.wikilinks.leanpages.BufferWikiSerialization
 import fi.eonwe.wikilinks.segmentgraph.BufferPagesGraphDataSource
@@ -15,6 +16,7 @@ import fi.eonwe.wikilinks.segmentgraph.GraphDataSource
 import fi.eonwe.wikilinks.segmentgraph.SegmentStoreGraphDataSource
 import fi.eonwe.wikilinks.segmentgraph.SegmentWikiGraphSerialization
 import fi.eonwe.wikilinks.segmentgraph.SegmentWikiRoutes
+import fi.eonwe.wikilinks.segmentgraph.WarmupReport
 import fi.eonwe.wikilinks.utils.Helpers
 import java.io.BufferedInputStream
 import java.io.BufferedReader
@@ -68,8 +70,64 @@ object Main {
             .default("segment")
         private val indexInput by option("--index", help = "Input multistream index file (.txt.bz2)")
             .file(canBeFile = true, canBeDir = false, mustExist = true, mustBeReadable = true, mustBeWritable = false)
-        private val noIndex by option("--no-index", help = "Disable index usage for .bz2 XML input")
+        private val noIndex by option("--no-index", help = "Read .bz2 XML input on one thread, without an index or scanning for streams and blocks")
             .flag(default = false)
+        private val parallelParse by option(
+            "--parallel-parse",
+            help = "Parse multistream substreams in parallel instead of through a single XML parser"
+        ).flag(default = false)
+        private val decompressionBudgetMb by option(
+            "--decompression-budget-mb",
+            help = "Decompressed data held ahead of the XML parser, in MiB"
+        ).int()
+        private val linkExtractorName by option(
+            "--link-extractor",
+            help = "Link extraction: bliki | bytes (byte-level scan that also drops #section anchors)"
+        ).default("bliki")
+        private val progressSeconds by option(
+            "--progress-seconds",
+            help = "Print throughput, buffer and heap figures this often while converting; 0 turns them off"
+        ).int().default(10)
+        private val checkpointFile by option(
+            "--checkpoint",
+            help = "Save reading progress of a multistream dump to this file and resume from it if it exists"
+        ).file(canBeFile = true, canBeDir = false, mustBeWritable = false)
+        private val checkpointSeconds by option(
+            "--checkpoint-seconds",
+            help = "How often the checkpoint is forced to disk"
+        ).int().default(60)
+        private val spillDir by option(
+            "--spill-dir",
+            help = "Directory for temporary link files; XML input is then read with its links on disk instead of the heap"
+        ).file(canBeFile = false, canBeDir = true, mustExist = true, mustBeWritable = true)
+        private val spillSortMb by option(
+            "--spill-sort-mb",
+            help = "Memory for sorting links before they are written to a run file when reading or writing, in MiB"
+        ).int().default(256)
+        private val collapseRedirects by option(
+            "--collapse-redirects",
+            help = "Link past redirects to the pages they lead to and keep redirect titles only as aliases in segment output"
+        ).flag(default = false)
+        private val compressEdges by option(
+            "--compress-edges",
+            help = "Store sorted links as varint gaps in segment output (format version 2), for a smaller file"
+        ).flag(default = false)
+        private val denseLayout by option(
+            "--dense-layout",
+            help = "Number pages densely and keep their metadata in offset arrays in segment output (format version 3)"
+        ).flag(default = false)
+        private val frontCodeTitles by option(
+            "--front-code-titles",
+            help = "Store titles once, sorted and prefix compressed, in segment output written with --dense-layout"
+        ).flag(default = false)
+        private val bfsOrder by option(
+            "--bfs-order",
+            help = "Number pages in breadth-first order from the most linked page in segment output written with --dense-layout"
+        ).flag(default = false)
+        private val statsJson by option(
+            "--stats-json",
+            help = "Write a JSON summary of throughput and per-stage heap use to this file"
+        ).file(canBeFile = true, canBeDir = false, mustBeWritable = false)
 
         override fun run() {
             val input = inputFile ?: throw ProgramResult(GENERAL_ERROR)
@@ -85,6 +143,7 @@ object Main {
 
             val inputFormat = parseInputFormat(inputFormatName)
             val outputFormat = parseOutputFormat(outputFormatName)
+            val linkExtractor = parseLinkExtractor(linkExtractorName)
             if ((indexInput != null || noIndex) && inputFormat != InputFormat.XML) {
                 System.err.println("--index and --no-index are only valid with --input-format xml")
                 throw ProgramResult(GENERAL_ERROR)
@@ -93,10 +152,94 @@ object Main {
                 System.err.println("--index and --no-index are only valid for .bz2 XML input")
                 throw ProgramResult(GENERAL_ERROR)
             }
+            if (checkpointFile != null && (inputFormat != InputFormat.XML || !input.name.endsWith(".bz2") || noIndex)) {
+                System.err.println("--checkpoint is only valid for .bz2 XML input read with an index")
+                throw ProgramResult(GENERAL_ERROR)
+            }
+            if (collapseRedirects && inputFormat != InputFormat.XML) {
+                System.err.println("--collapse-redirects is only valid with --input-format xml")
+                throw ProgramResult(GENERAL_ERROR)
+            }
+            if (collapseRedirects && outputFormat != OutputFormat.SEGMENT) {
+                System.err.println("--collapse-redirects is only valid with --output-format segment")
+                throw ProgramResult(GENERAL_ERROR)
+            }
+            if (compressEdges && outputFormat != OutputFormat.SEGMENT) {
+                System.err.println("--compress-edges is only valid with --output-format segment")
+                throw ProgramResult(GENERAL_ERROR)
+            }
+            if (denseLayout && outputFormat != OutputFormat.SEGMENT) {
+                System.err.println("--dense-layout is only valid with --output-format segment")
+                throw ProgramResult(GENERAL_ERROR)
+            }
+            if (frontCodeTitles && !denseLayout) {
+                System.err.println("--front-code-titles is only valid with --dense-layout")
+                throw ProgramResult(GENERAL_ERROR)
+            }
+            if (bfsOrder && !denseLayout) {
+                System.err.println("--bfs-order is only valid with --dense-layout")
+                throw ProgramResult(GENERAL_ERROR)
+            }
+            if (spillSortMb <= 0) {
+                System.err.println("--spill-sort-mb must be positive")
+                throw ProgramResult(GENERAL_ERROR)
+            }
+            if (decompressionBudgetMb?.let { it <= 0 } == true) {
+                System.err.println("--decompression-budget-mb must be positive")
+                throw ProgramResult(GENERAL_ERROR)
+            }
+            if (checkpointSeconds <= 0) {
+                System.err.println("--checkpoint-seconds must be positive")
+                throw ProgramResult(GENERAL_ERROR)
+            }
 
-            val source = createInputSource(input, inputFormat, indexInput, noIndex)
-            source.use {
-                writeConvertedGraph(output, outputFormat, it)
+            val telemetry = IngestTelemetry()
+            val defaults = WikiReader.defaultProcessingConfig
+            val config = defaults.copy(
+                parseSubstreams = parallelParse,
+                linkExtractor = linkExtractor,
+                maxBytesWaiting = decompressionBudgetMb?.let { it.toULong() * ProcessingConfig.MIB } ?: defaults.maxBytesWaiting,
+                telemetry = telemetry,
+                checkpoint = checkpointFile?.toPath(),
+                checkpointIntervalMillis = checkpointSeconds * 1000L,
+                spillDirectory = spillDir?.toPath(),
+                spillSortBytes = spillSortMb * ProcessingConfig.MIB.toLong(),
+                collapseRedirects = collapseRedirects
+            )
+            // Without --spill-dir the writer spills next to the output, where there is room for the file anyway.
+            val segmentWriter = SegmentWikiGraphSerialization(
+                config.spillDirectory ?: output.absoluteFile.parentFile.toPath(),
+                config.spillSortBytes,
+                config.parallelism.toInt(),
+                compressEdges,
+                denseLayout,
+                frontCodeTitles,
+                bfsOrder
+            )
+            val reporting = if (progressSeconds > 0) {
+                telemetry.startReporting(progressSeconds * 1000L, System.out)
+            } else {
+                AutoCloseable {}
+            }
+            reporting.use {
+                if (inputFormat == InputFormat.XML && outputFormat == OutputFormat.SEGMENT && config.spillDirectory == null) {
+                    // Written as part of the resolve stage, straight from the title dictionary and links read.
+                    convertXmlToSegment(input, output, indexInput, noIndex, config, segmentWriter)
+                } else {
+                    val source = createInputSource(input, inputFormat, indexInput, noIndex, config)
+                    source.use {
+                        telemetry.stage(IngestTelemetry.WRITE_STAGE) { writeConvertedGraph(output, outputFormat, it, segmentWriter) }
+                    }
+                }
+            }
+            checkpointFile?.delete()
+            telemetry.printStages(System.out)
+            statsJson?.let { file ->
+                try {
+                    file.writeText(telemetry.toJson() + "\n")
+                } catch (e: IOException) {
+                    reportErrorAndExit(e)
+                }
             }
         }
     }
@@ -107,6 +250,10 @@ object Main {
         private val inputFormatName by option("--input-format", help = "Input format: buffer | segment")
             .default("segment")
         private val benchmarkMode by option("--benchmark", help = "Run benchmark mode").flag(default = false)
+        private val warmup by option(
+            "--warmup",
+            help = "Load a segment graph into memory and run routes until their latency settles before taking queries"
+        ).flag(default = false)
 
         override fun run() {
             val input = inputFile ?: throw ProgramResult(GENERAL_ERROR)
@@ -124,7 +271,9 @@ object Main {
 
                 InputFormat.SEGMENT -> {
                     SegmentWikiGraphSerialization.open(input.toPath()).use { store ->
-                        runQueryModeForSegment(SegmentWikiRoutes(store), benchmarkMode)
+                        val routes = SegmentWikiRoutes(store)
+                        if (warmup) printWarmupReport(routes.warmup())
+                        runQueryModeForSegment(routes, benchmarkMode)
                     }
                 }
             }
@@ -154,17 +303,34 @@ object Main {
         }
     }
 
+    private fun parseLinkExtractor(name: String): WikiProcessor.LinkExtractor {
+        return when (name.lowercase()) {
+            "bliki" -> WikiProcessor.LinkExtractor.BLIKI
+            "bytes" -> WikiProcessor.LinkExtractor.BYTES
+            else -> {
+                System.err.println("Unknown link extractor '$name'. Expected: bliki, bytes")
+                throw ProgramResult(GENERAL_ERROR)
+            }
+        }
+    }
+
     private fun createInputSource(
         input: File,
         inputFormat: InputFormat,
         indexInput: File?,
-        noIndex: Boolean
+        noIndex: Boolean,
+        config: ProcessingConfig
     ): GraphDataSource {
         return when (inputFormat) {
             InputFormat.XML -> {
-                val pages = readXml(input, input.name.endsWith(".bz2"), indexInput, noIndex)
-                pages.sort()
-                BufferPagesGraphDataSource(pages)
+                if (config.spillDirectory != null) {
+                    return readXmlGraph(input, input.name.endsWith(".bz2"), indexInput, noIndex, config)
+                }
+                val result = readXml(input, input.name.endsWith(".bz2"), indexInput, noIndex, config)
+                val pages = result.pages
+                val telemetry = config.telemetry
+                if (telemetry != null) telemetry.stage(IngestTelemetry.SORT_STAGE) { pages.sort() } else pages.sort()
+                BufferPagesGraphDataSource(pages, result.aliases)
             }
 
             InputFormat.BUFFER -> BufferPagesGraphDataSource(readBufferSerialized(input))
@@ -172,7 +338,12 @@ object Main {
         }
     }
 
-    private fun writeConvertedGraph(output: File, format: OutputFormat, source: GraphDataSource) {
+    private fun writeConvertedGraph(
+        output: File,
+        format: OutputFormat,
+        source: GraphDataSource,
+        segmentWriter: SegmentWikiGraphSerialization
+    ) {
         val writeStart = System.currentTimeMillis()
         System.out.printf("Starting to write output to %s (%s)%n", output, format.name.lowercase())
         when (format) {
@@ -190,7 +361,7 @@ object Main {
 
             OutputFormat.SEGMENT -> {
                 FileChannel.open(output.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).use { fc ->
-                    SegmentWikiGraphSerialization().serialize(source, fc)
+                    segmentWriter.serialize(source, fc)
                 }
             }
         }
@@ -209,6 +380,23 @@ object Main {
         }
     }
 
+    private fun printWarmupReport(report: WarmupReport) {
+        System.out.printf(
+            "Loaded %d MiB in %d ms, advice taken for %s%n",
+            report.prefaultedBytes / (1024 * 1024),
+            report.prefaultMillis,
+            report.advised.filterValues { it }.keys.joinToString { it.name.lowercase() }.ifEmpty { "no sections" }
+        )
+        System.out.printf(
+            "Ran %d warmup routes in %d ms, 90th percentile %d us%s%n",
+            report.queries,
+            report.queryMillis,
+            report.tailLatencyMicros,
+            if (report.latencyStable) "" else " (still changing)"
+        )
+        println("Ready")
+    }
+
     private fun runQueryModeForSegment(routes: SegmentWikiRoutes, benchmarkMode: Boolean) {
         if (benchmarkMode) {
             runSegmentBenchmarks(routes, DEFAULT_BENCHMARK_MEASUREMENTS)
@@ -221,40 +409,101 @@ object Main {
         }
     }
 
-    private fun printReadStats(result: WikiProcessor.ReadPagesResult) {
+    private fun printReadStats(before: WikiProcessor.GraphStatistics, after: WikiProcessor.GraphStatistics) {
         println("Before redirect cleanup:")
-        WikiProcessor.printStatistics(result.beforeRedirectCleanup)
+        WikiProcessor.printStatistics(before)
         println("After redirect cleanup:")
-        WikiProcessor.printStatistics(result.afterRedirectCleanup)
+        WikiProcessor.printStatistics(after)
+    }
+
+    private fun indexSelection(indexInput: File?, noIndex: Boolean): WikiReader.IndexSelection {
+        return when {
+            noIndex -> WikiReader.IndexSelection.DISABLED
+            indexInput != null -> WikiReader.IndexSelection.EXPLICIT
+            else -> WikiReader.IndexSelection.AUTO
+        }
     }
 
     private fun readXml(
         inputFile: File,
         isBzipStream: Boolean,
         indexInput: File?,
-        noIndex: Boolean
-    ): MutableList<BufferWikiPage> {
+        noIndex: Boolean,
+        config: ProcessingConfig
+    ): WikiProcessor.ReadPagesResult {
         try {
             val result = if (isBzipStream) {
-                val indexSelection = when {
-                    noIndex -> WikiReader.IndexSelection.DISABLED
-                    indexInput != null -> WikiReader.IndexSelection.EXPLICIT
-                    else -> WikiReader.IndexSelection.AUTO
-                }
                 WikiReader.readPagesWithStats(
                     source = FileCompressedSource(inputFile.toPath()),
-                    indexSelection = indexSelection,
+                    config = config,
+                    indexSelection = indexSelection(indexInput, noIndex),
                     explicitIndexPath = indexInput?.toPath()
                 )
             } else {
                 inputFile.inputStream().use { fis ->
-                    BufferedInputStream(fis).use { bis ->
-                        WikiProcessor.readPagesWithStats(bis)
-                    }
+                    BufferedInputStream(fis).use { bis -> WikiProcessor.readPagesWithStats(bis, config) }
+                }
+            }
+            printReadStats(result.beforeRedirectCleanup, result.afterRedirectCleanup)
+            return result
+        } catch (e: IOException) {
+            reportErrorAndExit(e)
+        }
+    }
+
+    private fun readXmlGraph(
+        inputFile: File,
+        isBzipStream: Boolean,
+        indexInput: File?,
+        noIndex: Boolean,
+        config: ProcessingConfig
+    ): GraphDataSource {
+        try {
+            val result = if (isBzipStream) {
+                WikiReader.readGraph(
+                    source = FileCompressedSource(inputFile.toPath()),
+                    config = config,
+                    indexSelection = indexSelection(indexInput, noIndex),
+                    explicitIndexPath = indexInput?.toPath()
+                )
+            } else {
+                inputFile.inputStream().use { fis ->
+                    BufferedInputStream(fis).use { bis -> WikiProcessor.readGraph(bis, config) }
+                }
+            }
+            printReadStats(result.beforeRedirectCleanup, result.afterRedirectCleanup)
+            return result.graph
+        } catch (e: IOException) {
+            reportErrorAndExit(e)
+        }
+    }
+
+    private fun convertXmlToSegment(
+        inputFile: File,
+        output: File,
+        indexInput: File?,
+        noIndex: Boolean,
+        config: ProcessingConfig,
+        segmentWriter: SegmentWikiGraphSerialization
+    ) {
+        val write = { source: GraphDataSource ->
+            writeConvertedGraph(output, OutputFormat.SEGMENT, source, segmentWriter)
+        }
+        try {
+            val result = if (inputFile.name.endsWith(".bz2")) {
+                WikiReader.writeGraph(
+                    source = FileCompressedSource(inputFile.toPath()),
+                    config = config,
+                    indexSelection = indexSelection(indexInput, noIndex),
+                    explicitIndexPath = indexInput?.toPath(),
+                    write = write
+                )
+            } else {
+                inputFile.inputStream().use { fis ->
+                    BufferedInputStream(fis).use { bis -> WikiProcessor.writeGraph(bis, config, write) }
                 }
             }
-            printReadStats(result)
-            return result.pages
+            printReadStats(result.beforeRedirectCleanup, result.afterRedirectCleanup)
         } catch (e: IOException) {
             reportErrorAndExit(e)
         }
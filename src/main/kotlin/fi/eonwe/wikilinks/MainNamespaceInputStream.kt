@@ -0,0 +1,170 @@
+package fi.eonwe.wikilinks
+
+import java.io.InputStream
+
+/**
+ * Drops `<page>` elements outside the main namespace from dump XML before it reaches an XML parser. Each page is
+ * held back only until its `<ns>` element; other namespaces are skipped up to `</page>` by looking for the closing
+ * tag in the raw bytes, so their revision text is never decoded or buffered.
+ *
+ * Pages without an `<ns>` close to their start are passed through, as are the siteinfo and other markup.
+ */
+internal class MainNamespaceInputStream(private val input: InputStream) : InputStream() {
+    private var buffer = ByteArray(BUFFER_SIZE)
+    private var pos = 0
+    private var limit = 0
+    private var eof = false
+
+    /**
+     * Bytes from [pos] that have been checked and can be handed out as they are.
+     */
+    private var passing = 0
+
+    override fun read(): Int {
+        val one = ByteArray(1)
+        return if (read(one, 0, 1) < 0) -1 else one[0].toInt() and 0xFF
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        while (passing == 0) {
+            if (!advance()) return -1
+        }
+        val count = minOf(len, passing)
+        buffer.copyInto(b, off, pos, pos + count)
+        pos += count
+        passing -= count
+        return count
+    }
+
+    override fun available(): Int = passing
+
+    override fun close() {
+        input.close()
+    }
+
+    /**
+     * Decides what to do with the bytes at [pos]: pass them up to the next page, keep a page or drop it.
+     *
+     * @return false at the end of the input
+     */
+    private fun advance(): Boolean {
+        val page = indexOf(PAGE_START, pos, limit)
+        if (page < 0) {
+            // Keep a possibly split "<page>" for the next round.
+            val safe = if (eof) limit else limit - (PAGE_START.size - 1)
+            if (safe > pos) {
+                passing = safe - pos
+                return true
+            }
+            if (eof) return false
+            fill()
+            return true
+        }
+        if (page > pos) {
+            passing = page - pos
+            return true
+        }
+        if (isMainNamespace()) {
+            passing = PAGE_START.size
+        } else {
+            skipPage()
+        }
+        return true
+    }
+
+    /**
+     * Reads ahead from the `<page>` at [pos] to its namespace.
+     */
+    private fun isMainNamespace(): Boolean {
+        while (true) {
+            val end = minOf(limit, pos + MAX_NAMESPACE_LOOKAHEAD)
+            val pageEnd = indexOf(PAGE_END, pos, end)
+            val nsStart = indexOf(NS_START, pos, if (pageEnd < 0) end else pageEnd)
+            if (nsStart >= 0) {
+                val valueStart = nsStart + NS_START.size
+                val nsEnd = indexOf(NS_END, valueStart, end)
+                if (nsEnd >= 0) return isZero(valueStart, nsEnd)
+            } else if (pageEnd >= 0) {
+                return true
+            }
+            if (end == pos + MAX_NAMESPACE_LOOKAHEAD || eof) return true
+            fill()
+        }
+    }
+
+    private fun skipPage() {
+        while (true) {
+            val pageEnd = indexOf(PAGE_END, pos, limit)
+            if (pageEnd >= 0) {
+                pos = pageEnd + PAGE_END.size
+                return
+            }
+            if (eof) {
+                pos = limit
+                return
+            }
+            pos = maxOf(pos, limit - (PAGE_END.size - 1))
+            fill()
+        }
+    }
+
+    private fun isZero(from: Int, to: Int): Boolean {
+        var digits = 0
+        for (i in from until to) {
+            when (buffer[i]) {
+                ZERO -> digits++
+                SPACE, TAB, LF, CR -> Unit
+                else -> return false
+            }
+        }
+        return digits > 0
+    }
+
+    private fun fill() {
+        if (pos > 0) {
+            buffer.copyInto(buffer, 0, pos, limit)
+            limit -= pos
+            pos = 0
+        }
+        if (limit == buffer.size) buffer = buffer.copyOf(buffer.size * 2)
+        val read = input.read(buffer, limit, buffer.size - limit)
+        if (read < 0) eof = true else limit += read
+    }
+
+    private fun indexOf(needle: ByteArray, from: Int, to: Int): Int {
+        val first = needle[0]
+        var i = from
+        val last = to - needle.size
+        outer@ while (i <= last) {
+            if (buffer[i] != first) {
+                i++
+                continue
+            }
+            for (j in 1 until needle.size) {
+                if (buffer[i + j] != needle[j]) {
+                    i++
+                    continue@outer
+                }
+            }
+            return i
+        }
+        return -1
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 1 shl 16
+        private const val MAX_NAMESPACE_LOOKAHEAD = 1 shl 14
+
+        private const val ZERO = '0'.code.toByte()
+        private const val SPACE = ' '.code.toByte()
+        private const val TAB = '\t'.code.toByte()
+        private const val LF = '\n'.code.toByte()
+        private const val CR = '\r'.code.toByte()
+
+        private val PAGE_START = "<page>".toByteArray(Charsets.US_ASCII)
+        private val PAGE_END = "</page>".toByteArray(Charsets.US_ASCII)
+        private val NS_START = "<ns>".toByteArray(Charsets.US_ASCII)
+        private val NS_END = "</ns>".toByteArray(Charsets.US_ASCII)
+    }
+}
@@ -0,0 +1,272 @@
+package fi.eonwe.wikilinks
+
+import java.util.Arrays
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+import kotlin.text.Charsets.UTF_8
+
+/**
+ * Maps titles to dense int ids. Titles are kept as UTF-8 bytes packed into large byte slabs, and the table is
+ * open-addressed over the ids, so an entry costs about 25 bytes on top of its title instead of a `String`, a map
+ * node and a pointer object.
+ *
+ * Titles may be added from several threads at once: the table is split by title hash into stripes with their own
+ * lock, slabs and table. Ids come from one counter, so a single thread gets them from 0 in insertion order. Per-id
+ * data is kept in blocks that are never moved, so an id can be read from any thread once it has been passed there
+ * through a queue, a future or a join.
+ */
+class TitleDictionary(expectedSize: Int = 1024) {
+    private val stripes = Array(STRIPE_COUNT) { Stripe(it, tableSizeFor(expectedSize / STRIPE_COUNT)) }
+    private val blocks = AtomicReferenceArray<IdBlock>(MAX_BLOCKS)
+    private val nextId = AtomicInteger()
+    private val scratch = ThreadLocal.withInitial { Encoded() }
+
+    /**
+     * Ids handed out so far.
+     */
+    val size: Int get() = nextId.get()
+
+    /**
+     * Bytes held in slabs, including their unused tails.
+     */
+    val arenaBytes: Long
+        get() = stripes.sumOf { stripe -> stripe.slabs.sumOf { it.size.toLong() } }
+
+    /**
+     * @return the id of [title], adding it if it is new
+     */
+    fun idOf(title: String): Int {
+        val encoded = encode(title)
+        return idOf(encoded.bytes, 0, encoded.length)
+    }
+
+    fun idOf(bytes: ByteArray, offset: Int, length: Int): Int {
+        val hash = hash(bytes, offset, length)
+        val stripe = stripes[hash ushr STRIPE_SHIFT]
+        synchronized(stripe) {
+            var slot = hash and (stripe.table.size - 1)
+            while (true) {
+                val entry = stripe.table[slot] - 1
+                if (entry < 0) break
+                if (hashOf(entry) == hash && equalsEntry(entry, bytes, offset, length)) return entry
+                slot = (slot + 1) and (stripe.table.size - 1)
+            }
+            val id = add(stripe, bytes, offset, length, hash)
+            stripe.table[slot] = id + 1
+            if (++stripe.count * 4L > stripe.table.size * 3L) rehash(stripe)
+            return id
+        }
+    }
+
+    /**
+     * @return the id of [title], or -1 if it has not been added
+     */
+    fun find(title: String): Int {
+        val encoded = encode(title)
+        return find(encoded.bytes, 0, encoded.length)
+    }
+
+    fun find(bytes: ByteArray, offset: Int, length: Int): Int {
+        val hash = hash(bytes, offset, length)
+        val stripe = stripes[hash ushr STRIPE_SHIFT]
+        synchronized(stripe) {
+            var slot = hash and (stripe.table.size - 1)
+            while (true) {
+                val entry = stripe.table[slot] - 1
+                if (entry < 0) return -1
+                if (hashOf(entry) == hash && equalsEntry(entry, bytes, offset, length)) return entry
+                slot = (slot + 1) and (stripe.table.size - 1)
+            }
+        }
+    }
+
+    /**
+     * @return the id that [id] of [other] has here, or -1 if the title has not been added here
+     */
+    fun find(other: TitleDictionary, id: Int): Int {
+        val location = other.locationOf(id)
+        return find(other.slabOf(location), location.toInt(), other.lengthOf(id))
+    }
+
+    fun titleOf(id: Int): String {
+        checkId(id)
+        val location = locationOf(id)
+        return String(slabOf(location), location.toInt(), lengthOf(id), UTF_8)
+    }
+
+    fun titleLength(id: Int): Int {
+        checkId(id)
+        return lengthOf(id)
+    }
+
+    /**
+     * Copies the UTF-8 bytes of title [id] to the start of [destination], which must have room for them.
+     *
+     * @return the number of bytes copied
+     */
+    fun copyTitle(id: Int, destination: ByteArray): Int {
+        checkId(id)
+        val location = locationOf(id)
+        val start = location.toInt()
+        val length = lengthOf(id)
+        slabOf(location).copyInto(destination, 0, start, start + length)
+        return length
+    }
+
+    /**
+     * Called with the lock of [stripe] held.
+     */
+    private fun add(stripe: Stripe, bytes: ByteArray, offset: Int, length: Int, hash: Int): Int {
+        val id = nextId.getAndUpdate { if (it == Int.MAX_VALUE) it else it + 1 }
+        if (id == Int.MAX_VALUE) throw IllegalStateException("Too many titles for 32-bit ids")
+        if (stripe.slabs.isEmpty() || stripe.slabUsed + length > stripe.slab.size) {
+            // Slabs start small for small dumps and double up to a fixed size.
+            val slabSize = (stripe.slab.size * 2).coerceIn(MIN_SLAB_SIZE, MAX_SLAB_SIZE)
+            stripe.slab = ByteArray(maxOf(slabSize, length))
+            stripe.slabs += stripe.slab
+            stripe.slabUsed = 0
+        }
+        bytes.copyInto(stripe.slab, stripe.slabUsed, offset, offset + length)
+        val block = blockOf(id)
+        val index = id and BLOCK_MASK
+        block.locations[index] = (stripe.index.toLong() shl STRIPE_LOCATION_SHIFT) or
+            ((stripe.slabs.size - 1).toLong() shl 32) or stripe.slabUsed.toLong()
+        block.lengths[index] = length
+        block.hashes[index] = hash
+        stripe.slabUsed += length
+        return id
+    }
+
+    private fun blockOf(id: Int): IdBlock {
+        val blockIndex = id ushr BLOCK_SHIFT
+        blocks.get(blockIndex)?.let { return it }
+        blocks.compareAndSet(blockIndex, null, IdBlock())
+        return blocks.get(blockIndex)
+    }
+
+    private fun locationOf(id: Int): Long = blocks.get(id ushr BLOCK_SHIFT).locations[id and BLOCK_MASK]
+
+    private fun lengthOf(id: Int): Int = blocks.get(id ushr BLOCK_SHIFT).lengths[id and BLOCK_MASK]
+
+    private fun hashOf(id: Int): Int = blocks.get(id ushr BLOCK_SHIFT).hashes[id and BLOCK_MASK]
+
+    private fun slabOf(location: Long): ByteArray {
+        return stripes[(location ushr STRIPE_LOCATION_SHIFT).toInt()].slabs[((location ushr 32) and SLAB_INDEX_MASK).toInt()]
+    }
+
+    /**
+     * Called with the lock of [stripe] held.
+     */
+    private fun rehash(stripe: Stripe) {
+        val table = IntArray(stripe.table.size * 2)
+        for (entry in stripe.table) {
+            if (entry == 0) continue
+            var slot = hashOf(entry - 1) and (table.size - 1)
+            while (table[slot] != 0) slot = (slot + 1) and (table.size - 1)
+            table[slot] = entry
+        }
+        stripe.table = table
+    }
+
+    private fun equalsEntry(id: Int, bytes: ByteArray, offset: Int, length: Int): Boolean {
+        if (lengthOf(id) != length) return false
+        val location = locationOf(id)
+        val start = location.toInt()
+        return Arrays.equals(slabOf(location), start, start + length, bytes, offset, offset + length)
+    }
+
+    private fun encode(title: String): Encoded {
+        val encoded = scratch.get()
+        // A UTF-16 unit never takes more than three UTF-8 bytes.
+        if (encoded.bytes.size < title.length * 3) encoded.bytes = ByteArray(title.length * 3)
+        val bytes = encoded.bytes
+        var n = 0
+        var i = 0
+        while (i < title.length) {
+            val c = title[i]
+            when {
+                c.code < 0x80 -> bytes[n++] = c.code.toByte()
+                c.code < 0x800 -> {
+                    bytes[n++] = (0xC0 or (c.code shr 6)).toByte()
+                    bytes[n++] = (0x80 or (c.code and 0x3F)).toByte()
+                }
+
+                Character.isHighSurrogate(c) && i + 1 < title.length && Character.isLowSurrogate(title[i + 1]) -> {
+                    val codePoint = Character.toCodePoint(c, title[++i])
+                    bytes[n++] = (0xF0 or (codePoint shr 18)).toByte()
+                    bytes[n++] = (0x80 or ((codePoint shr 12) and 0x3F)).toByte()
+                    bytes[n++] = (0x80 or ((codePoint shr 6) and 0x3F)).toByte()
+                    bytes[n++] = (0x80 or (codePoint and 0x3F)).toByte()
+                }
+
+                Character.isSurrogate(c) -> bytes[n++] = '?'.code.toByte()
+                else -> {
+                    bytes[n++] = (0xE0 or (c.code shr 12)).toByte()
+                    bytes[n++] = (0x80 or ((c.code shr 6) and 0x3F)).toByte()
+                    bytes[n++] = (0x80 or (c.code and 0x3F)).toByte()
+                }
+            }
+            i++
+        }
+        encoded.length = n
+        return encoded
+    }
+
+    private fun checkId(id: Int) {
+        if (id !in 0 until size) throw IndexOutOfBoundsException("Title id $id not in [0, $size)")
+    }
+
+    private class Encoded {
+        var bytes = ByteArray(256)
+        var length = 0
+    }
+
+    private class Stripe(val index: Int, tableSize: Int) {
+        /** Replaced rather than grown, as titles of this stripe may be read without its lock while others are added. */
+        @Volatile
+        var slabs = emptyArray<ByteArray>()
+        var slab = ByteArray(0)
+        var slabUsed = 0
+
+        /** Ids plus one, 0 marking a free slot. */
+        var table = IntArray(tableSize)
+        var count = 0
+    }
+
+    private class IdBlock {
+        /** Stripe in the high 16, slab index in the next 16 and offset in the low 32 bits. */
+        val locations = LongArray(BLOCK_SIZE)
+        val lengths = IntArray(BLOCK_SIZE)
+        val hashes = IntArray(BLOCK_SIZE)
+    }
+
+    companion object {
+        private const val MIN_SLAB_SIZE = 1 shl 16
+        private const val MAX_SLAB_SIZE = 1 shl 24
+
+        private const val STRIPE_BITS = 6
+        private const val STRIPE_COUNT = 1 shl STRIPE_BITS
+        private const val STRIPE_SHIFT = 32 - STRIPE_BITS
+        private const val STRIPE_LOCATION_SHIFT = 48
+        private const val SLAB_INDEX_MASK = 0xFFFFL
+
+        private const val BLOCK_SHIFT = 14
+        private const val BLOCK_SIZE = 1 shl BLOCK_SHIFT
+        private const val BLOCK_MASK = BLOCK_SIZE - 1
+        private const val MAX_BLOCKS = 1 shl (31 - BLOCK_SHIFT)
+
+        private fun tableSizeFor(entries: Int): Int {
+            var size = 16
+            while (size < entries * 4L / 3 + 1) size = size shl 1
+            return size
+        }
+
+        private fun hash(bytes: ByteArray, offset: Int, length: Int): Int {
+            var h = 0x811C9DC5.toInt()
+            for (i in offset until offset + length) {
+                h = (h xor bytes[i].toInt()) * 0x01000193
+            }
+            return h xor (h ushr 16)
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package fi.eonwe.wikilinks
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Maps titles to dense int ids by a 64-bit hash alone, without keeping the titles. It stands in for a
+ * [TitleDictionary] where titles only have to be matched later against titles kept elsewhere, so that they are
+ * not stored twice. Two titles with the same hash share an id; at 64 bits that is unlikely even for hundreds of
+ * millions of titles.
+ *
+ * Titles may be added from several threads at once: the table is split by hash into stripes with their own lock.
+ */
+internal class TitleHashIds(expectedSize: Int = 1024) {
+    private val stripes = Array(STRIPE_COUNT) { Stripe(tableSizeFor(expectedSize / STRIPE_COUNT)) }
+    private val nextId = AtomicInteger()
+
+    /**
+     * Ids handed out so far.
+     */
+    val size: Int get() = nextId.get()
+
+    /**
+     * @return the id of [title], adding it if it is new
+     */
+    fun idOf(title: String): Int {
+        val hash = hash(title)
+        val stripe = stripes[(hash ushr STRIPE_SHIFT).toInt()]
+        synchronized(stripe) {
+            val slot = slotOf(stripe, hash)
+            if (stripe.ids[slot] != 0) return stripe.ids[slot] - 1
+            val id = nextId.getAndUpdate { if (it == Int.MAX_VALUE) it else it + 1 }
+            if (id == Int.MAX_VALUE) throw IllegalStateException("Too many titles for 32-bit ids")
+            stripe.hashes[slot] = hash
+            stripe.ids[slot] = id + 1
+            if (++stripe.count * 4L > stripe.ids.size * 3L) rehash(stripe)
+            return id
+        }
+    }
+
+    /**
+     * @return the id of [title], or -1 if it has not been added
+     */
+    fun find(title: String): Int {
+        val hash = hash(title)
+        val stripe = stripes[(hash ushr STRIPE_SHIFT).toInt()]
+        synchronized(stripe) {
+            return stripe.ids[slotOf(stripe, hash)] - 1
+        }
+    }
+
+    /**
+     * @return the slot of [hash] in [stripe], or the free slot where it would go
+     */
+    private fun slotOf(stripe: Stripe, hash: Long): Int {
+        val mask = stripe.ids.size - 1
+        var slot = hash.toInt() and mask
+        while (stripe.ids[slot] != 0 && stripe.hashes[slot] != hash) slot = (slot + 1) and mask
+        return slot
+    }
+
+    private fun rehash(stripe: Stripe) {
+        val hashes = LongArray(stripe.hashes.size * 2)
+        val ids = IntArray(hashes.size)
+        for (i in stripe.ids.indices) {
+            if (stripe.ids[i] == 0) continue
+            var slot = stripe.hashes[i].toInt() and (ids.size - 1)
+            while (ids[slot] != 0) slot = (slot + 1) and (ids.size - 1)
+            hashes[slot] = stripe.hashes[i]
+            ids[slot] = stripe.ids[i]
+        }
+        stripe.hashes = hashes
+        stripe.ids = ids
+    }
+
+    private class Stripe(tableSize: Int) {
+        var hashes = LongArray(tableSize)
+
+        /** Ids plus one, 0 marking a free slot. */
+        var ids = IntArray(tableSize)
+        var count = 0
+    }
+
+    companion object {
+        private const val STRIPE_BITS = 6
+        private const val STRIPE_COUNT = 1 shl STRIPE_BITS
+        private const val STRIPE_SHIFT = 64 - STRIPE_BITS
+
+        private fun tableSizeFor(entries: Int): Int {
+            var size = 16
+            while (size < entries * 4L / 3 + 1) size = size shl 1
+            return size
+        }
+
+        /**
+         * FNV-1a over the UTF-16 units of [title], finished with the MurmurHash3 mixer. Unpaired surrogates count as
+         * `?`, as they do when [TitleDictionary] encodes a title, so a title hashes the same when read back from one.
+         */
+        private fun hash(title: String): Long {
+            var h = -0x340d631b7bdddcdbL
+            for (i in title.indices) {
+                val c = title[i]
+                val paired = when {
+                    Character.isHighSurrogate(c) -> i + 1 < title.length && Character.isLowSurrogate(title[i + 1])
+                    Character.isLowSurrogate(c) -> i > 0 && Character.isHighSurrogate(title[i - 1])
+                    else -> true
+                }
+                h = (h xor (if (paired) c.code else '?'.code).toLong()) * 0x100000001b3L
+            }
+            h = (h xor (h ushr 33)) * -0xae502812aa7333L
+            h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+            return h xor (h ushr 33)
+        }
+    }
+}
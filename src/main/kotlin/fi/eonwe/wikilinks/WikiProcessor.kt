@@ -5,17 +5,33 @@ import fi.eonwe.wikilinks.fatpages.WikiPage
 import fi.eonwe.wikilinks.fatpages.WikiPageData
 import fi.eonwe.wikilinks.fatpages.WikiRedirectPage
 import fi.eonwe.wikilinks.leanpages.BufferWikiPage
+import fi.eonwe.wikilinks.segmentgraph.CsrGraphDataSource
+import fi.eonwe.wikilinks.segmentgraph.GraphDataSource
+import fi.eonwe.wikilinks.segmentgraph.NodeRecord
+import fi.eonwe.wikilinks.segmentgraph.TitleAlias
+import fi.eonwe.wikilinks.utils.IntSpillFile
 import info.bliki.wiki.dump.WikiPatternMatcher
 import info.bliki.wiki.dump.WikiXMLParser
 import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.file.Path
 import java.util.Arrays
-import java.util.HashMap
+import java.util.Collections
 import java.util.IdentityHashMap
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  */
-class WikiProcessor private constructor() {
+class WikiProcessor private constructor(
+    private val telemetry: IngestTelemetry?,
+    spillDirectory: Path?,
+    private val collapseRedirects: Boolean,
+    private val parallelism: Int
+) : AutoCloseable {
     data class GraphStatistics(
         val articleCount: Int,
         val redirectCount: Int,
@@ -23,53 +39,578 @@ class WikiProcessor private constructor() {
         val nullLinkCount: Int
     )
 
+    /**
+     * [aliases] holds the titles of redirects collapsed into the pages they lead to; it is empty unless
+     * [ProcessingConfig.collapseRedirects] is set.
+     */
     data class ReadPagesResult(
         val pages: MutableList<BufferWikiPage>,
+        val beforeRedirectCleanup: GraphStatistics,
+        val afterRedirectCleanup: GraphStatistics,
+        val aliases: List<TitleAlias> = emptyList()
+    )
+
+    /**
+     * Pages read with links kept on disk; close [graph] to delete its files.
+     */
+    data class ReadGraphResult(
+        val graph: CsrGraphDataSource,
+        val beforeRedirectCleanup: GraphStatistics,
+        val afterRedirectCleanup: GraphStatistics
+    )
+
+    /**
+     * Statistics of a graph that was handed to a writer while it was resolved instead of being returned.
+     */
+    data class WriteGraphResult(
         val beforeRedirectCleanup: GraphStatistics,
         val afterRedirectCleanup: GraphStatistics
     )
 
-    fun preProcess(input: InputStream): MutableMap<String, PagePointer> {
-        val titleToPage = HashMap<String, PagePointer>(12000000)
-        var nextInternalId = 0
+    /**
+     * A main namespace page as read from the dump, before its title and links have been resolved against other pages.
+     */
+    class ParsedPage(
+        val title: String,
+        val isRedirect: Boolean,
+        val redirectTarget: String?,
+        val links: List<String>
+    )
+
+    /**
+     * How pages and their links are read from dump XML.
+     */
+    enum class LinkExtractor {
+        /** bliki's XML parser and link patterns. */
+        BLIKI,
+
+        /** [ByteLinkExtractor], which scans the UTF-8 bytes and cuts `#section` anchors off links. */
+        BYTES
+    }
+
+    /**
+     * Titles of pages seen so far.
+     */
+    private val titles = TitleDictionary(1 shl 16)
+
+    /**
+     * Link targets that were not page titles when the link was read. Most of them are red links that never get a
+     * page, so they are kept out of [titles] and the per-title arrays. Only their hashes are kept, so that a link
+     * read before its page does not hold its title twice, and they are dropped once links have been resolved to
+     * [linkTitleIds].
+     */
+    private var linkTitles: TitleHashIds? = TitleHashIds(1 shl 16)
+
+    /** Title id in [titles] for each id in [linkTitles], or [NO_PAGE] for red links. */
+    private var linkTitleIds = IntArray(0)
+
+    /**
+     * Redirect targets, kept apart from [titles] because a redirect does not make its target a known title.
+     */
+    private val redirectTargets = TitleDictionary(1 shl 12)
+
+    /** Page id for each title id, or [NO_PAGE]. */
+    private var pageOfTitle = IntArray(1 shl 16)
+
+    /** Title ids below this have an entry in [pageOfTitle]. */
+    private var coveredTitles = 0
+
+    /** Title id for each page id. */
+    private var titleOfPage = IntArray(1 shl 16)
+
+    /** [ARTICLE], [NO_TARGET] or the redirect target id for each page id. */
+    private var targetOfPage = IntArray(1 shl 16)
+
+    /** End of each page's title ids in [links]. */
+    private var linksEnd = LongArray(1 shl 16)
+
+    /**
+     * Link references of every page in page order, on disk when a spill directory is given. A reference is a title
+     * id, or `-1 - id` for an id in [linkTitles].
+     */
+    private val links: LinkStore = if (spillDirectory == null) IntChunks() else SpilledLinks(IntSpillFile(spillDirectory, "links-"))
+    private var nextInternalId = 0
+
+    private fun nextPageId(): Int {
+        if (nextInternalId == Int.MAX_VALUE) {
+            throw IllegalStateException("Too many pages to index with 32-bit ids")
+        }
+        return nextInternalId++
+    }
+
+    fun preProcess(input: InputStream, extractor: LinkExtractor = LinkExtractor.BLIKI) {
+        parsePages(input, extractor) { addPage(it) }
+    }
+
+    /**
+     * Indexes pages chunk by chunk. Ids are handed out in iteration order, so feeding chunks in dump order gives
+     * the same result as reading the whole dump with [preProcess].
+     *
+     * With more than one thread, the titles and links of each chunk are looked up in the dictionaries on workers,
+     * and only handing out page ids is left to this thread, still in chunk order.
+     */
+    fun preProcess(chunks: Iterator<List<ParsedPage>>) {
+        if (parallelism <= 1) {
+            chunks.forEach { chunk -> chunk.forEach { addPage(it) } }
+            return
+        }
+        Executors.newFixedThreadPool(parallelism).use { executor ->
+            val pending = ArrayDeque<Future<InternedChunk>>()
+            for (chunk in chunks) {
+                pending.addLast(executor.submit(Callable { intern(chunk) }))
+                if (pending.size > parallelism) addPages(pending.removeFirst().get())
+            }
+            while (pending.isNotEmpty()) addPages(pending.removeFirst().get())
+        }
+    }
+
+    /**
+     * Title ids of a chunk of pages and of their links, from before the pages have ids.
+     *
+     * @property targets [ARTICLE], [NO_TARGET] or the redirect target id of each page
+     * @property linksEnd end of each page's link title ids in [links]
+     */
+    private class InternedChunk(
+        val titleIds: IntArray,
+        val targets: IntArray,
+        val linksEnd: IntArray,
+        val links: IntArray
+    )
 
-        fun nextPageId(): Int {
-            if (nextInternalId == Int.MAX_VALUE) {
-                throw IllegalStateException("Too many pages to index with 32-bit ids")
+    private fun intern(chunk: List<ParsedPage>): InternedChunk {
+        val titleIds = IntArray(chunk.size)
+        val targets = IntArray(chunk.size)
+        val linksEnd = IntArray(chunk.size)
+        val links = IntArray(chunk.sumOf { if (it.isRedirect) 0 else it.links.size })
+        var linkCount = 0
+        for ((i, parsed) in chunk.withIndex()) {
+            // Same lookup order as addPage, so that one worker hands out title ids like a sequential read.
+            if (parsed.isRedirect) {
+                targets[i] = parsed.redirectTarget?.let { redirectTargets.idOf(it) } ?: NO_TARGET
+            } else {
+                targets[i] = ARTICLE
+                parsed.links.forEach { links[linkCount++] = linkRefOf(it) }
             }
-            return nextInternalId++
-        }
-
-        val parser = WikiXMLParser(input) { article, siteinfo ->
-            if (article.isMain) {
-                val text = article.text ?: ""
-                val matcher = WikiPatternMatcher(text)
-                // Wikimedia page ids can be larger than Int. We use a compact internal id instead.
-                val id = nextPageId()
-                if (matcher.isRedirect) {
-                    val page = WikiRedirectPage(article.title, id, matcher.redirectText)
-                    fixPagePointers(titleToPage, page)
+            linksEnd[i] = linkCount
+            titleIds[i] = titles.idOf(parsed.title)
+        }
+        return InternedChunk(titleIds, targets, linksEnd, links)
+    }
+
+    private fun addPages(chunk: InternedChunk) {
+        coverTitles()
+        var start = 0
+        for (i in chunk.titleIds.indices) {
+            val id = nextPageSlot()
+            targetOfPage[id] = chunk.targets[i]
+            for (j in start until chunk.linksEnd[i]) links.add(chunk.links[j])
+            linksEnd[id] = links.size
+            titleOfPage[id] = chunk.titleIds[i]
+            pageOfTitle[chunk.titleIds[i]] = id
+            telemetry?.addPage(chunk.linksEnd[i] - start, titles.size + (linkTitles?.size ?: 0))
+            start = chunk.linksEnd[i]
+        }
+    }
+
+    /**
+     * @return the next page id, with room for it in the per-page arrays
+     */
+    private fun nextPageSlot(): Int {
+        // Wikimedia page ids can be larger than Int. We use a compact internal id instead.
+        val id = nextPageId()
+        if (id == titleOfPage.size) {
+            val capacity = grownCapacity(id)
+            titleOfPage = titleOfPage.copyOf(capacity)
+            targetOfPage = targetOfPage.copyOf(capacity)
+            linksEnd = linksEnd.copyOf(capacity)
+        }
+        return id
+    }
+
+    private fun addPage(parsed: ParsedPage) {
+        val id = nextPageSlot()
+        if (parsed.isRedirect) {
+            targetOfPage[id] = parsed.redirectTarget?.let { redirectTargets.idOf(it) } ?: NO_TARGET
+        } else {
+            targetOfPage[id] = ARTICLE
+            parsed.links.forEach { links.add(linkRefOf(it)) }
+        }
+        linksEnd[id] = links.size
+        val titleId = titleIdOf(parsed.title)
+        titleOfPage[id] = titleId
+        pageOfTitle[titleId] = id
+        telemetry?.addPage(parsed.links.size, titles.size + (linkTitles?.size ?: 0))
+    }
+
+    /**
+     * @return the title id of [title] if it is a page title already, otherwise a reference to it in [linkTitles]
+     */
+    private fun linkRefOf(title: String): Int {
+        val titleId = titles.find(title)
+        if (titleId >= 0) return titleId
+        val linkTitles = checkNotNull(linkTitles) { "Links have already been resolved" }
+        return -1 - linkTitles.idOf(title)
+    }
+
+    /**
+     * @return the title id a link reference stands for, or [NO_PAGE] for a red link
+     */
+    private fun titleOfLink(ref: Int): Int = if (ref >= 0) ref else linkTitleIds[-1 - ref]
+
+    private fun titleIdOf(title: String): Int {
+        val id = titles.idOf(title)
+        if (id >= coveredTitles) coverTitles()
+        return id
+    }
+
+    /**
+     * Marks titles added since the last call as having no page yet.
+     */
+    private fun coverTitles() {
+        val size = titles.size
+        if (size > pageOfTitle.size) pageOfTitle = pageOfTitle.copyOf(maxOf(size, grownCapacity(pageOfTitle.size)))
+        pageOfTitle.fill(NO_PAGE, coveredTitles, size)
+        coveredTitles = size
+    }
+
+    private fun isRedirect(page: Int): Boolean = targetOfPage[page] != ARTICLE
+
+    private fun isLive(page: Int): Boolean = pageOfTitle[titleOfPage[page]] == page
+
+    private fun isNode(page: Int): Boolean = isLive(page) && !(collapseRedirects && isRedirect(page))
+
+    private fun linksStart(page: Int): Long = if (page == 0) 0 else linksEnd[page - 1]
+
+    /**
+     * Reads the links of pages [from] until [to] back in page order from [cursor], which must start at the links
+     * of [from]. [action] gets a buffer holding the page's link references in its first `count` elements; the
+     * buffer is reused between pages.
+     */
+    private inline fun forEachPageLinks(
+        from: Int,
+        to: Int,
+        cursor: LinkCursor,
+        action: (page: Int, titleIds: IntArray, count: Int) -> Unit
+    ) {
+        var buffer = IntArray(64)
+        var start = linksStart(from)
+        for (page in from until to) {
+            val count = (linksEnd[page] - start).toInt()
+            start = linksEnd[page]
+            if (count > buffer.size) buffer = IntArray(maxOf(count, buffer.size * 2))
+            for (i in 0 until count) buffer[i] = cursor.next()
+            action(page, buffer, count)
+        }
+    }
+
+    /**
+     * Redirects resolved against titles, with those that lead nowhere dropped.
+     *
+     * @property redirectTitles title id of each redirect target, [LINK_ONLY] or [NO_PAGE]
+     * @property chainEnds for each live redirect page, the article its chain ends at or [NO_ARTICLE]
+     */
+    private class Resolution(
+        val before: GraphStatistics,
+        val after: GraphStatistics,
+        val redirectTitles: IntArray,
+        val chainEnds: IntArray
+    )
+
+    private fun resolveRedirects(): Resolution {
+        val linkTitles = checkNotNull(linkTitles) { "Links have already been resolved" }
+        // Redirect targets that are never seen as a title resolve to NO_PAGE like the old pointer map lookups did.
+        val redirectTitles = IntArray(redirectTargets.size) {
+            val titleId = titles.find(redirectTargets, it)
+            when {
+                titleId >= 0 -> titleId
+                linkTitles.find(redirectTargets.titleOf(it)) >= 0 -> LINK_ONLY
+                else -> NO_PAGE
+            }
+        }
+        linkTitleIds = IntArray(linkTitles.size) { NO_PAGE }
+        if (linkTitles.size > 0) {
+            for (titleId in 0 until titles.size) {
+                val linkId = linkTitles.find(titles.titleOf(titleId))
+                if (linkId >= 0) linkTitleIds[linkId] = titleId
+            }
+        }
+        this.linkTitles = null
+        // Links read before their page was are in both dictionaries, so the count seen while reading was high.
+        telemetry?.setTitleCount(titles.size + linkTitleIds.count { it == NO_PAGE })
+        val before = gatherStatistics()
+        val chainEnds = resolveRedirectChains(redirectTitles)
+        dropRedirectLoops(chainEnds)
+        return Resolution(before, gatherStatistics(), redirectTitles, chainEnds)
+    }
+
+    internal fun buildResult(): ReadPagesResult {
+        val resolution = resolveRedirects()
+        val packedPages = packPages(resolution)
+        return ReadPagesResult(
+            pages = packedPages,
+            beforeRedirectCleanup = resolution.before,
+            afterRedirectCleanup = resolution.after,
+            aliases = if (collapseRedirects) aliases(resolution.chainEnds) else emptyList()
+        )
+    }
+
+    /**
+     * Second pass of an external-memory read: streams the stored links once more, resolves them to page ids and
+     * writes them into a [CsrGraphDataSource] under [directory]. Only the title dictionary and per-page arrays stay
+     * on the heap.
+     */
+    internal fun buildGraph(directory: Path, sortBufferBytes: Long): ReadGraphResult {
+        val resolution = resolveRedirects()
+        CsrGraphDataSource.Builder(directory, sortBufferBytes).use { builder ->
+            forEachResolvedPage(resolution) { page, isRedirect, pageLinks, count ->
+                builder.add(page, isRedirect, pageLinks, count)
+            }
+            if (collapseRedirects) {
+                forEachAlias(resolution.chainEnds) { page, target -> builder.addAlias(page, target) }
+            }
+            val titles = titles
+            val titleOfPage = titleOfPage
+            return ReadGraphResult(
+                graph = builder.build { titles.titleOf(titleOfPage[it]) },
+                beforeRedirectCleanup = resolution.before,
+                afterRedirectCleanup = resolution.after
+            )
+        }
+    }
+
+    /**
+     * Resolves links and hands the graph to [write] as a source that reads pages straight out of this processor,
+     * without packing them first. Nodes come in ascending id order, and the source is only valid inside [write].
+     */
+    internal fun writeGraph(write: (GraphDataSource) -> Unit): WriteGraphResult {
+        val resolution = resolveRedirects()
+        val graph = ResolvedGraph(resolution)
+        // Links are resolved as the writer reads them, so this stage stays inside the resolve stage.
+        if (telemetry == null) write(graph) else telemetry.stage(IngestTelemetry.WRITE_STAGE) { write(graph) }
+        return WriteGraphResult(resolution.before, resolution.after)
+    }
+
+    private inner class ResolvedGraph(private val resolution: Resolution) : GraphDataSource {
+        override val nodeCount: Int = (0 until nextInternalId).count { isNode(it) }
+
+        override fun titleOf(id: Int): String? {
+            return if (id in 0 until nextInternalId && isNode(id)) titles.titleOf(titleOfPage[id]) else null
+        }
+
+        override fun forEachNode(consumer: (NodeRecord) -> Unit) {
+            forEachResolvedPage(resolution) { page, isRedirect, linked, count ->
+                consumer(NodeRecord(page, titles.titleOf(titleOfPage[page]), isRedirect, linked.copyOf(count)))
+            }
+        }
+
+        override fun forEachAlias(consumer: (TitleAlias) -> Unit) {
+            if (!collapseRedirects) return
+            forEachAlias(resolution.chainEnds) { page, target ->
+                consumer(TitleAlias(titles.titleOf(titleOfPage[page]), target))
+            }
+        }
+    }
+
+    override fun close() {
+        links.close()
+    }
+
+    private fun gatherStatistics(): GraphStatistics {
+        var articleCount = 0
+        var redirectCount = 0
+        var linkCount = 0
+        var nullLinkCount = 0
+        for (titleId in 0 until titles.size) {
+            val page = pageOfTitle[titleId]
+            if (page == NO_PAGE) {
+                nullLinkCount++
+            } else if (isRedirect(page)) {
+                redirectCount++
+            } else {
+                articleCount++
+            }
+        }
+        nullLinkCount += linkTitleIds.count { it == NO_PAGE }
+        forEachPageLinks(0, nextInternalId, links.cursor(0)) { page, refs, count ->
+            if (!isRedirect(page) && isLive(page)) {
+                for (i in 0 until count) {
+                    val titleId = titleOfLink(refs[i])
+                    if (titleId == NO_PAGE || pageOfTitle[titleId] == NO_PAGE) nullLinkCount++ else linkCount++
+                }
+            }
+        }
+        return GraphStatistics(
+            articleCount = articleCount,
+            redirectCount = redirectCount,
+            linkCount = linkCount,
+            nullLinkCount = nullLinkCount
+        )
+    }
+
+    /**
+     * Follows every live redirect to the end of its chain. Each page is walked once: the pages of a chain are
+     * pushed on a stack and all get the chain's end when it is found, so later chains stop as soon as they join
+     * one that is already resolved.
+     *
+     * @return per page id, the article a redirect chain ends at, [NO_ARTICLE] for chains ending at a title that
+     * has no page, and [LEADS_NOWHERE] for chains ending in a loop or at a redirect without a known target
+     */
+    private fun resolveRedirectChains(redirectTitles: IntArray): IntArray {
+        val chainEnds = IntArray(nextInternalId)
+        chainEnds.fill(UNRESOLVED)
+        var chain = IntArray(16)
+        for (titleId in 0 until titles.size) {
+            val start = pageOfTitle[titleId]
+            if (start == NO_PAGE || !isRedirect(start) || chainEnds[start] != UNRESOLVED) continue
+            var length = 0
+            var page = start
+            var end: Int
+            while (true) {
+                val known = chainEnds[page]
+                if (known != UNRESOLVED) {
+                    // A page already on this chain means a loop.
+                    end = if (known == ON_CHAIN) LEADS_NOWHERE else known
+                    break
+                }
+                chainEnds[page] = ON_CHAIN
+                if (length == chain.size) chain = chain.copyOf(grownCapacity(length))
+                chain[length++] = page
+                val target = targetOfPage[page]
+                val targetTitle = if (target == NO_TARGET) NO_PAGE else redirectTitles[target]
+                if (targetTitle == NO_PAGE) {
+                    end = LEADS_NOWHERE
+                    break
+                }
+                if (targetTitle == LINK_ONLY) {
+                    end = NO_ARTICLE
+                    break
+                }
+                page = pageOfTitle[targetTitle]
+                if (page == NO_PAGE) {
+                    end = NO_ARTICLE
+                    break
+                }
+                if (!isRedirect(page)) {
+                    end = page
+                    break
+                }
+            }
+            for (i in 0 until length) chainEnds[chain[i]] = end
+        }
+        return chainEnds
+    }
+
+    /**
+     * Unlinks redirects that never reach a page. Every redirect of a looping chain goes, including those that
+     * only lead into the loop.
+     */
+    private fun dropRedirectLoops(chainEnds: IntArray) {
+        for (titleId in 0 until titles.size) {
+            val page = pageOfTitle[titleId]
+            if (page != NO_PAGE && chainEnds[page] == LEADS_NOWHERE) pageOfTitle[titleId] = NO_PAGE
+        }
+    }
+
+    private inline fun forEachAlias(chainEnds: IntArray, action: (page: Int, target: Int) -> Unit) {
+        for (page in 0 until nextInternalId) {
+            if (isRedirect(page) && isLive(page) && chainEnds[page] >= 0) action(page, chainEnds[page])
+        }
+    }
+
+    private fun aliases(chainEnds: IntArray): List<TitleAlias> {
+        val list = ArrayList<TitleAlias>()
+        forEachAlias(chainEnds) { page, target -> list.add(TitleAlias(titles.titleOf(titleOfPage[page]), target)) }
+        return list
+    }
+
+    /**
+     * Calls [action] in page id order for every page that is still reachable by its title, with its links resolved
+     * to page ids, sorted and without duplicates. The links buffer is reused between pages.
+     *
+     * When redirects are collapsed, links to a redirect go to the article its chain ends at, links to a chain
+     * without one are dropped, and redirect pages themselves are left out.
+     */
+    private inline fun forEachResolvedPage(
+        resolution: Resolution,
+        from: Int = 0,
+        to: Int = nextInternalId,
+        cursor: LinkCursor = links.cursor(linksStart(from)),
+        action: (page: Int, isRedirect: Boolean, links: IntArray, count: Int) -> Unit
+    ) {
+        val redirectTitles = resolution.redirectTitles
+        val chainEnds = resolution.chainEnds
+        var linked = IntArray(64)
+        forEachPageLinks(from, to, cursor) { page, refs, linkCount ->
+            // Pages replaced by a later page of the same title, or dropped redirects, are skipped.
+            if (isNode(page)) {
+                var count = 0
+                if (isRedirect(page)) {
+                    val target = targetOfPage[page]
+                    val targetTitle = if (target == NO_TARGET) NO_PAGE else redirectTitles[target]
+                    val targetPage = if (targetTitle < 0) NO_PAGE else pageOfTitle[targetTitle]
+                    if (targetPage != NO_PAGE) linked[count++] = targetPage
+                    telemetry?.addResolvedLinks(count)
                 } else {
-                    val links = matcher.links.asSequence()
-                        .map { linkName -> possiblyCapitalize(linkName) }
-                        .distinct()
-                    val pointerLinks = buildList {
-                        links.forEach { link ->
-                            var ptr = titleToPage[link]
-                            if (ptr == null) {
-                                ptr = PagePointer(null)
-                                titleToPage[link] = ptr
-                            }
-                            add(ptr)
+                    if (linkCount > linked.size) linked = IntArray(maxOf(linkCount, linked.size * 2))
+                    for (i in 0 until linkCount) {
+                        val titleId = titleOfLink(refs[i])
+                        var targetPage = if (titleId == NO_PAGE) NO_PAGE else pageOfTitle[titleId]
+                        if (collapseRedirects && targetPage != NO_PAGE && isRedirect(targetPage)) {
+                            targetPage = chainEnds[targetPage]
                         }
+                        if (targetPage >= 0) linked[count++] = targetPage
                     }
-                    val page = WikiPageData(article.title, id, pointerLinks)
-                    fixPagePointers(titleToPage, page)
+                    telemetry?.addResolvedLinks(count)
+                    Arrays.sort(linked, 0, count)
+                    count = distinctSorted(linked, count)
+                }
+                action(page, isRedirect(page), linked, count)
+            }
+        }
+    }
+
+    /**
+     * Packs pages in ranges of page ids on [parallelism] threads. Each range writes its pages one after another
+     * into a few large buffers instead of a buffer per page, and the ranges are joined in id order.
+     */
+    private fun packPages(resolution: Resolution): MutableList<BufferWikiPage> {
+        val rangeCount = if (parallelism <= 1) 1 else minOf(parallelism * 4, maxOf(1, nextInternalId / MIN_PAGES_PER_RANGE))
+        val bounds = IntArray(rangeCount + 1) { (it.toLong() * nextInternalId / rangeCount).toInt() }
+        // Opening a cursor flushes spilled links, so they are all opened before the workers start.
+        val cursors = List(rangeCount) { links.cursor(linksStart(bounds[it])) }
+        if (rangeCount == 1) return packRange(resolution, bounds[0], bounds[1], cursors[0])
+        val parts = Executors.newFixedThreadPool(minOf(parallelism, rangeCount)).use { executor ->
+            (0 until rangeCount)
+                .map { range ->
+                    executor.submit(Callable { packRange(resolution, bounds[range], bounds[range + 1], cursors[range]) })
                 }
+                .map { it.get() }
+        }
+        val list = ArrayList<BufferWikiPage>(parts.sumOf { it.size })
+        parts.forEach { list.addAll(it) }
+        return list
+    }
+
+    private fun packRange(resolution: Resolution, from: Int, to: Int, cursor: LinkCursor): ArrayList<BufferWikiPage> {
+        val list = ArrayList<BufferWikiPage>()
+        var arena = ByteBuffer.allocate(0)
+        var title = ByteArray(256)
+        forEachResolvedPage(resolution, from, to, cursor) { page, isRedirect, linked, count ->
+            val titleId = titleOfPage[page]
+            val titleLength = titles.titleLength(titleId)
+            if (titleLength > title.size) title = ByteArray(maxOf(titleLength, title.size * 2))
+            titles.copyTitle(titleId, title)
+            val size = BufferWikiPage.sizeOf(count, titleLength)
+            if (arena.remaining() < size) {
+                // Arenas start small for small ranges and double up to a fixed size.
+                val arenaSize = (arena.capacity() * 2).coerceIn(MIN_ARENA_SIZE, MAX_ARENA_SIZE)
+                arena = ByteBuffer.allocate(maxOf(arenaSize, size)).order(ByteOrder.LITTLE_ENDIAN)
             }
+            val offset = arena.position()
+            BufferWikiPage.write(arena, page, linked, count, title, titleLength, isRedirect)
+            list.add(BufferWikiPage(arena, offset))
         }
-        parser.parse()
-        return titleToPage
+        return list
     }
 
     companion object {
@@ -96,21 +637,130 @@ class WikiProcessor private constructor() {
             return readPagesWithStats(input).pages
         }
 
-        fun readPagesWithStats(input: InputStream): ReadPagesResult {
-            configureXmlParserLimitsForTrustedWikiDump()
-            val processor = WikiProcessor()
-            val pages = processor.preProcess(input)
-            val before = gatherStatistics(pages)
-            dropRedirectLoops(pages)
-            val after = gatherStatistics(pages)
-            val packedPages = packPages(pages)
-            return ReadPagesResult(
-                pages = packedPages,
-                beforeRedirectCleanup = before,
-                afterRedirectCleanup = after
+        fun readPagesWithStats(
+            input: InputStream,
+            extractor: LinkExtractor = LinkExtractor.BLIKI,
+            telemetry: IngestTelemetry? = null
+        ): ReadPagesResult {
+            val counted = telemetry?.countDecompressed(input) ?: input
+            return ingest(telemetry, null, false, 1, { it.preProcess(counted, extractor) }, WikiProcessor::buildResult)
+        }
+
+        fun readPagesWithStats(chunks: Iterator<List<ParsedPage>>, telemetry: IngestTelemetry? = null): ReadPagesResult {
+            return ingest(telemetry, null, false, 1, { it.preProcess(chunks) }, WikiProcessor::buildResult)
+        }
+
+        fun readPagesWithStats(input: InputStream, config: ProcessingConfig): ReadPagesResult {
+            return ingest(input, config, WikiProcessor::buildResult)
+        }
+
+        /**
+         * Reads [input] in two passes with links on disk under [ProcessingConfig.spillDirectory]: the first pass
+         * gives titles ids and spills the link title ids of each page, the second resolves them into the
+         * returned graph.
+         */
+        fun readGraph(input: InputStream, config: ProcessingConfig): ReadGraphResult {
+            return ingest(input, config, graphBuilder(config))
+        }
+
+        /**
+         * Reads [input] and hands the resolved graph to [write] without packing its pages, so that a writer can
+         * stream it to disk while only the title dictionary and the links read are on the heap.
+         */
+        fun writeGraph(input: InputStream, config: ProcessingConfig, write: (GraphDataSource) -> Unit): WriteGraphResult {
+            return ingest(input, config, graphWriter(write))
+        }
+
+        internal fun graphWriter(write: (GraphDataSource) -> Unit): (WikiProcessor) -> WriteGraphResult {
+            return { it.writeGraph(write) }
+        }
+
+        internal fun graphBuilder(config: ProcessingConfig): (WikiProcessor) -> ReadGraphResult {
+            val directory = requireNotNull(config.spillDirectory) { "Reading a graph to disk needs a spill directory" }
+            return { it.buildGraph(directory, config.spillSortBytes) }
+        }
+
+        internal fun <R> ingest(input: InputStream, config: ProcessingConfig, finish: (WikiProcessor) -> R): R {
+            val counted = config.telemetry?.countDecompressed(input) ?: input
+            return ingest(
+                config.telemetry,
+                config.spillDirectory,
+                config.collapseRedirects,
+                config.parallelism.toInt(),
+                { it.preProcess(counted, config.linkExtractor) },
+                finish
+            )
+        }
+
+        internal fun <R> ingest(
+            chunks: Iterator<List<ParsedPage>>,
+            config: ProcessingConfig,
+            finish: (WikiProcessor) -> R
+        ): R {
+            return ingest(
+                config.telemetry,
+                config.spillDirectory,
+                config.collapseRedirects,
+                config.parallelism.toInt(),
+                { it.preProcess(chunks) },
+                finish
             )
         }
 
+        private fun <R> ingest(
+            telemetry: IngestTelemetry?,
+            spillDirectory: Path?,
+            collapseRedirects: Boolean,
+            parallelism: Int,
+            read: (WikiProcessor) -> Unit,
+            finish: (WikiProcessor) -> R
+        ): R {
+            WikiProcessor(telemetry, spillDirectory, collapseRedirects, parallelism).use { processor ->
+                if (telemetry == null) {
+                    read(processor)
+                    return finish(processor)
+                }
+                telemetry.stage(IngestTelemetry.READ_STAGE) { read(processor) }
+                return telemetry.stage(IngestTelemetry.RESOLVE_STAGE) { finish(processor) }
+            }
+        }
+
+        /**
+         * Parses main namespace pages from [input] without resolving them against each other. The input may be
+         * any well-formed dump fragment, such as a single multistream substream wrapped in the dump header.
+         * Pages whose `<ns>` is not 0 are dropped from the bytes before they reach the XML parser.
+         */
+        fun parsePages(
+            input: InputStream,
+            extractor: LinkExtractor = LinkExtractor.BLIKI,
+            consumer: (ParsedPage) -> Unit
+        ) {
+            if (extractor == LinkExtractor.BYTES) {
+                ByteLinkExtractor().parsePages(input, consumer)
+                return
+            }
+            configureXmlParserLimitsForTrustedWikiDump()
+            val parser = WikiXMLParser(MainNamespaceInputStream(input)) { article, _ ->
+                if (article.isMain) {
+                    consumer(parsePage(article.title, article.text ?: ""))
+                }
+            }
+            parser.parse()
+        }
+
+        private fun parsePage(title: String, text: String): ParsedPage {
+            val matcher = WikiPatternMatcher(text)
+            return if (matcher.isRedirect) {
+                ParsedPage(title, isRedirect = true, redirectTarget = matcher.redirectText, links = emptyList())
+            } else {
+                val links = matcher.links.asSequence()
+                    .map { linkName -> possiblyCapitalize(linkName) }
+                    .distinct()
+                    .toList()
+                ParsedPage(title, isRedirect = false, redirectTarget = null, links = links)
+            }
+        }
+
         private fun possiblyCapitalize(linkName: String): String {
             if (linkName.isNotEmpty() && !Character.isUpperCase(linkName[0])) {
                 val chars = linkName.toCharArray()
@@ -120,54 +770,29 @@ class WikiProcessor private constructor() {
             return linkName
         }
 
-        fun fixPagePointers(titleToPage: MutableMap<String, PagePointer>, page: WikiPage) {
-            var pointer = titleToPage[page.title()]
-            if (pointer != null) {
-                pointer.page = page
-            } else {
-                pointer = PagePointer(page)
-                titleToPage.put(page.title(), pointer)
-            }
-        }
-
         fun dropRedirectLoops(map: MutableMap<String, PagePointer>) {
-            map.values.asSequence()
-                .filter { p ->
-                    val page = p.page
-                    page != null && page.isRedirect
-                }.forEach { p ->
-                    val didFindEndPage = endSomewhere(p, map, null)
-                    if (!didFindEndPage) {
-                        p.page = null
-                    }
+            // One visited set for all chains, cleared between them instead of allocated per redirect.
+            val visited = Collections.newSetFromMap(IdentityHashMap<WikiPage, Boolean>())
+            for (p in map.values) {
+                val page = p.page
+                if (page == null || !page.isRedirect) continue
+                visited.clear()
+                if (!endSomewhere(p, map, visited)) {
+                    p.page = null
                 }
+            }
         }
 
         private fun endSomewhere(
             redirect: PagePointer,
             map: MutableMap<String, PagePointer>,
-            visited: IdentityHashMap<WikiPage, Boolean>?
+            visited: MutableSet<WikiPage>
         ): Boolean {
-            var visited = visited
-            val immediateTarget = redirect.page
-            if (immediateTarget is WikiRedirectPage) {
-                if (visited == null) {
-                    visited = IdentityHashMap<WikiPage, Boolean>()
-                }
-                if (visited.containsKey(immediateTarget)) {
-                    return false
-                } else {
-                    visited.put(immediateTarget, true)
-                }
-                val redirectPage = immediateTarget
-                val redirectPointer = map[redirectPage.target]
-                if (redirectPointer == null) {
-                    return false
-                } else {
-                    return endSomewhere(redirectPointer, map, visited)
-                }
-            } else {
-                return true
+            var pointer = redirect
+            while (true) {
+                val redirectPage = pointer.page as? WikiRedirectPage ?: return true
+                if (!visited.add(redirectPage)) return false
+                pointer = map[redirectPage.target] ?: return false
             }
         }
 
@@ -223,6 +848,40 @@ class WikiProcessor private constructor() {
 
         private val EMPTY_ARRAY = IntArray(0)
 
+        private const val MIN_PAGES_PER_RANGE = 1 shl 14
+        private const val MIN_ARENA_SIZE = 1 shl 16
+        private const val MAX_ARENA_SIZE = 1 shl 24
+
+        private const val NO_PAGE = -1
+
+        /** Redirect target that was only ever seen as a link target. */
+        private const val LINK_ONLY = -2
+        private const val ARTICLE = -1
+        private const val NO_TARGET = -2
+
+        // Redirect chain ends other than an article page id.
+        private const val NO_ARTICLE = -1
+        private const val LEADS_NOWHERE = -2
+        private const val UNRESOLVED = -3
+        private const val ON_CHAIN = -4
+
+        private fun grownCapacity(size: Int): Int {
+            if (size >= Int.MAX_VALUE - 8) throw IllegalStateException("Too many entries for an array: $size")
+            return (size.toLong() * 3 / 2 + 16).coerceAtMost(Int.MAX_VALUE - 8L).toInt()
+        }
+
+        /**
+         * Moves the distinct values of the sorted prefix of [values] to its front.
+         */
+        private fun distinctSorted(values: IntArray, count: Int): Int {
+            if (count == 0) return 0
+            var distinct = 1
+            for (i in 1 until count) {
+                if (values[i] != values[distinct - 1]) values[distinct++] = values[i]
+            }
+            return distinct
+        }
+
         fun packPages(map: MutableMap<String, PagePointer>): MutableList<BufferWikiPage> {
             val list = mutableListOf<BufferWikiPage>()
             map.forEach { (title: String, ptr: PagePointer) ->
@@ -261,3 +920,67 @@ class WikiProcessor private constructor() {
         }
     }
 }
+
+/**
+ * Append-only list of link title ids, read back from the start.
+ */
+private interface LinkStore : AutoCloseable {
+    val size: Long
+
+    fun add(value: Int)
+
+    /**
+     * @return a cursor over the values from index [first] on
+     */
+    fun cursor(first: Long): LinkCursor
+
+    override fun close() = Unit
+}
+
+private fun interface LinkCursor {
+    fun next(): Int
+}
+
+/**
+ * Growable list of ints stored in fixed-size chunks, so that it can hold more than an `IntArray` and never copies
+ * what it already holds.
+ */
+private class IntChunks : LinkStore {
+    private val chunks = ArrayList<IntArray>()
+
+    override var size: Long = 0
+        private set
+
+    override fun add(value: Int) {
+        val offset = (size and CHUNK_MASK).toInt()
+        if (offset == 0) chunks.add(IntArray(CHUNK_SIZE))
+        chunks[chunks.size - 1][offset] = value
+        size++
+    }
+
+    operator fun get(index: Long): Int = chunks[(index ushr CHUNK_SHIFT).toInt()][(index and CHUNK_MASK).toInt()]
+
+    override fun cursor(first: Long): LinkCursor {
+        var index = first
+        return LinkCursor { get(index++) }
+    }
+
+    companion object {
+        private const val CHUNK_SHIFT = 20
+        private const val CHUNK_SIZE = 1 shl CHUNK_SHIFT
+        private const val CHUNK_MASK = (CHUNK_SIZE - 1).toLong()
+    }
+}
+
+private class SpilledLinks(private val file: IntSpillFile) : LinkStore {
+    override val size: Long get() = file.size
+
+    override fun add(value: Int) = file.add(value)
+
+    override fun cursor(first: Long): LinkCursor {
+        val reader = file.reader(first)
+        return LinkCursor { reader.next() }
+    }
+
+    override fun close() = file.close()
+}
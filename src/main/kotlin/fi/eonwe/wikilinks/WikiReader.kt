@@ -1,19 +1,28 @@
 package fi.eonwe.wikilinks
 
 import fi.eonwe.wikilinks.leanpages.BufferWikiPage
+import fi.eonwe.wikilinks.segmentgraph.GraphDataSource
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream
 import java.io.BufferedInputStream
+import java.io.ByteArrayInputStream
 import java.io.BufferedReader
 import java.io.IOException
 import java.io.InputStream
 import java.io.InputStreamReader
+import java.io.SequenceInputStream
+import java.lang.foreign.Arena
+import java.lang.foreign.MemorySegment
 import java.nio.ByteBuffer
 import java.nio.MappedByteBuffer
 import java.nio.channels.Channels
 import java.nio.channels.FileChannel
 import java.nio.file.Path
 import java.nio.file.StandardOpenOption
+import java.util.Collections
 import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
 import kotlin.math.max
@@ -60,13 +69,18 @@ object WikiReader {
         source: CompressedSource,
         config: ProcessingConfig = defaultProcessingConfig
     ): WikiProcessor.ReadPagesResult {
-        return readSingleThreaded(source)
+        val ranges = scannedSubstreams(source, config)
+        return readRanges(source, ranges, pageAligned = false, config, WikiProcessor::buildResult)
     }
 
-    private fun readSingleThreaded(source: CompressedSource): WikiProcessor.ReadPagesResult {
+    private fun <R> readSingleThreaded(
+        source: CompressedSource,
+        config: ProcessingConfig,
+        finish: (WikiProcessor) -> R
+    ): R {
         source.openSequential().use { raw ->
-            BZip2CompressorInputStream(raw, true).use {
-                return WikiProcessor.readPagesWithStats(it)
+            BZip2CompressorInputStream(config.telemetry?.countCompressed(raw) ?: raw, true).use {
+                return WikiProcessor.ingest(it, config, finish)
             }
         }
     }
@@ -77,42 +91,151 @@ object WikiReader {
         indexSelection: IndexSelection = IndexSelection.AUTO,
         explicitIndexPath: Path? = null
     ): WikiProcessor.ReadPagesResult {
-        val ranges: List<OpenEndRange<Long>> = when (indexSelection) {
-            IndexSelection.DISABLED -> emptyList()
-            IndexSelection.EXPLICIT -> {
-                val path = explicitIndexPath ?: throw IllegalArgumentException("Explicit index path must be provided")
-                substreamRangesFromIndex(source, path)
+        return read(source, config, indexSelection, explicitIndexPath, WikiProcessor::buildResult)
+    }
+
+    /**
+     * Reads [source] like [readPagesWithStats], but with links kept on disk under [ProcessingConfig.spillDirectory]
+     * from start to end, so that the heap holds little more than the title dictionary.
+     */
+    fun readGraph(
+        source: FileCompressedSource,
+        config: ProcessingConfig,
+        indexSelection: IndexSelection = IndexSelection.AUTO,
+        explicitIndexPath: Path? = null
+    ): WikiProcessor.ReadGraphResult {
+        return read(source, config, indexSelection, explicitIndexPath, WikiProcessor.graphBuilder(config))
+    }
+
+    /**
+     * Reads [source] like [readPagesWithStats], but hands the resolved graph to [write] instead of packing it.
+     */
+    fun writeGraph(
+        source: FileCompressedSource,
+        config: ProcessingConfig,
+        indexSelection: IndexSelection = IndexSelection.AUTO,
+        explicitIndexPath: Path? = null,
+        write: (GraphDataSource) -> Unit
+    ): WikiProcessor.WriteGraphResult {
+        return read(source, config, indexSelection, explicitIndexPath, WikiProcessor.graphWriter(write))
+    }
+
+    private fun <R> read(
+        source: FileCompressedSource,
+        config: ProcessingConfig,
+        indexSelection: IndexSelection,
+        explicitIndexPath: Path?,
+        finish: (WikiProcessor) -> R
+    ): R {
+        val indexPath = when (indexSelection) {
+            IndexSelection.DISABLED -> return readSingleThreaded(source, config, finish)
+            IndexSelection.EXPLICIT -> explicitIndexPath
+                ?: throw IllegalArgumentException("Explicit index path must be provided")
+            IndexSelection.AUTO -> source.path.toSidecarIndexPath().takeIf { it.toFile().exists() }
+        }
+        // Only index ranges are known to start at a page; scanned ones may split pages between them.
+        val pageAligned = indexPath != null
+        val ranges = if (indexPath == null) scannedSubstreams(source, config) else substreamRangesFromIndex(source, indexPath)
+        val checkpointPath = config.checkpoint ?: return readRanges(source, ranges, pageAligned, config, finish)
+        if (ranges.isEmpty() || !pageAligned) {
+            System.err.printf("Checkpoints need a multistream dump with an index, reading %s without one%n", source.path)
+            return readRanges(source, ranges, pageAligned, config, finish)
+        }
+        IngestCheckpoint.open(
+            checkpointPath,
+            source.path,
+            ranges.size,
+            config.linkExtractor,
+            config.checkpointIntervalMillis
+        ).use { checkpoint ->
+            if (checkpoint.completedSubstreams > 0) {
+                System.out.printf(
+                    "Resuming from checkpoint %s: %d of %d substreams done%n",
+                    checkpointPath, checkpoint.completedSubstreams, ranges.size
+                )
             }
-            IndexSelection.AUTO -> {
-                val sidecar = source.path.toSidecarIndexPath()
-                if (!sidecar.toFile().exists()) {
-                    emptyList()
-                } else {
-                    substreamRangesFromIndex(source, sidecar)
-                }
+            ParallelSubstreamParser(source, ranges, config, firstIndex = checkpoint.completedSubstreams).use {
+                return WikiProcessor.ingest(checkpoint.chunks(it), config, finish)
             }
         }
+    }
 
+    /**
+     * Reads [ranges] as one concatenated stream, or parses each on its own when asked to and [pageAligned] says
+     * that every range starts at a page.
+     */
+    private fun <R> readRanges(
+        source: CompressedSource,
+        ranges: List<OpenEndRange<Long>>,
+        pageAligned: Boolean,
+        config: ProcessingConfig,
+        finish: (WikiProcessor) -> R
+    ): R {
         if (ranges.isEmpty()) {
-            return readSingleThreaded(source)
+            return readBlocks(source, config, finish)
         }
 
-        ParallelBzip2InputStream(source, ranges, config).use {
-            return WikiProcessor.readPagesWithStats(it)
+        if (config.parseSubstreams && !pageAligned) {
+            System.err.println("Substreams found without an index may split pages, parsing them as one stream")
+        }
+        if (config.parseSubstreams && pageAligned) {
+            ParallelSubstreamParser(source, ranges, config).use {
+                return WikiProcessor.ingest(it, config, finish)
+            }
+        }
+
+        ParallelBzip2InputStream(SubstreamParts(source, ranges), config).use {
+            return WikiProcessor.ingest(it, config, finish)
+        }
+    }
+
+    /**
+     * Decompresses the blocks of a single-stream dump in parallel. Block boundaries are not byte-aligned, so they
+     * are found with a bit-level scan of the whole file.
+     */
+    private fun <R> readBlocks(source: CompressedSource, config: ProcessingConfig, finish: (WikiProcessor) -> R): R {
+        if (config.parallelism <= 1U) {
+            return readSingleThreaded(source, config, finish)
+        }
+        return source.withSegment { data ->
+            val parts = Bzip2BlockParts.of(data, config.parallelism.toInt())
+            if (parts == null || parts.ranges.size < 2) {
+                readSingleThreaded(source, config, finish)
+            } else {
+                ParallelBzip2InputStream(parts, config).use {
+                    WikiProcessor.ingest(it, config, finish)
+                }
+            }
         }
     }
 
-    private fun substreamRangesFromIndex(source: CompressedSource, indexPath: Path): List<OpenEndRange<Long>> {
-        return try {
+    /**
+     * Locates substreams by scanning the compressed data itself. Anything that does not look like a multistream
+     * dump from its first byte on is left to the single-threaded reader.
+     */
+    private fun scannedSubstreams(source: CompressedSource, config: ProcessingConfig): List<OpenEndRange<Long>> {
+        val ranges = source.withSegment { Bzip2StreamScanner.substreamRanges(it, config.parallelism.toInt()) }
+        return if (ranges.size > 1 && ranges.first().start == 0L) ranges else emptyList()
+    }
+
+    private fun substreamRangesFromIndex(source: FileCompressedSource, indexPath: Path): List<OpenEndRange<Long>> {
+        val ranges = try {
+            IndexRangeCache.load(indexPath, source.path)?.let { return it }
             indexPath.toFile().inputStream().use { raw ->
                 BZip2CompressorInputStream(raw, true).use { decompressed ->
                     parseIndexRanges(decompressed, source.size)
                 }
             }
         } catch (t: Throwable) {
-            System.err.printf("Failed to use index %s (%s), falling back to single-threaded read%n", indexPath, t.message)
-            emptyList()
+            System.err.printf("Failed to use index %s (%s), reading without it%n", indexPath, t.message)
+            return emptyList()
         }
+        try {
+            IndexRangeCache.store(indexPath, source.path, ranges)
+        } catch (e: IOException) {
+            System.err.printf("Could not cache index offsets next to %s (%s)%n", indexPath, e.message)
+        }
+        return ranges
     }
 
     internal fun parseIndexRanges(indexInput: InputStream, compressedSize: Long): List<OpenEndRange<Long>> {
@@ -172,72 +295,83 @@ object WikiReader {
         return resolveSibling(indexName)
     }
 
-    fun generateSubstreams(source: CompressedSource): Sequence<OpenEndRange<Long>> = sequence {
-        val magic0 = 0x42 // B
-        val magic1 = 0x5A // Z
-        val magic2 = 0x68 // h
-        val blockMagic0 = 0x31 // 1
-        val blockMagic1 = 0x41 // A
-        val blockMagic2 = 0x59 // Y
-        val blockMagic3 = 0x26 // &
-        val blockMagic4 = 0x53 // S
-        val blockMagic5 = 0x59 // Y
-        var currentStart = -1L
-        var pos = 0L
-
-        source.openSequential().use { input ->
-            val rolling = IntArray(10) { -1 }
-            while (true) {
-                val b = input.read()
-                if (b < 0) break
-
-                for (i in 0 until rolling.lastIndex) {
-                    rolling[i] = rolling[i + 1]
-                }
-                rolling[rolling.lastIndex] = b
-                pos++
-
-                if (
-                    rolling[0] == magic0 &&
-                    rolling[1] == magic1 &&
-                    rolling[2] == magic2 &&
-                    rolling[3] in '1'.code..'9'.code &&
-                    rolling[4] == blockMagic0 &&
-                    rolling[5] == blockMagic1 &&
-                    rolling[6] == blockMagic2 &&
-                    rolling[7] == blockMagic3 &&
-                    rolling[8] == blockMagic4 &&
-                    rolling[9] == blockMagic5
-                ) {
-                    val streamStart = pos - 10
-                    if (currentStart >= 0) {
-                        yield(currentStart until streamStart)
-                    }
-                    currentStart = streamStart
-                }
-            }
-        }
-
-        if (currentStart >= 0 && currentStart < source.size) {
-            yield(currentStart until source.size)
-        }
+    fun generateSubstreams(
+        source: CompressedSource,
+        parallelism: Int = defaultProcessingConfig.parallelism.toInt()
+    ): Sequence<OpenEndRange<Long>> {
+        return source.withSegment { Bzip2StreamScanner.substreamRanges(it, parallelism) }.asSequence()
     }
 
     val defaultProcessingConfig = ProcessingConfig(
         parallelism = max(1, Runtime.getRuntime().availableProcessors()).toUInt(),
-        maxBlocksWaiting = (max(1, Runtime.getRuntime().availableProcessors()) + 2).toUInt()
+        maxBlocksWaiting = (max(1, Runtime.getRuntime().availableProcessors()) + 2).toUInt(),
+        maxBytesWaiting = (max(1, Runtime.getRuntime().availableProcessors()) + 2).toULong() * 4UL * ProcessingConfig.MIB
     )
 }
 
 data class ProcessingConfig(
     val parallelism: UInt,
-    val maxBlocksWaiting: UInt
-)
+    val maxBlocksWaiting: UInt,
+    /**
+     * Upper bound for decompressed bytes held in memory ahead of the reader.
+     */
+    val maxBytesWaiting: ULong = 64UL * MIB,
+    /**
+     * Size of the recycled buffers substreams are decompressed into.
+     */
+    val bufferSize: UInt = MIB.toUInt(),
+    /**
+     * Parse each multistream substream on its own worker instead of feeding them all through one XML parser.
+     * Only used when substream ranges are known.
+     */
+    val parseSubstreams: Boolean = false,
+    /**
+     * Reader for pages and links in the decompressed XML.
+     */
+    val linkExtractor: WikiProcessor.LinkExtractor = WikiProcessor.LinkExtractor.BLIKI,
+    /**
+     * Where readers and workers report their progress, if anywhere.
+     */
+    val telemetry: IngestTelemetry? = null,
+    /**
+     * File to save parsed substreams to and resume from. Only multistream dumps read from a file are checkpointed;
+     * they are then always parsed substream by substream.
+     */
+    val checkpoint: Path? = null,
+    /**
+     * How often checkpointed substreams are forced to disk.
+     */
+    val checkpointIntervalMillis: Long = 60_000,
+    /**
+     * Directory for link spill and sort run files. When set, link title ids are kept on disk instead of the heap
+     * while the dump is read.
+     */
+    val spillDirectory: Path? = null,
+    /**
+     * Memory used to sort in-links before they are written out as a run, when a graph is read to disk.
+     */
+    val spillSortBytes: Long = 256L * MIB.toLong(),
+    /**
+     * Leave redirects out of the graph: links to a redirect go to the page its chain ends at, and the redirect's
+     * title is kept as an alias of that page.
+     */
+    val collapseRedirects: Boolean = false
+) {
+    companion object {
+        const val MIB: ULong = 1_048_576UL
+    }
+}
 
 interface CompressedSource {
     val size: Long
     fun openSequential(): InputStream
     fun openRange(range: OpenEndRange<Long>): InputStream
+
+    /**
+     * Runs [block] with the whole source as a memory segment that may be read from several threads. The segment
+     * must not be used after [block] returns.
+     */
+    fun <T> withSegment(block: (MemorySegment) -> T): T
 }
 
 class ByteBufferCompressedSource(private val buffer: ByteBuffer) : CompressedSource {
@@ -257,6 +391,12 @@ class ByteBufferCompressedSource(private val buffer: ByteBuffer) : CompressedSou
         copy.limit(endExclusive.toInt())
         return ByteBufferRangeInputStream(copy.slice())
     }
+
+    override fun <T> withSegment(block: (MemorySegment) -> T): T {
+        val copy = buffer.asReadOnlyBuffer()
+        copy.position(0)
+        return block(MemorySegment.ofBuffer(copy))
+    }
 }
 
 class FileCompressedSource(val path: Path) : CompressedSource {
@@ -281,6 +421,14 @@ class FileCompressedSource(val path: Path) : CompressedSource {
         }
         return BufferedInputStream(FileChannelRangeInputStream(channel, start, endExclusive - start))
     }
+
+    override fun <T> withSegment(block: (MemorySegment) -> T): T {
+        FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+            Arena.ofShared().use { arena ->
+                return block(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena))
+            }
+        }
+    }
 }
 
 private class ByteBufferRangeInputStream(private val buffer: ByteBuffer) : InputStream() {
@@ -337,50 +485,85 @@ private class FileChannelRangeInputStream(
     }
 }
 
-private class ParallelBzip2InputStream(
+/**
+ * Independently decompressible parts of a bzip2 source, in output order.
+ */
+internal interface Bzip2Parts {
+    /**
+     * What a part is called in error messages.
+     */
+    val partName: String
+    val ranges: List<OpenEndRange<Long>>
+
+    fun open(range: OpenEndRange<Long>): InputStream
+
+    /**
+     * How many bytes of the compressed file [range] spans.
+     */
+    fun compressedBytes(range: OpenEndRange<Long>): Long = range.endExclusive - range.start
+
+    /**
+     * A range reaching over the boundary that ends [range], to retry with when [range] failed before producing any
+     * output. Null when the boundary is known to be real.
+     */
+    fun widen(range: OpenEndRange<Long>): OpenEndRange<Long>? = null
+}
+
+/**
+ * The byte ranges of a multistream file, each a complete bzip2 stream.
+ */
+private class SubstreamParts(
     private val source: CompressedSource,
-    private val substreams: List<OpenEndRange<Long>>,
+    override val ranges: List<OpenEndRange<Long>>
+) : Bzip2Parts {
+    override val partName: String = "substream"
+
+    override fun open(range: OpenEndRange<Long>): InputStream = BZip2CompressorInputStream(source.openRange(range), true)
+}
+
+/**
+ * Decompresses substreams on virtual threads into pooled fixed-size buffers and reads them back in order.
+ *
+ * Each dispatched substream gets its own handoff queue; the reader keeps the in-flight queues in a ring ordered by
+ * substream index, so workers only ever contend with the reader on the substream they are filling. The bytes
+ * waiting to be read are bounded by [ProcessingConfig.maxBytesWaiting] regardless of how large the substreams are.
+ */
+internal class ParallelBzip2InputStream(
+    private val parts: Bzip2Parts,
     config: ProcessingConfig
 ) : InputStream() {
+    private val telemetry = config.telemetry
+    private val substreams = parts.ranges
     private val windowSize = max(1, config.maxBlocksWaiting.toInt())
     private val workerCount = minOf(max(1, config.parallelism.toInt()), substreams.size)
-    private val jobs = ArrayBlockingQueue<Int>(windowSize)
-    private val chunkBuffer = BlockingOrderedChunkBuffer(windowSize)
+    private val bufferSize = config.bufferSize.toInt().coerceAtLeast(MIN_BUFFER_SIZE)
+    private val pool = DecompressionBufferPool(
+        bufferSize = bufferSize,
+        bufferCount = (config.maxBytesWaiting / bufferSize.toULong()).toLong().coerceIn(2L, Int.MAX_VALUE.toLong()).toInt()
+    )
+    private val jobs = ArrayBlockingQueue<DecompressedSubstream>(windowSize)
+    private val inFlight = ArrayDeque<DecompressedSubstream>(windowSize)
     private val workers: List<Thread>
 
     private var nextToDispatch = 0
-    private var nextToRead = 0
     private var currentChunk: ByteArray? = null
+    private var currentLength = 0
     private var currentOffset = 0
-    @Volatile
+    private var coveredUntil = Long.MIN_VALUE
     private var closed = false
-    @Volatile
-    private var failure: Throwable? = null
 
     init {
+        telemetry?.watchBuffers(pool.capacity) { pool.inUse() }
         workers = (0..<workerCount).map {
             Thread.ofVirtual().unstarted {
                 try {
                     while (!Thread.currentThread().isInterrupted) {
-                        val index = jobs.take()
-                        val range = substreams[index]
-                        try {
-                            val bytes = source.openRange(range).use { raw ->
-                                BZip2CompressorInputStream(raw, true).use { it.readAllBytes() }
-                            }
-                            if (!chunkBuffer.put(index, bytes)) return@unstarted
-                        } catch (_: InterruptedException) {
-                            return@unstarted
-                        } catch (t: Throwable) {
-                            if (failure == null) {
-                                failure = IOException(
-                                    "Failed to decompress substream index=$index range=[${range.start}, ${range.endExclusive})",
-                                    t
-                                )
-                            }
-                            chunkBuffer.close()
-                            return@unstarted
-                        }
+                        val waitStart = System.nanoTime()
+                        val job = jobs.take()
+                        val workStart = System.nanoTime()
+                        telemetry?.addWorkerIdle(workStart - waitStart)
+                        val blocked = decompress(job)
+                        telemetry?.addWorkerBusy(System.nanoTime() - workStart - blocked)
                     }
                 } catch (_: InterruptedException) {
                     return@unstarted
@@ -391,6 +574,55 @@ private class ParallelBzip2InputStream(
         dispatchMore()
     }
 
+    /**
+     * @return nanoseconds spent waiting for free buffers
+     */
+    private fun decompress(job: DecompressedSubstream): Long {
+        var range = job.range
+        var blocked = 0L
+        while (true) {
+            try {
+                parts.open(range).use { input ->
+                    while (true) {
+                        val acquireStart = System.nanoTime()
+                        val buffer = pool.acquire(job.index)
+                        blocked += System.nanoTime() - acquireStart
+                        val read = try {
+                            input.readNBytes(buffer, 0, buffer.size)
+                        } catch (t: Throwable) {
+                            pool.release(buffer)
+                            throw t
+                        }
+                        if (read > 0) {
+                            job.publish(buffer, read)
+                        } else {
+                            pool.release(buffer)
+                        }
+                        if (read < buffer.size) break
+                    }
+                }
+                job.finish(range.endExclusive)
+                telemetry?.addWorkerBlocked(blocked)
+                return blocked
+            } catch (e: InterruptedException) {
+                throw e
+            } catch (t: Throwable) {
+                val wider = if (job.hasPublished) null else parts.widen(range)
+                if (wider == null) {
+                    job.fail(
+                        IOException(
+                            "Failed to decompress ${parts.partName} index=${job.index} range=[${range.start}, ${range.endExclusive})",
+                            t
+                        )
+                    )
+                    telemetry?.addWorkerBlocked(blocked)
+                    return blocked
+                }
+                range = wider
+            }
+        }
+    }
+
     override fun read(): Int {
         if (!ensureChunk()) return -1
         val b = currentChunk!![currentOffset].toInt() and 0xFF
@@ -408,7 +640,7 @@ private class ParallelBzip2InputStream(
         while (remaining > 0) {
             if (!ensureChunk()) break
             val chunk = currentChunk!!
-            val available = chunk.size - currentOffset
+            val available = currentLength - currentOffset
             val toCopy = minOf(available, remaining)
             chunk.copyInto(b, destinationOffset = offset, startIndex = currentOffset, endIndex = currentOffset + toCopy)
             currentOffset += toCopy
@@ -422,7 +654,6 @@ private class ParallelBzip2InputStream(
     override fun close() {
         if (closed) return
         closed = true
-        chunkBuffer.close()
         workers.forEach { it.interrupt() }
         workers.forEach { it.join() }
     }
@@ -430,89 +661,400 @@ private class ParallelBzip2InputStream(
     private fun ensureChunk(): Boolean {
         while (true) {
             if (closed) return false
-            failure?.let { throw IOException("Parallel bzip2 decompression failed", it) }
-
             val chunk = currentChunk
-            if (chunk != null && currentOffset < chunk.size) {
-                return true
+            if (chunk != null) {
+                if (currentOffset < currentLength) return true
+                pool.release(chunk)
+                currentChunk = null
             }
-            currentChunk = null
-            currentOffset = 0
 
-            if (nextToRead >= substreams.size) {
-                return false
+            val head = inFlight.firstOrNull() ?: return false
+            if (head.range.start < coveredUntil) {
+                // Its start was a false boundary that the previous part has already been decompressed across.
+                head.discard { pool.release(it) }
+                inFlight.removeFirst()
+                pool.advanceHead(head.index + 1)
+                dispatchMore()
+                continue
             }
-
-            dispatchMore()
-            val next = chunkBuffer.take(nextToRead)
+            val next = head.next()
             if (next == null) {
-                if (closed) return false
-                failure?.let { throw IOException("Parallel bzip2 decompression failed", it) }
+                telemetry?.addCompressedBytes(parts.compressedBytes(head.range.start until head.coveredUntil))
+                coveredUntil = head.coveredUntil
+                inFlight.removeFirst()
+                pool.advanceHead(head.index + 1)
+                dispatchMore()
                 continue
             }
             currentChunk = next
-            nextToRead++
-            dispatchMore()
-            return true
+            currentLength = head.lastLength
+            currentOffset = 0
         }
     }
 
     private fun dispatchMore() {
-        while (nextToDispatch < substreams.size && nextToDispatch - nextToRead < windowSize) {
-            if (!jobs.offer(nextToDispatch)) {
+        while (nextToDispatch < substreams.size && inFlight.size < windowSize) {
+            val job = DecompressedSubstream(nextToDispatch, substreams[nextToDispatch])
+            if (!jobs.offer(job)) {
                 return
             }
+            inFlight.addLast(job)
             nextToDispatch++
         }
     }
+
+    companion object {
+        private const val MIN_BUFFER_SIZE = 4096
+    }
 }
 
-private class BlockingOrderedChunkBuffer(private val capacity: Int) {
+/**
+ * Decompressed buffers of one substream, handed from the worker filling them to the reader.
+ */
+private class DecompressedSubstream(val index: Int, val range: OpenEndRange<Long>) {
     private val lock = ReentrantLock()
     private val changed = lock.newCondition()
-    private val slotData = arrayOfNulls<ByteArray>(capacity)
-    private val slotIndex = IntArray(capacity) { SLOT_EMPTY }
-    private var closed = false
+    private val buffers = ArrayDeque<ByteArray>()
+    private val lengths = ArrayDeque<Int>()
+    private var finished = false
+    private var failure: Throwable? = null
+
+    /**
+     * Length of the buffer last returned by [next].
+     */
+    var lastLength = 0
+        private set
 
-    fun put(index: Int, data: ByteArray): Boolean {
+    /**
+     * End of the range that was actually decompressed, which may reach past [range] after a retry.
+     */
+    var coveredUntil = range.endExclusive
+        private set
+
+    /**
+     * Whether any output has been handed over. Only read by the worker filling this substream.
+     */
+    var hasPublished = false
+        private set
+
+    fun publish(buffer: ByteArray, length: Int) {
+        hasPublished = true
         lock.withLock {
-            val slot = index % capacity
-            while (!closed && slotIndex[slot] != SLOT_EMPTY) {
+            buffers.addLast(buffer)
+            lengths.addLast(length)
+            changed.signal()
+        }
+    }
+
+    fun finish(coveredUntil: Long) {
+        lock.withLock {
+            this.coveredUntil = coveredUntil
+            finished = true
+            changed.signal()
+        }
+    }
+
+    fun fail(t: Throwable) {
+        lock.withLock {
+            failure = t
+            changed.signal()
+        }
+    }
+
+    /**
+     * @return the next filled buffer, or null once the whole substream has been read
+     */
+    fun next(): ByteArray? {
+        lock.withLock {
+            while (buffers.isEmpty() && !finished && failure == null) {
                 changed.await()
             }
-            if (closed) return false
+            failure?.let { throw IOException("Parallel bzip2 decompression failed", it) }
+            val buffer = buffers.removeFirstOrNull() ?: return null
+            lastLength = lengths.removeFirst()
+            return buffer
+        }
+    }
 
-            slotData[slot] = data
-            slotIndex[slot] = index
-            changed.signalAll()
-            return true
+    /**
+     * Waits for the worker to give up on this substream, handing every buffer it filled to [release].
+     */
+    fun discard(release: (ByteArray) -> Unit) {
+        lock.withLock {
+            while (true) {
+                while (buffers.isNotEmpty()) {
+                    release(buffers.removeFirst())
+                    lengths.removeFirst()
+                }
+                if (finished || failure != null) return
+                changed.await()
+            }
         }
     }
+}
 
-    fun take(index: Int): ByteArray? {
+/**
+ * Recycles decompression buffers and caps how many exist at once. The last free buffer is reserved for the
+ * substream that is being read, so workers running ahead cannot take every buffer while the reader waits for data
+ * that nobody can decompress.
+ */
+private class DecompressionBufferPool(private val bufferSize: Int, private val bufferCount: Int) {
+    private val lock = ReentrantLock()
+    private val changed = lock.newCondition()
+    private val free = ArrayDeque<ByteArray>()
+    private var allocated = 0
+    private var headIndex = 0
+
+    val capacity: Int get() = bufferCount
+
+    fun inUse(): Int = lock.withLock { allocated - free.size }
+
+    fun acquire(substreamIndex: Int): ByteArray {
         lock.withLock {
-            val slot = index % capacity
-            while (!closed && slotIndex[slot] != index) {
+            while (true) {
+                val freeCount = free.size + (bufferCount - allocated)
+                val reserved = if (substreamIndex == headIndex) 0 else HEAD_RESERVE
+                if (freeCount > reserved) {
+                    return free.removeLastOrNull() ?: ByteArray(bufferSize).also { allocated++ }
+                }
                 changed.await()
             }
-            if (slotIndex[slot] != index) return null
+        }
+    }
 
-            val data = slotData[slot] ?: error("Slot $slot marked ready without data")
-            slotData[slot] = null
-            slotIndex[slot] = SLOT_EMPTY
+    fun release(buffer: ByteArray) {
+        lock.withLock {
+            free.addLast(buffer)
             changed.signalAll()
-            return data
         }
     }
 
-    fun close() {
+    fun advanceHead(substreamIndex: Int) {
         lock.withLock {
-            closed = true
+            headIndex = substreamIndex
             changed.signalAll()
         }
     }
 
     companion object {
-        private const val SLOT_EMPTY = -1
+        private const val HEAD_RESERVE = 1
+    }
+}
+
+/**
+ * Decompresses and parses every substream on its own worker. This relies on multistream dumps keeping whole
+ * `<page>` elements inside a single substream: each chunk is wrapped in the dump header (the part before the
+ * first `<page>`, which carries the siteinfo) and a closing root tag, so it parses as a small dump of its own.
+ */
+private class ParallelSubstreamParser(
+    private val source: CompressedSource,
+    substreams: List<OpenEndRange<Long>>,
+    private val config: ProcessingConfig,
+    firstIndex: Int = 0
+) : Iterator<List<WikiProcessor.ParsedPage>>, AutoCloseable {
+    @Volatile
+    private var firstChunk: ByteArray? = decompress(substreams[0])
+    private val header = headerOf(firstChunk!!).also {
+        // When resuming, the first substream is only needed for its header.
+        if (firstIndex > 0) firstChunk = null
+    }
+    private val workers = OrderedSubstreamWorkers(substreams, config, firstIndex) { index, range ->
+        val bytes = if (index == 0) {
+            firstChunk!!.also { firstChunk = null }
+        } else {
+            decompress(range)
+        }
+        parseChunk(index, bytes)
+    }
+    private var next: List<WikiProcessor.ParsedPage>? = null
+
+    override fun hasNext(): Boolean {
+        if (next == null) {
+            next = workers.take()
+        }
+        return next != null
+    }
+
+    override fun next(): List<WikiProcessor.ParsedPage> {
+        if (!hasNext()) throw NoSuchElementException("No more substreams")
+        return next!!.also { next = null }
+    }
+
+    override fun close() {
+        workers.close()
+    }
+
+    private fun decompress(range: OpenEndRange<Long>): ByteArray {
+        val bytes = source.openRange(range).use { raw ->
+            BZip2CompressorInputStream(raw, true).use { it.readAllBytes() }
+        }
+        config.telemetry?.let {
+            it.addCompressedBytes(range.endExclusive - range.start)
+            it.addDecompressedBytes(bytes.size.toLong())
+        }
+        return bytes
+    }
+
+    /**
+     * Parses the pages of substream [index]. Apart from the dump header in the first one, a substream must hold
+     * nothing but whole pages, whitespace and the end of the dump, so that no page is lost split between two.
+     */
+    private fun parseChunk(index: Int, bytes: ByteArray): List<WikiProcessor.ParsedPage> {
+        val start = bytes.indexOf(PAGE_START, 0).let { if (it < 0) bytes.size else it }
+        val lastEnd = bytes.lastIndexOf(PAGE_END)
+        val end = if (lastEnd < start) start else lastEnd + PAGE_END.size
+        if ((index > 0 && !isOutsidePages(bytes, 0, start)) || !isOutsidePages(bytes, end, bytes.size)) {
+            throw IOException("Substream $index has bytes outside complete <page> elements")
+        }
+        if (start == end) return emptyList()
+        val pages = mutableListOf<WikiProcessor.ParsedPage>()
+        val input = SequenceInputStream(
+            Collections.enumeration(
+                listOf(
+                    ByteArrayInputStream(header),
+                    ByteArrayInputStream(bytes, start, end - start),
+                    ByteArrayInputStream(DUMP_END)
+                )
+            )
+        )
+        WikiProcessor.parsePages(input, config.linkExtractor) { pages.add(it) }
+        return pages
+    }
+
+    companion object {
+        private val PAGE_START = "<page>".toByteArray(UTF_8)
+        private val PAGE_END = "</page>".toByteArray(UTF_8)
+        private val DUMP_END = "</mediawiki>".toByteArray(UTF_8)
+
+        /**
+         * Whether bytes [from] until [to] are whitespace, possibly around the end of the dump.
+         */
+        private fun isOutsidePages(bytes: ByteArray, from: Int, to: Int): Boolean {
+            var i = from
+            while (i < to && bytes[i].toInt().toChar().isWhitespace()) i++
+            if (i + DUMP_END.size <= to && DUMP_END.indices.all { bytes[i + it] == DUMP_END[it] }) i += DUMP_END.size
+            while (i < to && bytes[i].toInt().toChar().isWhitespace()) i++
+            return i == to
+        }
+
+        private fun headerOf(firstChunk: ByteArray): ByteArray {
+            var end = firstChunk.indexOf(PAGE_START, 0)
+            if (end < 0) end = firstChunk.indexOf(DUMP_END, 0)
+            if (end < 0) end = firstChunk.size
+            return firstChunk.copyOf(end)
+        }
+
+        private fun ByteArray.indexOf(needle: ByteArray, from: Int): Int {
+            outer@ for (i in from..size - needle.size) {
+                for (j in needle.indices) {
+                    if (this[i + j] != needle[j]) continue@outer
+                }
+                return i
+            }
+            return -1
+        }
+
+        private fun ByteArray.lastIndexOf(needle: ByteArray): Int {
+            outer@ for (i in size - needle.size downTo 0) {
+                for (j in needle.indices) {
+                    if (this[i + j] != needle[j]) continue@outer
+                }
+                return i
+            }
+            return -1
+        }
+    }
+}
+
+/**
+ * Runs [work] for each substream from [firstIndex] on, on virtual threads, and hands the results back in substream
+ * order. At most `maxBlocksWaiting` substreams are dispatched ahead of the one being consumed.
+ */
+private class OrderedSubstreamWorkers<T : Any>(
+    private val substreams: List<OpenEndRange<Long>>,
+    config: ProcessingConfig,
+    firstIndex: Int,
+    private val work: (index: Int, range: OpenEndRange<Long>) -> T
+) : AutoCloseable {
+    private class Job<T>(val index: Int, val result: CompletableFuture<T>)
+
+    private val windowSize = max(1, config.maxBlocksWaiting.toInt())
+    private val workerCount = minOf(max(1, config.parallelism.toInt()), substreams.size)
+    private val jobs = ArrayBlockingQueue<Job<T>>(windowSize)
+    private val inFlight = ArrayDeque<Job<T>>(windowSize)
+    private val inFlightCount = AtomicInteger()
+    private val telemetry = config.telemetry
+    private val workers: List<Thread>
+
+    private var nextToDispatch = firstIndex
+    private var closed = false
+
+    init {
+        telemetry?.watchBuffers(windowSize) { inFlightCount.get() }
+        workers = (0..<workerCount).map {
+            Thread.ofVirtual().unstarted {
+                try {
+                    while (!Thread.currentThread().isInterrupted) {
+                        val waitStart = System.nanoTime()
+                        val job = jobs.take()
+                        val workStart = System.nanoTime()
+                        telemetry?.addWorkerIdle(workStart - waitStart)
+                        val range = substreams[job.index]
+                        try {
+                            job.result.complete(work(job.index, range))
+                        } catch (e: InterruptedException) {
+                            throw e
+                        } catch (t: Throwable) {
+                            job.result.completeExceptionally(
+                                IOException(
+                                    "Failed to process substream index=${job.index} range=[${range.start}, ${range.endExclusive})",
+                                    t
+                                )
+                            )
+                        } finally {
+                            telemetry?.addWorkerBusy(System.nanoTime() - workStart)
+                        }
+                    }
+                } catch (_: InterruptedException) {
+                    return@unstarted
+                }
+            }
+        }
+        workers.forEach { it.start() }
+        dispatchMore()
+    }
+
+    /**
+     * @return the result for the next substream in order, or null when all substreams have been consumed
+     */
+    fun take(): T? {
+        if (closed) return null
+        val job = inFlight.removeFirstOrNull() ?: return null
+        dispatchMore()
+        inFlightCount.set(inFlight.size)
+        try {
+            return job.result.get()
+        } catch (e: ExecutionException) {
+            throw IOException("Parallel substream processing failed", e.cause)
+        }
+    }
+
+    override fun close() {
+        if (closed) return
+        closed = true
+        workers.forEach { it.interrupt() }
+        workers.forEach { it.join() }
+    }
+
+    private fun dispatchMore() {
+        while (nextToDispatch < substreams.size && inFlight.size < windowSize) {
+            val job = Job<T>(nextToDispatch, CompletableFuture())
+            if (!jobs.offer(job)) {
+                return
+            }
+            inFlight.addLast(job)
+            inFlightCount.set(inFlight.size)
+            nextToDispatch++
+        }
     }
 }
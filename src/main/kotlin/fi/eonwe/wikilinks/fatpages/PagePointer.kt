@@ -1,9 +1,11 @@
 package fi.eonwe.wikilinks.fatpages
 
+import java.util.concurrent.atomic.AtomicInteger
+
 /**
  */
 class PagePointer(var page: WikiPage?) {
-    val id: Int = counter++
+    val id: Int = counter.getAndIncrement()
 
     override fun hashCode(): Int {
         return id
@@ -14,6 +16,6 @@ class PagePointer(var page: WikiPage?) {
     }
 
     companion object {
-        private var counter = 0
+        private val counter = AtomicInteger()
     }
 }
\ No newline at end of file
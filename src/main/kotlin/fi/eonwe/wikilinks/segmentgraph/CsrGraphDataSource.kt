@@ -0,0 +1,168 @@
+package fi.eonwe.wikilinks.segmentgraph
+
+import fi.eonwe.wikilinks.utils.ExternalLongSorter
+import fi.eonwe.wikilinks.utils.IntSpillFile
+import java.nio.file.Path
+import java.util.Arrays
+
+/**
+ * A graph whose links live on disk in compressed sparse rows: out-links and in-links are flat int files, and only
+ * node ids, redirect flags and row offsets are kept in memory. Titles come from [titles], typically a dictionary
+ * that is already in memory.
+ *
+ * Nodes are in ascending id order. In-links of a node are in ascending source id order.
+ */
+class CsrGraphDataSource private constructor(
+    private val ids: IntArray,
+    private val redirects: BooleanArray,
+    private val titles: (Int) -> String,
+    private val outOffsets: LongArray,
+    private val outLinks: IntSpillFile,
+    private val inOffsets: LongArray,
+    private val inLinkFile: IntSpillFile,
+    private val aliasIds: IntArray,
+    private val aliasTargets: IntArray
+) : GraphDataSource {
+    override val nodeCount: Int
+        get() = ids.size
+
+    val edgeCount: Long
+        get() = outLinks.size
+
+    override fun titleOf(id: Int): String? {
+        return if (Arrays.binarySearch(ids, id) < 0) null else titles(id)
+    }
+
+    override fun forEachNode(consumer: (NodeRecord) -> Unit) {
+        val reader = outLinks.reader()
+        for (i in ids.indices) {
+            val links = IntArray((outOffsets[i + 1] - outOffsets[i]).toInt()) { reader.next() }
+            consumer(NodeRecord(id = ids[i], title = titles(ids[i]), isRedirect = redirects[i], outLinks = links))
+        }
+    }
+
+    override val inLinks: InLinkSource = InLinkSource { consumer ->
+        val reader = inLinkFile.reader()
+        for (i in ids.indices) {
+            consumer(ids[i], IntArray((inOffsets[i + 1] - inOffsets[i]).toInt()) { reader.next() })
+        }
+    }
+
+    override fun forEachAlias(consumer: (TitleAlias) -> Unit) {
+        for (i in aliasIds.indices) consumer(TitleAlias(titles(aliasIds[i]), aliasTargets[i]))
+    }
+
+    override fun close() {
+        outLinks.close()
+        inLinkFile.close()
+    }
+
+    /**
+     * Collects nodes in ascending id order. Out-links are written straight to their file; in-links are sorted
+     * through run files of at most [sortBufferBytes] each.
+     */
+    class Builder(private val directory: Path, sortBufferBytes: Long) : AutoCloseable {
+        private var ids = IntArray(1024)
+        private var redirects = BooleanArray(ids.size)
+        private var outOffsets = LongArray(ids.size + 1)
+        private var count = 0
+        private var aliasIds = IntArray(0)
+        private var aliasTargets = IntArray(0)
+        private var aliasCount = 0
+        private val outLinks = IntSpillFile(directory, "out-links-")
+        private val inPairs = ExternalLongSorter(
+            directory,
+            (sortBufferBytes / Long.SIZE_BYTES).coerceAtMost(MAX_SORT_BUFFER_LONGS).toInt()
+        )
+        private var built = false
+
+        /**
+         * Adds node [id] with the first [linkCount] ids of [links] as its out-links. Ids must be added in
+         * ascending order, and link targets must be added as nodes before [build].
+         */
+        fun add(id: Int, isRedirect: Boolean, links: IntArray, linkCount: Int) {
+            require(count == 0 || id > ids[count - 1]) { "Node $id added after ${ids[count - 1]}" }
+            if (count == ids.size) {
+                val capacity = (ids.size.toLong() * 3 / 2).coerceAtMost(Int.MAX_VALUE - 8L).toInt()
+                ids = ids.copyOf(capacity)
+                redirects = redirects.copyOf(capacity)
+                outOffsets = outOffsets.copyOf(capacity + 1)
+            }
+            ids[count] = id
+            redirects[count] = isRedirect
+            for (i in 0 until linkCount) {
+                outLinks.add(links[i])
+                inPairs.add((links[i].toLong() shl 32) or id.toLong())
+            }
+            count++
+            outOffsets[count] = outLinks.size
+        }
+
+        /**
+         * Adds the title of [id], which is not a node, as an alias of node [target]. Titles are looked up by [id]
+         * like those of nodes.
+         */
+        fun addAlias(id: Int, target: Int) {
+            if (aliasCount == aliasIds.size) {
+                val capacity = (aliasIds.size.toLong() * 3 / 2 + 16).coerceAtMost(Int.MAX_VALUE - 8L).toInt()
+                aliasIds = aliasIds.copyOf(capacity)
+                aliasTargets = aliasTargets.copyOf(capacity)
+            }
+            aliasIds[aliasCount] = id
+            aliasTargets[aliasCount++] = target
+        }
+
+        fun build(titles: (Int) -> String): CsrGraphDataSource {
+            check(!built) { "Graph already built" }
+            built = true
+            val nodeIds = ids.copyOf(count)
+            val inOffsets = LongArray(count + 1)
+            val inLinks = IntSpillFile(directory, "in-links-")
+            try {
+                var node = 0
+                inPairs.forEachSorted { pair ->
+                    val target = (pair ushr 32).toInt()
+                    while (node < count && nodeIds[node] < target) {
+                        inOffsets[++node] = inLinks.size
+                    }
+                    require(node < count && nodeIds[node] == target) { "Link target $target is not a node" }
+                    inLinks.add(pair.toInt())
+                }
+                while (node < count) {
+                    inOffsets[++node] = inLinks.size
+                }
+            } catch (e: Exception) {
+                inLinks.close()
+                outLinks.close()
+                throw e
+            } finally {
+                inPairs.close()
+            }
+            return CsrGraphDataSource(
+                ids = nodeIds,
+                redirects = redirects.copyOf(count),
+                titles = titles,
+                outOffsets = outOffsets.copyOf(count + 1),
+                outLinks = outLinks,
+                inOffsets = inOffsets,
+                inLinkFile = inLinks,
+                aliasIds = aliasIds.copyOf(aliasCount),
+                aliasTargets = aliasTargets.copyOf(aliasCount)
+            )
+        }
+
+        /**
+         * Deletes the files of a graph that was never built.
+         */
+        override fun close() {
+            if (!built) {
+                outLinks.close()
+                inPairs.close()
+            }
+        }
+
+        private companion object {
+            const val MAX_SORT_BUFFER_LONGS = Int.MAX_VALUE - 8L
+        }
+    }
+}
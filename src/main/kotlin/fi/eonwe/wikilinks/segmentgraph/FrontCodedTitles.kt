@@ -0,0 +1,145 @@
+package fi.eonwe.wikilinks.segmentgraph
+
+import java.lang.foreign.MemorySegment
+import java.lang.foreign.ValueLayout
+import java.nio.ByteOrder
+
+/**
+ * [count] titles in unsigned byte order, front coded in buckets of [BUCKET_SIZE].
+ *
+ * [keys] starts with the byte offset of every bucket, counted from the end of the offsets. The first title of a
+ * bucket is stored whole, as a varint length and its bytes; every other one as a varint of how many bytes it
+ * shares with the title before it, a varint of how many bytes follow those and then the bytes. Lookups search the
+ * first titles of the buckets and decode one bucket from its start.
+ */
+internal class FrontCodedTitles(private val keys: MemorySegment, val count: Int) {
+    private val bucketCount = (count + BUCKET_SIZE - 1) / BUCKET_SIZE
+    private val dataStart = bucketCount.toLong() * Long.SIZE_BYTES
+
+    fun titleAt(position: Int): String {
+        val cursor = Cursor(position / BUCKET_SIZE)
+        while (cursor.position <= position) cursor.next()
+        return cursor.title()
+    }
+
+    /**
+     * @return the position of [query], or -1 if it is not one of the titles
+     */
+    fun indexOf(query: ByteArray): Int {
+        val position = lowerBound(query)
+        if (position == count) return -1
+        val cursor = Cursor(position / BUCKET_SIZE)
+        while (cursor.position <= position) cursor.next()
+        return if (cursor.compareTo(query) == 0) position else -1
+    }
+
+    /**
+     * Up to [maxMatches] titles starting with [prefix], in order.
+     */
+    fun titlesStartingWith(prefix: ByteArray, maxMatches: Int): List<String> {
+        val start = lowerBound(prefix)
+        if (start == count) return emptyList()
+        val out = ArrayList<String>(minOf(maxMatches, 16))
+        val cursor = Cursor(start / BUCKET_SIZE)
+        while (cursor.position < start) cursor.next()
+        while (cursor.position < count && out.size < maxMatches) {
+            cursor.next()
+            if (!cursor.startsWith(prefix)) break
+            out.add(cursor.title())
+        }
+        return out
+    }
+
+    /**
+     * Calls [consumer] with every position and its title, in order.
+     */
+    fun forEach(consumer: (position: Int, title: String) -> Unit) {
+        if (count == 0) return
+        val cursor = Cursor(0)
+        while (cursor.position < count) {
+            cursor.next()
+            consumer(cursor.position - 1, cursor.title())
+        }
+    }
+
+    /**
+     * @return the position of the first title that is not less than [query], or [count] if there is none
+     */
+    private fun lowerBound(query: ByteArray): Int {
+        // First bucket whose first title is not less than the query; the query sorts after the bucket before it.
+        var lo = 0
+        var hi = bucketCount
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            val head = Cursor(mid)
+            head.next()
+            if (head.compareTo(query) < 0) lo = mid + 1 else hi = mid
+        }
+        if (lo == 0) return 0
+        val cursor = Cursor(lo - 1)
+        val end = minOf(lo * BUCKET_SIZE, count)
+        while (cursor.position < end) {
+            cursor.next()
+            if (cursor.compareTo(query) >= 0) return cursor.position - 1
+        }
+        return end
+    }
+
+    /**
+     * Decodes titles one after another from the start of [bucket]; [next] decodes the title at [position].
+     */
+    private inner class Cursor(bucket: Int) {
+        var position = bucket * BUCKET_SIZE
+            private set
+        private var offset = dataStart + keys.get(I64, bucket.toLong() * Long.SIZE_BYTES)
+        private var bytes = ByteArray(64)
+        private var length = 0
+
+        fun next() {
+            val shared = if (position % BUCKET_SIZE == 0) 0 else readVarint()
+            val rest = readVarint()
+            length = shared + rest
+            if (length > bytes.size) bytes = bytes.copyOf(maxOf(length, bytes.size * 2))
+            MemorySegment.copy(keys, ValueLayout.JAVA_BYTE, offset, bytes, shared, rest)
+            offset += rest
+            position++
+        }
+
+        fun title(): String = String(bytes, 0, length, Charsets.UTF_8)
+
+        fun compareTo(query: ByteArray): Int {
+            val common = minOf(length, query.size)
+            for (i in 0 until common) {
+                val difference = (bytes[i].toInt() and 0xFF) - (query[i].toInt() and 0xFF)
+                if (difference != 0) return difference
+            }
+            return length - query.size
+        }
+
+        fun startsWith(prefix: ByteArray): Boolean {
+            if (prefix.size > length) return false
+            for (i in prefix.indices) {
+                if (bytes[i] != prefix[i]) return false
+            }
+            return true
+        }
+
+        private fun readVarint(): Int {
+            var value = 0
+            var shift = 0
+            while (true) {
+                val b = keys.get(ValueLayout.JAVA_BYTE, offset++).toInt()
+                value = value or ((b and 0x7F) shl shift)
+                if (b >= 0) return value
+                shift += 7
+            }
+        }
+    }
+
+    companion object {
+        const val BUCKET_SIZE = 16
+
+        private val I64: ValueLayout.OfLong =
+            ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN) as ValueLayout.OfLong
+    }
+}
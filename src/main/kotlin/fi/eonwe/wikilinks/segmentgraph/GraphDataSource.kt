@@ -6,9 +6,30 @@ interface GraphDataSource : AutoCloseable {
     val nodeCount: Int
     fun titleOf(id: Int): String?
     fun forEachNode(consumer: (NodeRecord) -> Unit)
+
+    /**
+     * In-links of the nodes, so that writers need not sort them out of the out-links; null if the source does not
+     * list them.
+     */
+    val inLinks: InLinkSource?
+        get() = null
+
+    /**
+     * Calls [consumer] with titles that lead to a node without being one, such as collapsed redirects.
+     */
+    fun forEachAlias(consumer: (TitleAlias) -> Unit) = Unit
+
     override fun close() = Unit
 }
 
+fun interface InLinkSource {
+    /**
+     * Calls [consumer] for every node in ascending id order with the ids of the nodes linking to it, also in
+     * ascending order.
+     */
+    fun forEachInLinks(consumer: (id: Int, sources: IntArray) -> Unit)
+}
+
 data class NodeRecord(
     val id: Int,
     val title: String,
@@ -16,8 +37,19 @@ data class NodeRecord(
     val outLinks: IntArray
 )
 
-class BufferPagesGraphDataSource(private val pages: List<BufferWikiPage>) : GraphDataSource {
-    private val titleById = pages.associate { it.id to it.title }
+/**
+ * A title that finds node [id] in the name index but is not the node's own title.
+ */
+data class TitleAlias(
+    val title: String,
+    val id: Int
+)
+
+class BufferPagesGraphDataSource(
+    private val pages: List<BufferWikiPage>,
+    private val aliases: List<TitleAlias> = emptyList()
+) : GraphDataSource {
+    private val titleById by lazy { pages.associate { it.id to it.title } }
 
     override val nodeCount: Int
         get() = pages.size
@@ -39,6 +71,8 @@ class BufferPagesGraphDataSource(private val pages: List<BufferWikiPage>) : Grap
             )
         }
     }
+
+    override fun forEachAlias(consumer: (TitleAlias) -> Unit) = aliases.forEach(consumer)
 }
 
 class SegmentStoreGraphDataSource(private val store: SegmentWikiGraphStore) : GraphDataSource {
@@ -57,6 +91,10 @@ class SegmentStoreGraphDataSource(private val store: SegmentWikiGraphStore) : Gr
         store.forEachNode(consumer)
     }
 
+    override fun forEachAlias(consumer: (TitleAlias) -> Unit) {
+        store.forEachAlias(consumer)
+    }
+
     override fun close() {
         store.close()
     }
@@ -0,0 +1,58 @@
+package fi.eonwe.wikilinks.segmentgraph
+
+import java.lang.foreign.FunctionDescriptor
+import java.lang.foreign.Linker
+import java.lang.foreign.MemorySegment
+import java.lang.foreign.ValueLayout
+import java.lang.invoke.MethodHandle
+
+/**
+ * Access advice for mapped memory through the C library's `posix_madvise`, looked up when first used.
+ */
+internal object MemoryAdvice {
+    private val posixMadvise: MethodHandle?
+    private val pageSize: Long
+
+    init {
+        var madvise: MethodHandle? = null
+        var size = DEFAULT_PAGE_SIZE
+        try {
+            val linker = Linker.nativeLinker()
+            val lookup = linker.defaultLookup()
+            madvise = lookup.find("posix_madvise").map {
+                linker.downcallHandle(
+                    it,
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT)
+                )
+            }.orElse(null)
+            lookup.find("getpagesize").ifPresent {
+                val getPageSize = linker.downcallHandle(it, FunctionDescriptor.of(ValueLayout.JAVA_INT))
+                size = (getPageSize.invokeWithArguments() as Int).toLong()
+            }
+        } catch (_: Throwable) {
+            // Native access is not available or not allowed; advice is then skipped.
+            madvise = null
+        }
+        posixMadvise = madvise
+        pageSize = size
+    }
+
+    /**
+     * Gives [advice] for the pages [segment] spans.
+     *
+     * @return whether the advice was taken
+     */
+    fun advise(segment: MemorySegment, advice: Int): Boolean {
+        val handle = posixMadvise ?: return false
+        if (segment.byteSize() == 0L) return true
+        val start = segment.address() and (pageSize - 1).inv()
+        val length = segment.address() + segment.byteSize() - start
+        return try {
+            handle.invokeWithArguments(MemorySegment.ofAddress(start), length, advice) as Int == 0
+        } catch (_: Throwable) {
+            false
+        }
+    }
+
+    private const val DEFAULT_PAGE_SIZE = 4096L
+}
@@ -0,0 +1,56 @@
+package fi.eonwe.wikilinks.segmentgraph
+
+/**
+ * Mapped sections of a segment graph file.
+ */
+enum class SegmentSection {
+    NODES,
+    TITLES,
+    OUT_EDGES,
+    IN_EDGES,
+    NAME_INDEX,
+    NAME_KEYS,
+    ID_INDEX
+}
+
+/**
+ * How a section is going to be read, given to the kernel as `posix_madvise` advice.
+ */
+enum class SectionAccess(internal val posixAdvice: Int) {
+    NORMAL(0),
+    RANDOM(1),
+    SEQUENTIAL(2),
+    WILL_NEED(3)
+}
+
+/**
+ * What [SegmentWikiRoutes.warmup] does: [prefault] sections are read into memory on [parallelism] threads, then
+ * [advice] is applied, and then random routes are searched in rounds of [roundQueries] until the 90th percentile
+ * latency of a round is no longer lower than that of the round before by more than [tolerance], or [maxQueries]
+ * have run.
+ */
+data class WarmupOptions(
+    val prefault: Set<SegmentSection> = SegmentSection.entries.toSet(),
+    val advice: Map<SegmentSection, SectionAccess> = mapOf(
+        SegmentSection.OUT_EDGES to SectionAccess.RANDOM,
+        SegmentSection.IN_EDGES to SectionAccess.RANDOM
+    ),
+    val parallelism: Int = Runtime.getRuntime().availableProcessors(),
+    val maxQueries: Int = 2000,
+    val roundQueries: Int = 50,
+    val tolerance: Double = 0.1
+)
+
+/**
+ * Outcome of a warmup. [advised] tells for each section given advice whether the kernel took it; it is false
+ * everywhere on platforms without `posix_madvise`.
+ */
+data class WarmupReport(
+    val prefaultedBytes: Long,
+    val prefaultMillis: Long,
+    val advised: Map<SegmentSection, Boolean>,
+    val queries: Int,
+    val queryMillis: Long,
+    val tailLatencyMicros: Long,
+    val latencyStable: Boolean
+)
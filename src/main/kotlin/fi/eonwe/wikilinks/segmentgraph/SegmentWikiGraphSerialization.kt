@@ -2,178 +2,147 @@ package fi.eonwe.wikilinks.segmentgraph
 
 import fi.eonwe.wikilinks.fatpages.WikiPageData
 import fi.eonwe.wikilinks.leanpages.BufferWikiPage
+import fi.eonwe.wikilinks.utils.ExternalLongSorter
+import java.lang.foreign.Arena
+import java.lang.foreign.MemorySegment
+import java.lang.foreign.ValueLayout
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.channels.FileChannel
+import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardOpenOption
-import kotlin.math.min
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/**
+ * Writes graphs in the segment format read by [SegmentWikiGraphStore].
+ *
+ * Nodes are streamed from the source once. Titles and out-edges go to temporary files in [tempDirectory] (the
+ * system temp directory when not given) as they arrive, and in-edges are sorted by target through run files of at
+ * most [memoryBudgetBytes] unless the source lists them itself. The heap holds a few primitive arrays per node, so
+ * edge counts beyond `Int.MAX_VALUE` are fine. The name index is sorted on [parallelism] threads.
+ *
+ * With [compressEdges], the graph is written in format version 2, where every adjacency list is sorted and stored as
+ * varint gaps instead of raw ints.
+ *
+ * With [denseLayout], the graph is written in format version 3: nodes are numbered 0 until N in id order and their
+ * metadata is kept in offset arrays, so a node's title and adjacency lists are found by indexing instead of searching
+ * the id index. Node ids read back from such a graph are these numbers rather than the ids of the source.
+ * With [frontCodeTitles] as well, titles are kept only once, in title order and front coded (see [FrontCodedTitles]),
+ * instead of once in node order and once in title order. With [bfsOrder], the dense numbers follow a breadth-first
+ * search over the out-links instead of the ids, so that nodes a route search expands together lie close together
+ * in the file.
+ */
+class SegmentWikiGraphSerialization(
+    private val tempDirectory: Path? = null,
+    private val memoryBudgetBytes: Long = DEFAULT_MEMORY_BUDGET_BYTES,
+    private val parallelism: Int = 1,
+    private val compressEdges: Boolean = false,
+    private val denseLayout: Boolean = false,
+    private val frontCodeTitles: Boolean = false,
+    private val bfsOrder: Boolean = false
+) {
+    init {
+        require(denseLayout || !frontCodeTitles) { "Front coded titles need the dense layout" }
+        require(denseLayout || !bfsOrder) { "Breadth-first order needs the dense layout" }
+    }
 
-class SegmentWikiGraphSerialization {
     fun serialize(source: GraphDataSource, channel: FileChannel) {
-        val records = buildList(source.nodeCount) {
-            source.forEachNode { node ->
-                add(
-                    PageRecord(
-                        id = node.id,
-                        title = node.title,
-                        isRedirect = node.isRedirect,
-                        links = node.outLinks
-                    )
-                )
-            }
-        }
-        serializeRecords(records, channel)
+        val directory = tempDirectory ?: Path.of(System.getProperty("java.io.tmpdir"))
+        NodeTable(directory, source.nodeCount, sortInLinks = source.inLinks == null).use { table ->
+            source.forEachNode { table.add(it) }
+            source.forEachAlias { table.addAlias(it) }
+            require(table.count > 0) { "Cannot serialize empty graph" }
+            table.finish()
+            table.sortNames()
+            if (denseLayout) writeDenseGraph(table, source, channel) else writeGraph(table, source, channel)
+        }
     }
 
     fun serialize(pages: Collection<BufferWikiPage>, channel: FileChannel) {
-        val records = pages.asSequence()
-            .map { page ->
-                val links = IntArray(page.linkCount)
-                var i = 0
-                page.forEachLink { target ->
-                    links[i++] = target
-                }
-                PageRecord(
-                    id = page.id,
-                    title = page.title,
-                    isRedirect = page.isRedirect,
-                    links = links
-                )
-            }
-            .toList()
-        serializeRecords(records, channel)
+        serialize(BufferPagesGraphDataSource(pages.toList()), channel)
     }
 
     fun serializeFatPages(pages: Collection<WikiPageData>, channel: FileChannel) {
-        val records = pages.asSequence()
-            .map { page ->
-                val links = page.links.asSequence()
-                    .mapNotNull { ptr -> ptr.page?.id() }
-                    .distinct()
-                    .toList()
-                    .toIntArray()
-                PageRecord(
-                    id = page.id,
-                    title = page.title,
-                    isRedirect = false,
-                    links = links
-                )
-            }
-            .toList()
-        serializeRecords(records, channel)
-    }
+        val source = object : GraphDataSource {
+            override val nodeCount: Int
+                get() = pages.size
 
-    private fun serializeRecords(recordsIn: List<PageRecord>, channel: FileChannel) {
-        require(recordsIn.isNotEmpty()) { "Cannot serialize empty graph" }
-        val records = recordsIn.sortedBy { it.id }
-        val nodeCount = records.size
-        val idToRank = buildMap(nodeCount) {
-            records.forEachIndexed { rank, record ->
-                put(record.id, rank)
-            }
-        }
+            override fun titleOf(id: Int): String? = pages.firstOrNull { it.id == id }?.title
 
-        val titleBytesByRank = Array(nodeCount) { i -> records[i].title.toByteArray(Charsets.UTF_8) }
-        val titleOffsets = LongArray(nodeCount)
-        val titleLengths = IntArray(nodeCount)
-        var titlesSize = 0L
-        for (i in 0 until nodeCount) {
-            val titleBytes = titleBytesByRank[i]
-            titleOffsets[i] = titlesSize
-            titleLengths[i] = titleBytes.size
-            titlesSize += titleBytes.size.toLong()
-        }
-
-        val outDegree = IntArray(nodeCount)
-        val inDegree = IntArray(nodeCount)
-        var edgeCountOut = 0L
-        for (i in 0 until nodeCount) {
-            val links = records[i].links
-            outDegree[i] = links.size
-            edgeCountOut += links.size.toLong()
-            for (target in links) {
-                val targetRank = idToRank[target]
-                    ?: throw IllegalArgumentException("Target id $target does not exist in node set")
-                inDegree[targetRank]++
-            }
-        }
-        val edgeCountIn = edgeCountOut
-        require(edgeCountOut <= Int.MAX_VALUE.toLong()) {
-            "Too many edges to build in-memory writer buffers: $edgeCountOut"
-        }
-
-        val outStart = LongArray(nodeCount)
-        val inStart = LongArray(nodeCount)
-        run {
-            var outCursor = 0L
-            var inCursor = 0L
-            for (i in 0 until nodeCount) {
-                outStart[i] = outCursor
-                inStart[i] = inCursor
-                outCursor += outDegree[i]
-                inCursor += inDegree[i]
-            }
-        }
-
-        val outEdges = IntArray(edgeCountOut.toInt())
-        val inEdges = IntArray(edgeCountIn.toInt())
-        run {
-            var outCursor = 0
-            for (sourceRank in 0 until nodeCount) {
-                for (target in records[sourceRank].links) {
-                    outEdges[outCursor++] = target
-                }
-            }
-
-            val inWriteCursor = IntArray(nodeCount)
-            for (sourceRank in 0 until nodeCount) {
-                val sourceId = records[sourceRank].id
-                for (targetId in records[sourceRank].links) {
-                    val targetRank = idToRank[targetId]
-                        ?: throw IllegalArgumentException("Target id $targetId does not exist in node set")
-                    val index = inStart[targetRank].toInt() + inWriteCursor[targetRank]
-                    inEdges[index] = sourceId
-                    inWriteCursor[targetRank]++
+            override fun forEachNode(consumer: (NodeRecord) -> Unit) {
+                for (page in pages) {
+                    val links = page.links.asSequence()
+                        .mapNotNull { ptr -> ptr.page?.id() }
+                        .distinct()
+                        .toList()
+                        .toIntArray()
+                    consumer(NodeRecord(id = page.id, title = page.title, isRedirect = false, outLinks = links))
                 }
             }
         }
+        serialize(source, channel)
+    }
 
-        val sortedNameRanks = (0 until nodeCount).sortedWith { a, b ->
-            compareUnsignedBytes(titleBytesByRank[a], titleBytesByRank[b])
-        }
-        val nameKeyOffsets = LongArray(nodeCount)
-        val nameKeyLengths = IntArray(nodeCount)
-        var nameKeysSize = 0L
-        for ((rank, nodeRank) in sortedNameRanks.withIndex()) {
-            val bytes = titleBytesByRank[nodeRank]
-            nameKeyOffsets[rank] = nameKeysSize
-            nameKeyLengths[rank] = bytes.size
-            nameKeysSize += bytes.size.toLong()
-        }
-
-        val headerSize = SegmentWikiGraphStore.HEADER_SIZE_BYTES
-        val nodesOffset = headerSize.toLong()
+    private fun writeGraph(table: NodeTable, source: GraphDataSource, channel: FileChannel) {
+        val nodeCount = table.count
+        val edgeCount = table.edgeCount
+        val nodesOffset = SegmentWikiGraphStore.HEADER_SIZE_BYTES.toLong()
         val nodesSize = nodeCount.toLong() * SegmentWikiGraphStore.NODE_RECORD_SIZE_BYTES
         val titlesOffset = nodesOffset + nodesSize
+        val titlesSize = table.titlesSize
         val outEdgesOffset = titlesOffset + titlesSize
-        val outEdgesSize = edgeCountOut * Int.SIZE_BYTES
-        val inEdgesOffset = outEdgesOffset + outEdgesSize
-        val inEdgesSize = edgeCountIn * Int.SIZE_BYTES
-        val nameIndexOffset = inEdgesOffset + inEdgesSize
-        val nameIndexSize = nodeCount.toLong() * SegmentWikiGraphStore.NAME_RECORD_SIZE_BYTES
+        val outEdgesSize = table.outEdgesSize
+        // Compressed in-edges have no known size until they are written, so they go last.
+        val rawInEdgesSize = if (compressEdges) 0L else edgeCount * Int.SIZE_BYTES
+        val nameIndexOffset = outEdgesOffset + outEdgesSize + rawInEdgesSize
+        val nameIndexSize = table.nameCount * SegmentWikiGraphStore.NAME_RECORD_SIZE_BYTES
         val nameKeysOffset = nameIndexOffset + nameIndexSize
-        val nameKeysSizeFinal = nameKeysSize
-        val idIndexOffset = nameKeysOffset + nameKeysSizeFinal
+        val nameKeysSize = table.keysSize
+        val idIndexOffset = nameKeysOffset + nameKeysSize
         val idIndexSize = nodeCount.toLong() * SegmentWikiGraphStore.ID_RECORD_SIZE_BYTES
+        val inEdgesOffset = if (compressEdges) idIndexOffset + idIndexSize else outEdgesOffset + outEdgesSize
 
         channel.truncate(0)
-        channel.position(0)
+        // Sized up front: transferFrom copies nothing to a position past the end of the file.
+        channel.write(ByteBuffer.allocate(1), idIndexOffset + idIndexSize - 1)
+        writeSections(
+            { table.copyTitlesTo(channel, titlesOffset) },
+            { table.copyOutEdgesTo(channel, outEdgesOffset) },
+            {
+                // Node records hold in-degrees, so they wait for the in-edges.
+                ChannelWriter(channel, inEdgesOffset).use { out ->
+                    val inLinks = source.inLinks
+                    if (inLinks != null) {
+                        table.writeInEdges(inLinks, out)
+                    } else {
+                        table.writeSortedInEdges(out)
+                    }
+                }
+                require(table.inEdgeCount == edgeCount) {
+                    "Source lists ${table.inEdgeCount} in-links for $edgeCount links"
+                }
+                ChannelWriter(channel, nodesOffset).use { out -> table.writeNodes(out) }
+            },
+            { table.writeNameSections(channel, nameIndexOffset, nameKeysOffset) },
+            {
+                ChannelWriter(channel, idIndexOffset).use { out ->
+                    for (rank in 0 until nodeCount) {
+                        out.putInt(table.idOfRank(rank))
+                        out.putInt(rank)
+                    }
+                }
+            }
+        )
         writeHeader(
             channel = channel,
+            version = if (compressEdges) SegmentWikiGraphStore.VERSION_COMPRESSED_EDGES else SegmentWikiGraphStore.VERSION,
+            flags = 0,
             nodeCount = nodeCount.toLong(),
-            edgeCountOut = edgeCountOut,
-            edgeCountIn = edgeCountIn,
+            edgeCountOut = edgeCount,
+            edgeCountIn = edgeCount,
             nodesOffset = nodesOffset,
             nodesSize = nodesSize,
             titlesOffset = titlesOffset,
@@ -181,45 +150,107 @@ class SegmentWikiGraphSerialization {
             outEdgesOffset = outEdgesOffset,
             outEdgesSize = outEdgesSize,
             inEdgesOffset = inEdgesOffset,
-            inEdgesSize = inEdgesSize,
+            inEdgesSize = table.inEdgesSize,
             nameIndexOffset = nameIndexOffset,
             nameIndexSize = nameIndexSize,
             nameKeysOffset = nameKeysOffset,
-            nameKeysSize = nameKeysSizeFinal,
+            nameKeysSize = nameKeysSize,
             idIndexOffset = idIndexOffset,
             idIndexSize = idIndexSize
         )
+        channel.force(true)
+    }
 
-        writeNodes(
-            channel = channel,
-            offset = nodesOffset,
-            records = records,
-            titleOffsets = titleOffsets,
-            titleLengths = titleLengths,
-            outStart = outStart,
-            outDegree = outDegree,
-            inStart = inStart,
-            inDegree = inDegree,
-            ids = records.map { it.id }.toIntArray()
+    /**
+     * Writes version 3: node arrays, titles in number order and the name sections, then out- and in-edges, whose
+     * size is only known up front when they are not compressed.
+     */
+    private fun writeDenseGraph(table: NodeTable, source: GraphDataSource, channel: FileChannel) {
+        val nodeCount = table.count
+        val edgeCount = table.edgeCount
+        val nodesOffset = SegmentWikiGraphStore.HEADER_SIZE_BYTES.toLong()
+        val nodesSize = (3L * (nodeCount + 1) + (nodeCount + 63) / 64) * Long.SIZE_BYTES
+        val titlesOffset = nodesOffset + nodesSize
+        val titlesSize = if (frontCodeTitles) 0L else table.titlesSize
+        val nameIndexOffset = titlesOffset + titlesSize
+        val nameRecordSize = if (frontCodeTitles) Int.SIZE_BYTES.toLong() else SegmentWikiGraphStore.NAME_RECORD_SIZE_BYTES
+        val nameIndexSize = table.nameCount * nameRecordSize
+        val nameKeysOffset = nameIndexOffset + nameIndexSize
+        val nameKeysSize = if (frontCodeTitles) table.frontCodedKeysSize() else table.keysSize
+        val outEdgesOffset = nameKeysOffset + nameKeysSize
+        var inEdgesOffset = 0L
+
+        channel.truncate(0)
+        writeSections(
+            {
+                if (!frontCodeTitles) ChannelWriter(channel, titlesOffset).use { out -> table.writeDenseTitles(out) }
+            },
+            {
+                if (frontCodeTitles) {
+                    table.writeFrontCodedNames(channel, nameIndexOffset, nameKeysOffset)
+                } else {
+                    table.writeNameSections(channel, nameIndexOffset, nameKeysOffset)
+                }
+            },
+            {
+                ChannelWriter(channel, outEdgesOffset).use { out -> table.writeDenseOutEdges(out) }
+                inEdgesOffset = outEdgesOffset + table.outEdgesSize
+                table.writeDenseInEdges(source.inLinks, channel, inEdgesOffset)
+                require(table.inEdgeCount == edgeCount) {
+                    "Source lists ${table.inEdgeCount} in-links for $edgeCount links"
+                }
+                ChannelWriter(channel, nodesOffset).use { out -> table.writeDenseNodes(out) }
+            }
         )
-        writeByteChunks(channel, titlesOffset, titleBytesByRank.asList())
-        writeIntArray(channel, outEdgesOffset, outEdges)
-        writeIntArray(channel, inEdgesOffset, inEdges)
-        writeNameIndex(
+        writeHeader(
             channel = channel,
-            offset = nameIndexOffset,
-            sortedNameRanks = sortedNameRanks,
-            nodeIdsByRank = records.map { it.id }.toIntArray(),
-            nameKeyOffsets = nameKeyOffsets,
-            nameKeyLengths = nameKeyLengths
+            version = SegmentWikiGraphStore.VERSION_DENSE,
+            flags = (if (compressEdges) SegmentWikiGraphStore.HEADER_FLAG_COMPRESSED_EDGES else 0) or
+                (if (frontCodeTitles) SegmentWikiGraphStore.HEADER_FLAG_FRONT_CODED_TITLES else 0),
+            nodeCount = nodeCount.toLong(),
+            edgeCountOut = edgeCount,
+            edgeCountIn = edgeCount,
+            nodesOffset = nodesOffset,
+            nodesSize = nodesSize,
+            titlesOffset = titlesOffset,
+            titlesSize = titlesSize,
+            outEdgesOffset = outEdgesOffset,
+            outEdgesSize = table.outEdgesSize,
+            inEdgesOffset = inEdgesOffset,
+            inEdgesSize = table.inEdgesSize,
+            nameIndexOffset = nameIndexOffset,
+            nameIndexSize = nameIndexSize,
+            nameKeysOffset = nameKeysOffset,
+            nameKeysSize = nameKeysSize,
+            idIndexOffset = inEdgesOffset + table.inEdgesSize,
+            idIndexSize = 0
         )
-        writeByteChunks(channel, nameKeysOffset, sortedNameRanks.map { titleBytesByRank[it] })
-        writeIdIndex(channel, idIndexOffset, records.map { it.id }.toIntArray())
         channel.force(true)
     }
 
+    /**
+     * Runs [sections] on up to [parallelism] threads. Each one writes its own range of the file through positional
+     * writes, so they need no ordering between them.
+     */
+    private fun writeSections(vararg sections: () -> Unit) {
+        if (parallelism <= 1) {
+            sections.forEach { it() }
+            return
+        }
+        Executors.newFixedThreadPool(minOf(parallelism, sections.size)).use { executor ->
+            val futures = sections.map { executor.submit(Callable { it() }) }
+            try {
+                futures.forEach { it.get() }
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+    }
+
     private fun writeHeader(
         channel: FileChannel,
+        version: Int,
+        flags: Int,
         nodeCount: Long,
         edgeCountOut: Long,
         edgeCountIn: Long,
@@ -240,8 +271,8 @@ class SegmentWikiGraphSerialization {
     ) {
         val bb = ByteBuffer.allocate(SegmentWikiGraphStore.HEADER_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN)
         bb.putLong(SegmentWikiGraphStore.MAGIC)
-        bb.putInt(SegmentWikiGraphStore.VERSION)
-        bb.putInt(0)
+        bb.putInt(version)
+        bb.putInt(flags)
         bb.putLong(nodeCount)
         bb.putLong(edgeCountOut)
         bb.putLong(edgeCountIn)
@@ -263,121 +294,689 @@ class SegmentWikiGraphSerialization {
             bb.put(0)
         }
         bb.flip()
-        channel.write(bb, 0)
+        var position = 0L
+        while (bb.hasRemaining()) {
+            position += channel.write(bb, position)
+        }
     }
 
-    private fun writeNodes(
-        channel: FileChannel,
-        offset: Long,
-        records: List<PageRecord>,
-        titleOffsets: LongArray,
-        titleLengths: IntArray,
-        outStart: LongArray,
-        outDegree: IntArray,
-        inStart: LongArray,
-        inDegree: IntArray,
-        ids: IntArray
-    ) {
-        val totalBytes = (records.size.toLong() * SegmentWikiGraphStore.NODE_RECORD_SIZE_BYTES).toInt()
-        val bb = ByteBuffer.allocate(totalBytes).order(ByteOrder.LITTLE_ENDIAN)
-        for (i in records.indices) {
-            bb.putLong(titleOffsets[i])
-            bb.putInt(titleLengths[i])
-            bb.putInt(if (records[i].isRedirect) SegmentWikiGraphStore.FLAG_REDIRECT else 0)
-            bb.putInt(ids[i])
-            bb.putInt(0)
-            bb.putLong(outStart[i])
-            bb.putInt(outDegree[i])
-            bb.putInt(0)
-            bb.putLong(inStart[i])
-            bb.putInt(inDegree[i])
-            bb.putInt(0)
+    /**
+     * Per-node state of a write, in the order nodes arrive from the source until [finish] sorts them by id.
+     * Titles and out-edges are in temporary files and stay in arrival order; node records point into them.
+     * Aliases follow the nodes in the same arrays and the same title file, but only reach the name sections.
+     * Dense layouts keep out-edges raw in the temporary file and renumber and encode them when they are written.
+     */
+    private inner class NodeTable(
+        private val directory: Path,
+        expectedCount: Int,
+        sortInLinks: Boolean
+    ) : AutoCloseable {
+        private var capacity = expectedCount.coerceIn(16, MAX_INITIAL_NODES)
+        private var ids = IntArray(capacity)
+        private var redirects = BooleanArray(capacity)
+        private var titleOffsets = LongArray(capacity)
+        private var titleLengths = IntArray(capacity)
+        private var outStarts = LongArray(capacity)
+        private var outDegrees = IntArray(capacity)
+        private var inStarts = LongArray(0)
+        private var inDegrees = IntArray(0)
+        private var sortedLinks = IntArray(64)
+        private var denseSources = IntArray(0)
+
+        /** Nodes and aliases in title order once [sortNames] has run, and where each node's title is in it. */
+        private var byName = IntArray(0)
+        private var namePositions = IntArray(0)
+        private var denseOutEdgesSize = 0L
+
+        /** Rank of every id up to the largest, for renumbering the edges of a dense layout, or null to search. */
+        private var rankById: IntArray? = null
+
+        /** Rank of every number of a dense layout and number of every rank, or null while numbers are ranks. */
+        private var rankOfNumber: IntArray? = null
+        private var numberOfRank: IntArray? = null
+
+        /** Arrival index of each node by rank, or null while nodes arrive in ascending id order. */
+        private var arrivalOfRank: IntArray? = null
+        private var ascending = true
+
+        private val titles = SpillBytes(directory, "titles-")
+        private val outEdges = SpillBytes(directory, "out-edges-")
+        private val inPairs = if (sortInLinks) {
+            ExternalLongSorter(directory, (memoryBudgetBytes / Long.SIZE_BYTES).coerceIn(1, MAX_SORT_LONGS).toInt())
+        } else {
+            null
         }
-        bb.flip()
-        channel.write(bb, offset)
-    }
 
-    private fun writeNameIndex(
-        channel: FileChannel,
-        offset: Long,
-        sortedNameRanks: List<Int>,
-        nodeIdsByRank: IntArray,
-        nameKeyOffsets: LongArray,
-        nameKeyLengths: IntArray
-    ) {
-        val totalBytes = (sortedNameRanks.size.toLong() * SegmentWikiGraphStore.NAME_RECORD_SIZE_BYTES).toInt()
-        val bb = ByteBuffer.allocate(totalBytes).order(ByteOrder.LITTLE_ENDIAN)
-        for (i in sortedNameRanks.indices) {
-            bb.putLong(nameKeyOffsets[i])
-            bb.putInt(nameKeyLengths[i])
-            bb.putInt(nodeIdsByRank[sortedNameRanks[i]])
+        var count = 0
+            private set
+        private var aliasCount = 0
+
+        /** Title bytes of the nodes, which come before those of the aliases. */
+        var titlesSize = 0L
+            private set
+        val keysSize: Long get() = titles.size
+        var edgeCount = 0L
+            private set
+        val outEdgesSize: Long get() = if (denseLayout) denseOutEdgesSize else outEdges.size
+        var inEdgeCount = 0L
+            private set
+        var inEdgesSize = 0L
+            private set
+        val nameCount: Long get() = count.toLong() + aliasCount
+
+        fun add(node: NodeRecord) {
+            check(aliasCount == 0) { "Nodes must be added before aliases" }
+            if (count == capacity) grow()
+            val arrival = count++
+            if (arrival > 0 && node.id <= ids[arrival - 1]) ascending = false
+            ids[arrival] = node.id
+            redirects[arrival] = node.isRedirect
+            putTitle(arrival, node.title)
+            titlesSize = titles.size
+            outStarts[arrival] = outEdges.size
+            outDegrees[arrival] = node.outLinks.size
+            edgeCount += node.outLinks.size
+            if (compressEdges && !denseLayout) {
+                if (node.outLinks.size > sortedLinks.size) sortedLinks = IntArray(maxOf(node.outLinks.size, sortedLinks.size * 2))
+                node.outLinks.copyInto(sortedLinks)
+                sortedLinks.sort(0, node.outLinks.size)
+                putAdjacency(outEdges.writer, node.id, sortedLinks, node.outLinks.size)
+            } else {
+                for (target in node.outLinks) outEdges.writer.putInt(target)
+            }
+            val pairs = inPairs ?: return
+            for (target in node.outLinks) {
+                pairs.add((target.toLong() shl 32) or (node.id.toLong() and 0xFFFFFFFFL))
+            }
         }
-        bb.flip()
-        channel.write(bb, offset)
-    }
 
-    private fun writeIdIndex(channel: FileChannel, offset: Long, nodeIdsByRank: IntArray) {
-        val bb = ByteBuffer.allocate((nodeIdsByRank.size.toLong() * SegmentWikiGraphStore.ID_RECORD_SIZE_BYTES).toInt())
-            .order(ByteOrder.LITTLE_ENDIAN)
-        for (rank in nodeIdsByRank.indices) {
-            bb.putInt(nodeIdsByRank[rank])
-            bb.putInt(rank)
+        fun addAlias(alias: TitleAlias) {
+            if (count + aliasCount == capacity) grow()
+            val index = count + aliasCount++
+            ids[index] = alias.id
+            putTitle(index, alias.title)
         }
-        bb.flip()
-        channel.write(bb, offset)
-    }
 
-    private fun writeByteChunks(channel: FileChannel, offset: Long, chunks: List<ByteArray>) {
-        channel.position(offset)
-        val temp = ByteBuffer.allocate(min(1 shl 20, chunks.sumOf { it.size }.coerceAtLeast(1))).order(ByteOrder.LITTLE_ENDIAN)
-        for (chunk in chunks) {
-            var chunkOffset = 0
-            while (chunkOffset < chunk.size) {
-                val toCopy = min(temp.remaining(), chunk.size - chunkOffset)
-                temp.put(chunk, chunkOffset, toCopy)
-                chunkOffset += toCopy
-                if (!temp.hasRemaining()) {
-                    temp.flip()
-                    while (temp.hasRemaining()) {
-                        channel.write(temp)
+        private fun putTitle(index: Int, title: String) {
+            val titleBytes = title.toByteArray(Charsets.UTF_8)
+            titleOffsets[index] = titles.size
+            titleLengths[index] = titleBytes.size
+            titles.writer.put(titleBytes)
+        }
+
+        /**
+         * Orders nodes by id once they and their aliases have all arrived.
+         */
+        fun finish() {
+            titles.finish()
+            outEdges.finish()
+            if (!ascending) {
+                val keys = LongArray(count) { (ids[it].toLong() shl 32) or it.toLong() }
+                keys.sort()
+                arrivalOfRank = IntArray(count) { keys[it].toInt() }
+            }
+            for (rank in 1 until count) {
+                require(idOfRank(rank) != idOfRank(rank - 1)) { "Duplicate node id ${idOfRank(rank)}" }
+            }
+            for (i in count until count + aliasCount) {
+                require(rankOf(ids[i]) >= 0) { "Alias target id ${ids[i]} does not exist in node set" }
+            }
+            inStarts = LongArray(count)
+            inDegrees = IntArray(count)
+            val maxId = idOfRank(count - 1)
+            if (denseLayout && idOfRank(0) >= 0 && maxId < DENSE_LOOKUP_SLACK + 4L * count) {
+                rankById = IntArray(maxId + 1) { -1 }.also { lookup ->
+                    for (rank in 0 until count) lookup[idOfRank(rank)] = rank
+                }
+            }
+            if (bfsOrder) numberByBfs()
+        }
+
+        /**
+         * Numbers nodes in the order a breadth-first search over out-links reaches them, starting from the node
+         * with the most in-links and, once that runs out, from the lowest rank not yet reached.
+         */
+        private fun numberByBfs() {
+            Arena.ofConfined().use { arena ->
+                val edges = outEdges.map(arena)
+                val linkedFrom = IntArray(count)
+                for (rank in 0 until count) forEachOutRank(edges, rank) { linkedFrom[it]++ }
+                var hub = 0
+                for (rank in 1 until count) if (linkedFrom[rank] > linkedFrom[hub]) hub = rank
+
+                val order = IntArray(count)
+                val numbers = IntArray(count) { -1 }
+                var reached = 0
+                var expanded = 0
+                var nextRoot = 0
+                numbers[hub] = reached
+                order[reached++] = hub
+                while (expanded < count) {
+                    if (expanded == reached) {
+                        while (numbers[nextRoot] >= 0) nextRoot++
+                        numbers[nextRoot] = reached
+                        order[reached++] = nextRoot
+                    }
+                    forEachOutRank(edges, order[expanded++]) { target ->
+                        if (numbers[target] < 0) {
+                            numbers[target] = reached
+                            order[reached++] = target
+                        }
                     }
-                    temp.clear()
                 }
+                rankOfNumber = order
+                numberOfRank = numbers
             }
         }
-        temp.flip()
-        while (temp.hasRemaining()) {
-            channel.write(temp)
+
+        private inline fun forEachOutRank(edges: MemorySegment, rank: Int, consumer: (Int) -> Unit) {
+            val i = arrival(rank)
+            for (k in 0 until outDegrees[i]) {
+                consumer(rankOfTarget(edges.get(LE_INT, outStarts[i] + k.toLong() * Int.SIZE_BYTES)))
+            }
+        }
+
+        fun idOfRank(rank: Int): Int = ids[arrival(rank)]
+
+        private fun arrival(rank: Int): Int = arrivalOfRank?.get(rank) ?: rank
+
+        /**
+         * Number of node [id] in a dense layout: its rank unless nodes are numbered in another order.
+         */
+        private fun denseIdOf(id: Int): Int = numberOf(rankOfTarget(id))
+
+        private fun numberOf(rank: Int): Int = numberOfRank?.get(rank) ?: rank
+
+        private fun rankAt(number: Int): Int = rankOfNumber?.get(number) ?: number
+
+        private fun rankOfTarget(id: Int): Int {
+            val lookup = rankById
+            val rank = if (lookup == null) rankOf(id) else if (id in lookup.indices) lookup[id] else -1
+            require(rank >= 0) { "Target id $id does not exist in node set" }
+            return rank
+        }
+
+        /**
+         * @return the rank of [id], or -1 if there is no such node
+         */
+        private fun rankOf(id: Int): Int {
+            var lo = 0
+            var hi = count - 1
+            while (lo <= hi) {
+                val mid = (lo + hi) ushr 1
+                val candidate = idOfRank(mid)
+                when {
+                    id == candidate -> return mid
+                    id < candidate -> hi = mid - 1
+                    else -> lo = mid + 1
+                }
+            }
+            return -1
+        }
+
+        fun copyTitlesTo(channel: FileChannel, position: Long) = titles.copyTo(channel, position, titlesSize)
+
+        fun copyOutEdgesTo(channel: FileChannel, position: Long) = outEdges.copyTo(channel, position, outEdges.size)
+
+        /**
+         * Merges the sorted (target, source) pairs into in-edges grouped by target rank.
+         */
+        fun writeSortedInEdges(out: ChannelWriter, encode: Boolean = compressEdges) {
+            val pairs = inPairs!!
+            val start = out.position
+            var rank = -1
+            var sources = IntArray(64)
+            var sourceCount = 0
+            pairs.forEachSorted { pair ->
+                val target = (pair ushr 32).toInt()
+                if (rank < 0 || idOfRank(rank) != target) {
+                    if (rank >= 0) putInEdges(out, start, rank, sources, sourceCount, encode)
+                    sourceCount = 0
+                    rank++
+                    while (rank < count && idOfRank(rank) < target) putInEdges(out, start, rank++, sources, 0, encode)
+                    require(rank < count && idOfRank(rank) == target) { "Target id $target does not exist in node set" }
+                }
+                if (sourceCount == sources.size) sources = sources.copyOf(sources.size * 2)
+                sources[sourceCount++] = pair.toInt()
+            }
+            if (rank >= 0) putInEdges(out, start, rank, sources, sourceCount, encode)
+            while (++rank < count) putInEdges(out, start, rank, sources, 0, encode)
+            pairs.close()
+            inEdgesSize = out.position - start
+        }
+
+        fun writeInEdges(inLinks: InLinkSource, out: ChannelWriter, encode: Boolean = compressEdges) {
+            val start = out.position
+            var rank = 0
+            inLinks.forEachInLinks { id, sources ->
+                require(rank < count && idOfRank(rank) == id) { "In-links of $id listed out of node order" }
+                putInEdges(out, start, rank++, sources, sources.size, encode)
+            }
+            inEdgesSize = out.position - start
+        }
+
+        private fun putInEdges(
+            out: ChannelWriter,
+            start: Long,
+            rank: Int,
+            sources: IntArray,
+            sourceCount: Int,
+            encode: Boolean
+        ) {
+            inStarts[rank] = out.position - start
+            inDegrees[rank] = sourceCount
+            inEdgeCount += sourceCount
+            // Only encoded when numbers follow ids, so renumbered sources stay sorted.
+            val listed = if (denseLayout) renumbered(sources, sourceCount) else sources
+            if (encode) {
+                putAdjacency(out, if (denseLayout) rank else idOfRank(rank), listed, sourceCount)
+            } else {
+                for (i in 0 until sourceCount) out.putInt(listed[i])
+            }
+        }
+
+        /**
+         * Writes the in-edges of a dense layout. Sources list them by rank, so when numbers do not follow ranks they
+         * go through a temporary file to be written again in number order.
+         */
+        fun writeDenseInEdges(inLinks: InLinkSource?, channel: FileChannel, position: Long) {
+            if (rankOfNumber == null) {
+                ChannelWriter(channel, position).use { out ->
+                    if (inLinks != null) writeInEdges(inLinks, out) else writeSortedInEdges(out)
+                }
+                return
+            }
+            SpillBytes(directory, "in-edges-").use { spill ->
+                if (inLinks != null) {
+                    writeInEdges(inLinks, spill.writer, encode = false)
+                } else {
+                    writeSortedInEdges(spill.writer, encode = false)
+                }
+                spill.finish()
+                val starts = LongArray(count)
+                Arena.ofConfined().use { arena ->
+                    val edges = spill.map(arena)
+                    ChannelWriter(channel, position).use { out ->
+                        for (number in 0 until count) {
+                            val rank = rankAt(number)
+                            val degree = inDegrees[rank]
+                            if (degree > sortedLinks.size) sortedLinks = IntArray(maxOf(degree, sortedLinks.size * 2))
+                            for (k in 0 until degree) {
+                                sortedLinks[k] = edges.get(LE_INT, inStarts[rank] + k.toLong() * Int.SIZE_BYTES)
+                            }
+                            starts[number] = out.position - position
+                            if (compressEdges) {
+                                sortedLinks.sort(0, degree)
+                                putAdjacency(out, number, sortedLinks, degree)
+                            } else {
+                                for (k in 0 until degree) out.putInt(sortedLinks[k])
+                            }
+                        }
+                        inEdgesSize = out.position - position
+                    }
+                }
+                val degrees = IntArray(count) { inDegrees[rankAt(it)] }
+                starts.copyInto(inStarts)
+                degrees.copyInto(inDegrees)
+            }
+        }
+
+        private fun renumbered(sources: IntArray, sourceCount: Int): IntArray {
+            if (sourceCount > denseSources.size) denseSources = IntArray(maxOf(sourceCount, denseSources.size * 2))
+            for (i in 0 until sourceCount) denseSources[i] = denseIdOf(sources[i])
+            return denseSources
+        }
+
+        fun writeNodes(out: ChannelWriter) {
+            // Raw edge sections are addressed by int index, compressed ones by byte offset.
+            val startUnit = if (compressEdges) 1 else Int.SIZE_BYTES
+            for (rank in 0 until count) {
+                val i = arrival(rank)
+                out.putLong(titleOffsets[i])
+                out.putInt(titleLengths[i])
+                out.putInt(if (redirects[i]) SegmentWikiGraphStore.FLAG_REDIRECT else 0)
+                out.putInt(ids[i])
+                out.putInt(0)
+                out.putLong(outStarts[i] / startUnit)
+                out.putInt(outDegrees[i])
+                out.putInt(0)
+                out.putLong(inStarts[rank] / startUnit)
+                out.putInt(inDegrees[rank])
+                out.putInt(0)
+            }
+        }
+
+        /**
+         * Writes node titles in number order.
+         */
+        fun writeDenseTitles(out: ChannelWriter) {
+            Arena.ofConfined().use { arena ->
+                val titleBytes = titles.map(arena)
+                for (number in 0 until count) {
+                    val i = arrival(rankAt(number))
+                    out.put(titleBytes, titleOffsets[i], titleLengths[i])
+                }
+            }
+        }
+
+        /**
+         * Writes out-edges in number order with their targets renumbered, keeping the start of each node's list
+         * in [outStarts] by number.
+         */
+        fun writeDenseOutEdges(out: ChannelWriter) {
+            val start = out.position
+            val starts = LongArray(count)
+            Arena.ofConfined().use { arena ->
+                val edges = outEdges.map(arena)
+                for (number in 0 until count) {
+                    val i = arrival(rankAt(number))
+                    val degree = outDegrees[i]
+                    if (degree > sortedLinks.size) sortedLinks = IntArray(maxOf(degree, sortedLinks.size * 2))
+                    for (k in 0 until degree) {
+                        sortedLinks[k] = denseIdOf(edges.get(LE_INT, outStarts[i] + k.toLong() * Int.SIZE_BYTES))
+                    }
+                    starts[number] = out.position - start
+                    if (compressEdges) {
+                        sortedLinks.sort(0, degree)
+                        putAdjacency(out, number, sortedLinks, degree)
+                    } else {
+                        for (k in 0 until degree) out.putInt(sortedLinks[k])
+                    }
+                }
+            }
+            starts.copyInto(outStarts)
+            denseOutEdgesSize = out.position - start
+        }
+
+        /**
+         * Writes the title, out-edge and in-edge offsets of every number, each followed by where the last one ends,
+         * and then the redirect bitmap. Front coded titles are referred to by their position in title order.
+         */
+        fun writeDenseNodes(out: ChannelWriter) {
+            val startUnit = if (compressEdges) 1 else Int.SIZE_BYTES
+            var titleOffset = 0L
+            for (number in 0 until count) {
+                val i = arrival(rankAt(number))
+                if (frontCodeTitles) {
+                    out.putLong(namePositions[i].toLong())
+                } else {
+                    out.putLong(titleOffset)
+                    titleOffset += titleLengths[i]
+                }
+            }
+            out.putLong(if (frontCodeTitles) nameCount else titleOffset)
+            for (number in 0 until count) out.putLong(outStarts[number] / startUnit)
+            out.putLong(denseOutEdgesSize / startUnit)
+            for (number in 0 until count) out.putLong(inStarts[number] / startUnit)
+            out.putLong(inEdgesSize / startUnit)
+            var bits = 0L
+            for (number in 0 until count) {
+                if (redirects[arrival(rankAt(number))]) bits = bits or (1L shl (number and 63))
+                if (number and 63 == 63 || number == count - 1) {
+                    out.putLong(bits)
+                    bits = 0L
+                }
+            }
+        }
+
+        /**
+         * Sorts nodes and aliases by the unsigned bytes of their titles, read from the mapped title file.
+         */
+        fun sortNames() {
+            Arena.ofShared().use { arena ->
+                byName = IntArray(count + aliasCount) { if (it < count) arrival(it) else it }
+                TitleRadixSort(titles.map(arena), titleOffsets, titleLengths).sort(byName, parallelism)
+            }
+            if (frontCodeTitles) {
+                namePositions = IntArray(count)
+                byName.forEachIndexed { position, i -> if (i < count) namePositions[i] = position }
+            }
+        }
+
+        /**
+         * Writes the name index and the titles in title order.
+         */
+        fun writeNameSections(channel: FileChannel, nameIndexOffset: Long, nameKeysOffset: Long) {
+            Arena.ofConfined().use { arena ->
+                val titleBytes = titles.map(arena)
+                ChannelWriter(channel, nameIndexOffset).use { out ->
+                    var keyOffset = 0L
+                    for (i in byName) {
+                        out.putLong(keyOffset)
+                        out.putInt(titleLengths[i])
+                        out.putInt(if (denseLayout) denseIdOf(ids[i]) else ids[i])
+                        keyOffset += titleLengths[i]
+                    }
+                }
+                ChannelWriter(channel, nameKeysOffset).use { out ->
+                    for (i in byName) {
+                        out.put(titleBytes, titleOffsets[i], titleLengths[i])
+                    }
+                }
+            }
+        }
+
+        /**
+         * Size of the front coded titles: bucket offsets, then the shared and remaining lengths and remaining bytes.
+         */
+        fun frontCodedKeysSize(): Long {
+            var size = frontCodedBucketCount() * Long.SIZE_BYTES
+            Arena.ofConfined().use { arena ->
+                forEachFrontCoded(titles.map(arena)) { position, shared ->
+                    val rest = titleLengths[byName[position]] - shared
+                    if (position % FrontCodedTitles.BUCKET_SIZE != 0) size += varintSize(shared)
+                    size += varintSize(rest) + rest
+                }
+            }
+            return size
+        }
+
+        /**
+         * Writes the node of every title as an int in title order, and the titles front coded.
+         */
+        fun writeFrontCodedNames(channel: FileChannel, nameIndexOffset: Long, nameKeysOffset: Long) {
+            ChannelWriter(channel, nameIndexOffset).use { out ->
+                for (i in byName) out.putInt(denseIdOf(ids[i]))
+            }
+            val dataStart = nameKeysOffset + frontCodedBucketCount() * Long.SIZE_BYTES
+            Arena.ofConfined().use { arena ->
+                val titleBytes = titles.map(arena)
+                ChannelWriter(channel, nameKeysOffset).use { bucketOffsets ->
+                    ChannelWriter(channel, dataStart).use { out ->
+                        forEachFrontCoded(titleBytes) { position, shared ->
+                            val i = byName[position]
+                            if (position % FrontCodedTitles.BUCKET_SIZE == 0) {
+                                bucketOffsets.putLong(out.position - dataStart)
+                            } else {
+                                out.putVarint(shared)
+                            }
+                            out.putVarint(titleLengths[i] - shared)
+                            out.put(titleBytes, titleOffsets[i] + shared, titleLengths[i] - shared)
+                        }
+                    }
+                }
+            }
+        }
+
+        private fun frontCodedBucketCount(): Long {
+            return (nameCount + FrontCodedTitles.BUCKET_SIZE - 1) / FrontCodedTitles.BUCKET_SIZE
+        }
+
+        /**
+         * Calls [consumer] with every position in title order and how many bytes its title shares with the one
+         * before it, or 0 at the start of a bucket.
+         */
+        private inline fun forEachFrontCoded(titleBytes: MemorySegment, consumer: (position: Int, shared: Int) -> Unit) {
+            for (position in byName.indices) {
+                var shared = 0
+                if (position % FrontCodedTitles.BUCKET_SIZE != 0) {
+                    val previous = byName[position - 1]
+                    val current = byName[position]
+                    val limit = minOf(titleLengths[previous], titleLengths[current])
+                    while (shared < limit &&
+                        titleBytes.get(ValueLayout.JAVA_BYTE, titleOffsets[previous] + shared) ==
+                        titleBytes.get(ValueLayout.JAVA_BYTE, titleOffsets[current] + shared)
+                    ) {
+                        shared++
+                    }
+                }
+                consumer(position, shared)
+            }
+        }
+
+        private fun grow() {
+            capacity = (capacity.toLong() * 3 / 2).coerceAtMost(Int.MAX_VALUE - 8L).toInt()
+            require(capacity > count + aliasCount) { "Too many nodes for a segment graph" }
+            ids = ids.copyOf(capacity)
+            redirects = redirects.copyOf(capacity)
+            titleOffsets = titleOffsets.copyOf(capacity)
+            titleLengths = titleLengths.copyOf(capacity)
+            outStarts = outStarts.copyOf(capacity)
+            outDegrees = outDegrees.copyOf(capacity)
+        }
+
+        override fun close() {
+            try {
+                titles.close()
+                outEdges.close()
+            } finally {
+                inPairs?.close()
+            }
         }
     }
 
-    private fun writeIntArray(channel: FileChannel, offset: Long, values: IntArray) {
-        val bb = ByteBuffer.allocate(values.size * Int.SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN)
-        for (value in values) {
-            bb.putInt(value)
+    /**
+     * Writes the first [count] ids of [sorted], which must be in ascending order, as a compressed adjacency list
+     * of node [id]: the first as its zigzag-encoded difference to [id] and the rest as gaps to the one before.
+     */
+    private fun putAdjacency(out: ChannelWriter, id: Int, sorted: IntArray, count: Int) {
+        var previous = id
+        for (i in 0 until count) {
+            val value = sorted[i]
+            if (i == 0) {
+                val difference = value - id
+                out.putVarint((difference shl 1) xor (difference shr 31))
+            } else {
+                out.putVarint(value - previous)
+            }
+            previous = value
         }
-        bb.flip()
-        channel.write(bb, offset)
     }
 
-    private fun compareUnsignedBytes(a: ByteArray, b: ByteArray): Int {
-        val minLen = min(a.size, b.size)
-        for (i in 0 until minLen) {
-            val av = a[i].toInt() and 0xFF
-            val bv = b[i].toInt() and 0xFF
-            if (av != bv) return av - bv
+    private fun varintSize(value: Int): Int {
+        return (Int.SIZE_BITS - Integer.numberOfLeadingZeros(value or 1) + 6) / 7
+    }
+
+    /**
+     * Bytes written to a temporary file in [directory] through [writer]; the file is deleted on [close].
+     */
+    private class SpillBytes(directory: Path, prefix: String) : AutoCloseable {
+        private val path = Files.createTempFile(directory, prefix, ".bytes")
+        private val channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        val writer = ChannelWriter(channel, 0)
+
+        val size: Long get() = writer.position
+
+        /**
+         * Flushes what has been written, after which the bytes can be copied or mapped.
+         */
+        fun finish() = writer.close()
+
+        /**
+         * Copies the first [length] bytes to [target] at [position], without moving the position of [target].
+         */
+        fun copyTo(target: FileChannel, position: Long, length: Long) {
+            var copied = 0L
+            while (copied < length) {
+                copied += target.transferFrom(channel.position(copied), position + copied, length - copied)
+            }
+        }
+
+        fun map(arena: Arena): MemorySegment {
+            return if (size == 0L) MemorySegment.NULL else channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena)
+        }
+
+        override fun close() {
+            channel.close()
+            Files.deleteIfExists(path)
         }
-        return a.size - b.size
     }
 
-    private data class PageRecord(
-        val id: Int,
-        val title: String,
-        val isRedirect: Boolean,
-        val links: IntArray
-    )
+    /**
+     * Buffered little-endian writes to [channel] from [start] on.
+     */
+    private class ChannelWriter(private val channel: FileChannel, start: Long) : AutoCloseable {
+        private val buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        private var flushedTo = start
+
+        /** File position of the next byte written. */
+        val position: Long get() = flushedTo + buffer.position()
+
+        /**
+         * Writes [value] as an unsigned LEB128 varint: seven bits a byte, low bits first.
+         */
+        fun putVarint(value: Int) {
+            if (buffer.remaining() < MAX_VARINT_BYTES) flush()
+            var rest = value
+            while (rest and 0x7F.inv() != 0) {
+                buffer.put(((rest and 0x7F) or 0x80).toByte())
+                rest = rest ushr 7
+            }
+            buffer.put(rest.toByte())
+        }
+
+        fun putInt(value: Int) {
+            if (buffer.remaining() < Int.SIZE_BYTES) flush()
+            buffer.putInt(value)
+        }
+
+        fun putLong(value: Long) {
+            if (buffer.remaining() < Long.SIZE_BYTES) flush()
+            buffer.putLong(value)
+        }
+
+        fun put(bytes: ByteArray) {
+            var offset = 0
+            while (offset < bytes.size) {
+                if (!buffer.hasRemaining()) flush()
+                val length = minOf(buffer.remaining(), bytes.size - offset)
+                buffer.put(bytes, offset, length)
+                offset += length
+            }
+        }
+
+        fun put(segment: MemorySegment, offset: Long, length: Int) {
+            var copied = 0
+            while (copied < length) {
+                if (!buffer.hasRemaining()) flush()
+                val chunk = minOf(buffer.remaining(), length - copied)
+                buffer.put(segment.asSlice(offset + copied, chunk.toLong()).asByteBuffer())
+                copied += chunk
+            }
+        }
+
+        private fun flush() {
+            buffer.flip()
+            while (buffer.hasRemaining()) {
+                flushedTo += channel.write(buffer, flushedTo)
+            }
+            buffer.clear()
+        }
+
+        override fun close() = flush()
+    }
 
     companion object {
+        const val DEFAULT_MEMORY_BUDGET_BYTES: Long = 256L * 1024 * 1024
+
+        private const val WRITE_BUFFER_SIZE = 1 shl 20
+        private const val MAX_VARINT_BYTES = 5
+        private const val MAX_INITIAL_NODES = 1 shl 24
+        private const val MAX_SORT_LONGS = Int.MAX_VALUE - 8L
+        private const val DENSE_LOOKUP_SLACK = 1L shl 20
+        private val LE_INT: ValueLayout.OfInt =
+            ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN) as ValueLayout.OfInt
+
         fun open(path: Path): SegmentWikiGraphStore {
             return SegmentWikiGraphStore.open(path)
         }
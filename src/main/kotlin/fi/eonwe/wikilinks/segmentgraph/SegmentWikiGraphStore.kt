@@ -7,6 +7,8 @@ import java.nio.ByteOrder
 import java.nio.channels.FileChannel
 import java.nio.file.Path
 import java.nio.file.StandardOpenOption
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
 import java.util.concurrent.ThreadLocalRandom
 import kotlin.math.min
 
@@ -20,18 +22,44 @@ class SegmentWikiGraphStore private constructor(
     private val nameIndex: MemorySegment,
     private val nameKeys: MemorySegment,
     private val idIndex: MemorySegment,
-    val nodeCount: Int
+    val nodeCount: Int,
+    private val compressedEdges: Boolean,
+    private val denseLayout: Boolean,
+    frontCodedTitles: Boolean
 ) : AutoCloseable {
+    /**
+     * Name index records: one per node plus one per alias. With front coded titles a record is just the node id,
+     * and the titles are found in [names].
+     */
+    private val nameCount =
+        (nameIndex.byteSize() / if (frontCodedTitles) NAME_ID_SIZE_BYTES else NAME_RECORD_SIZE_BYTES).toInt()
+    private val names = if (frontCodedTitles) FrontCodedTitles(nameKeys, nameCount) else null
+
+    /** Where the offset arrays and the redirect bitmap of a dense layout start in the nodes section. */
+    private val outOffsetsAt = (nodeCount + 1L) * Long.SIZE_BYTES
+    private val inOffsetsAt = 2 * outOffsetsAt
+    private val redirectBitsAt = 3 * outOffsetsAt
+
+    /**
+     * Whether the id index lists the ids 0 until [nodeCount], so that an id is its own position in it. The index
+     * is sorted by id, so its first and last entries tell.
+     */
+    private val idsArePositions = !denseLayout &&
+        idIndex.get(I32, ID_ID_OFFSET) == 0 &&
+        idIndex.get(I32, (nodeCount - 1L) * ID_RECORD_SIZE_BYTES + ID_ID_OFFSET) == nodeCount - 1
+
+    /** Rank of every id up to the largest, read from the id index at open when the ids are not much sparser. */
+    private val rankById: IntArray? = if (denseLayout || idsArePositions) null else readRankLookup()
 
     fun findIdByTitle(title: String): Int? {
         val query = title.toByteArray(Charsets.UTF_8)
-        val rank = binarySearchNameIndex(query)
+        val rank = names?.indexOf(query) ?: binarySearchNameIndex(query)
         return if (rank >= 0) nameRecordId(rank) else null
     }
 
     private fun binarySearchNameIndex(query: ByteArray): Int {
         var lo = 0
-        var hi = nodeCount - 1
+        var hi = nameCount - 1
         while (lo <= hi) {
             val mid = (lo + hi) ushr 1
             when (compareNameRecordWithQuery(mid, query)) {
@@ -47,15 +75,16 @@ class SegmentWikiGraphStore private constructor(
 
     fun randomTitle(): String? {
         if (nodeCount == 0) return null
-        val rank = ThreadLocalRandom.current().nextInt(nodeCount)
-        return titleOf(nameRecordId(rank))
+        val rank = ThreadLocalRandom.current().nextInt(nameCount)
+        return nameRecordKey(rank)
     }
 
     fun findTitlesByPrefix(prefix: String, maxMatches: Int): List<String> {
         if (maxMatches <= 0 || nodeCount == 0) return emptyList()
         val p = prefix.toByteArray(Charsets.UTF_8)
+        names?.let { return it.titlesStartingWith(p, maxMatches) }
         var lo = 0
-        var hi = nodeCount
+        var hi = nameCount
         while (lo < hi) {
             val mid = (lo + hi) ushr 1
             val cmp = comparePrefixAgainstNameRecord(p, mid)
@@ -66,83 +95,169 @@ class SegmentWikiGraphStore private constructor(
             }
         }
         val start = lo
-        if (start !in 0 until nodeCount) return emptyList()
+        if (start !in 0 until nameCount) return emptyList()
 
         val out = ArrayList<String>(min(maxMatches, 16))
         var rank = start
-        while (rank < nodeCount && out.size < maxMatches) {
+        while (rank < nameCount && out.size < maxMatches) {
             if (!nameRecordStartsWith(rank, p)) break
-            out.add(titleOf(nameRecordId(rank)))
+            out.add(nameRecordKey(rank))
             rank++
         }
         return out
     }
 
-    fun titleOf(id: Int): String {
-        val rank = rankOfId(id)
-        val base = nodeRecordOffset(rank)
-        val titleOffset = nodes.get(I64, base + NODE_TITLE_OFFSET)
-        val titleLen = nodes.get(I32, base + NODE_TITLE_LEN_OFFSET)
-        val data = ByteArray(titleLen)
-        for (i in 0 until titleLen) {
-            data[i] = titles.get(I8, titleOffset + i)
-        }
-        return String(data, Charsets.UTF_8)
-    }
+    fun titleOf(id: Int): String = titleOfRank(rankOfId(id))
 
-    fun isRedirect(id: Int): Boolean {
-        val rank = rankOfId(id)
-        val base = nodeRecordOffset(rank)
-        val flags = nodes.get(I32, base + NODE_FLAGS_OFFSET)
+    fun isRedirect(id: Int): Boolean = isRedirectRank(rankOfId(id))
+
+    private fun isRedirectRank(rank: Int): Boolean {
+        if (denseLayout) {
+            val bits = nodes.get(I64, redirectBitsAt + (rank ushr 6).toLong() * Long.SIZE_BYTES)
+            return (bits ushr (rank and 63)) and 1L != 0L
+        }
+        val flags = nodes.get(I32, nodeRecordOffset(rank) + NODE_FLAGS_OFFSET)
         return flags and FLAG_REDIRECT != 0
     }
 
-    fun outNeighbors(id: Int): IntCursor {
-        val rank = rankOfId(id)
-        val base = nodeRecordOffset(rank)
-        val start = nodes.get(I64, base + NODE_OUT_START_OFFSET)
-        val degree = nodes.get(I32, base + NODE_OUT_DEGREE_OFFSET)
-        return SegmentIntCursor(outEdges, start, degree)
+    fun outNeighbors(id: Int): IntCursor = outCursor(rankOfId(id), id)
+
+    private fun outCursor(rank: Int, id: Int): IntCursor {
+        return edgeCursor(outEdges, rank, id, outOffsetsAt, NODE_OUT_START_OFFSET, NODE_OUT_DEGREE_OFFSET)
     }
 
     fun inNeighbors(id: Int): IntCursor {
-        val rank = rankOfId(id)
+        return edgeCursor(inEdges, rankOfId(id), id, inOffsetsAt, NODE_IN_START_OFFSET, NODE_IN_DEGREE_OFFSET)
+    }
+
+    /**
+     * Adjacency list of the node at [rank]: in a dense layout it runs from its entry in the offset array at
+     * [offsetsAt] to the next one, otherwise its node record holds its start and degree.
+     */
+    private fun edgeCursor(
+        edges: MemorySegment,
+        rank: Int,
+        id: Int,
+        offsetsAt: Long,
+        startField: Long,
+        degreeField: Long
+    ): IntCursor {
+        if (denseLayout) {
+            val entry = offsetsAt + rank.toLong() * Long.SIZE_BYTES
+            val start = nodes.get(I64, entry)
+            val end = nodes.get(I64, entry + Long.SIZE_BYTES)
+            return if (compressedEdges) {
+                VarintIntCursor(edges, start, end, Int.MAX_VALUE, id)
+            } else {
+                SegmentIntCursor(edges, start, (end - start).toInt())
+            }
+        }
         val base = nodeRecordOffset(rank)
-        val start = nodes.get(I64, base + NODE_IN_START_OFFSET)
-        val degree = nodes.get(I32, base + NODE_IN_DEGREE_OFFSET)
-        return SegmentIntCursor(inEdges, start, degree)
+        val start = nodes.get(I64, base + startField)
+        val degree = nodes.get(I32, base + degreeField)
+        return if (compressedEdges) {
+            VarintIntCursor(edges, start, edges.byteSize(), degree, id)
+        } else {
+            SegmentIntCursor(edges, start, degree)
+        }
     }
 
     fun forEachNode(consumer: (NodeRecord) -> Unit) {
+        var links = IntArray(64)
         for (entry in 0 until nodeCount) {
             val entryOffset = entry.toLong() * ID_RECORD_SIZE_BYTES
-            val id = idIndex.get(I32, entryOffset + ID_ID_OFFSET)
-            val rank = idIndex.get(I32, entryOffset + ID_RANK_OFFSET)
-            val base = nodeRecordOffset(rank)
-            val titleOffset = nodes.get(I64, base + NODE_TITLE_OFFSET)
-            val titleLen = nodes.get(I32, base + NODE_TITLE_LEN_OFFSET)
-            val titleBytes = ByteArray(titleLen)
-            for (i in 0 until titleLen) {
-                titleBytes[i] = titles.get(I8, titleOffset + i)
-            }
-            val outStart = nodes.get(I64, base + NODE_OUT_START_OFFSET)
-            val outDegree = nodes.get(I32, base + NODE_OUT_DEGREE_OFFSET)
-            val outLinks = IntArray(outDegree)
-            for (i in 0 until outDegree) {
-                outLinks[i] = outEdges.get(I32, (outStart + i.toLong()) * Int.SIZE_BYTES)
+            val id = if (denseLayout) entry else idIndex.get(I32, entryOffset + ID_ID_OFFSET)
+            val rank = if (denseLayout) entry else idIndex.get(I32, entryOffset + ID_RANK_OFFSET)
+            val outCursor = outCursor(rank, id)
+            var outDegree = 0
+            while (outCursor.hasNext()) {
+                if (outDegree == links.size) links = links.copyOf(links.size * 2)
+                links[outDegree++] = outCursor.nextInt()
             }
-            val flags = nodes.get(I32, base + NODE_FLAGS_OFFSET)
             consumer(
                 NodeRecord(
                     id = id,
-                    title = String(titleBytes, Charsets.UTF_8),
-                    isRedirect = (flags and FLAG_REDIRECT) != 0,
-                    outLinks = outLinks
+                    title = titleOfRank(rank),
+                    isRedirect = isRedirectRank(rank),
+                    outLinks = links.copyOf(outDegree)
                 )
             )
         }
     }
 
+    /**
+     * Calls [consumer] with every name index entry that is not the title of its node, in title order.
+     */
+    fun forEachAlias(consumer: (TitleAlias) -> Unit) {
+        if (nameCount == nodeCount) return
+        names?.let {
+            // Nodes refer to the position of their own title.
+            it.forEach { position, title ->
+                val id = nameRecordId(position)
+                if (titleOffset(id) != position.toLong()) consumer(TitleAlias(title, id))
+            }
+            return
+        }
+        for (rank in 0 until nameCount) {
+            val id = nameRecordId(rank)
+            val nodeRank = rankOfId(id)
+            val titleOffset = titleOffset(nodeRank)
+            val titleLen = titleLength(nodeRank)
+            val keyOffset = nameRecordKeyOffset(rank)
+            val keyLen = nameRecordKeyLen(rank)
+            var isTitle = keyLen == titleLen
+            var i = 0
+            while (isTitle && i < keyLen) {
+                isTitle = nameKeys.get(I8, keyOffset + i) == titles.get(I8, titleOffset + i)
+                i++
+            }
+            if (!isTitle) consumer(TitleAlias(nameRecordKey(rank), id))
+        }
+    }
+
+    /**
+     * Reads [sections] into memory in slices loaded on up to [parallelism] threads.
+     *
+     * @return the number of bytes loaded
+     */
+    fun prefault(sections: Collection<SegmentSection>, parallelism: Int): Long {
+        val slices = sections.distinct().flatMap { section ->
+            val segment = segmentOf(section)
+            (0 until segment.byteSize() step PREFAULT_SLICE_BYTES).map { offset ->
+                segment.asSlice(offset, min(PREFAULT_SLICE_BYTES, segment.byteSize() - offset))
+            }
+        }
+        if (parallelism <= 1 || slices.size < 2) {
+            slices.forEach { it.load() }
+        } else {
+            Executors.newFixedThreadPool(min(parallelism, slices.size)).use { executor ->
+                slices.map { slice -> executor.submit(Callable { slice.load() }) }.forEach { it.get() }
+            }
+        }
+        return slices.sumOf { it.byteSize() }
+    }
+
+    /**
+     * Tells the kernel how [section] is going to be read.
+     *
+     * @return whether the advice was taken
+     */
+    fun advise(section: SegmentSection, access: SectionAccess): Boolean {
+        return MemoryAdvice.advise(segmentOf(section), access.posixAdvice)
+    }
+
+    private fun segmentOf(section: SegmentSection): MemorySegment {
+        return when (section) {
+            SegmentSection.NODES -> nodes
+            SegmentSection.TITLES -> titles
+            SegmentSection.OUT_EDGES -> outEdges
+            SegmentSection.IN_EDGES -> inEdges
+            SegmentSection.NAME_INDEX -> nameIndex
+            SegmentSection.NAME_KEYS -> nameKeys
+            SegmentSection.ID_INDEX -> idIndex
+        }
+    }
+
     override fun close() {
         arena.close()
         channel.close()
@@ -154,7 +269,23 @@ class SegmentWikiGraphStore private constructor(
 
     private fun nameRecordKeyLen(rank: Int): Int = nameIndex.get(I32, nameRecordOffset(rank) + NAME_KEY_LEN_OFFSET)
 
-    private fun nameRecordId(rank: Int): Int = nameIndex.get(I32, nameRecordOffset(rank) + NAME_ID_OFFSET)
+    private fun nameRecordId(rank: Int): Int {
+        return if (names != null) {
+            nameIndex.get(I32, rank.toLong() * NAME_ID_SIZE_BYTES)
+        } else {
+            nameIndex.get(I32, nameRecordOffset(rank) + NAME_ID_OFFSET)
+        }
+    }
+
+    private fun nameRecordKey(rank: Int): String {
+        names?.let { return it.titleAt(rank) }
+        val keyOffset = nameRecordKeyOffset(rank)
+        val data = ByteArray(nameRecordKeyLen(rank))
+        for (i in data.indices) {
+            data[i] = nameKeys.get(I8, keyOffset + i)
+        }
+        return String(data, Charsets.UTF_8)
+    }
 
     private fun compareNameRecordWithQuery(rank: Int, query: ByteArray): Int {
         val keyOffset = nameRecordKeyOffset(rank)
@@ -164,6 +295,32 @@ class SegmentWikiGraphStore private constructor(
 
     private fun nodeRecordOffset(rank: Int): Long = rank.toLong() * NODE_RECORD_SIZE_BYTES
 
+    private fun titleOffset(rank: Int): Long {
+        return if (denseLayout) {
+            nodes.get(I64, rank.toLong() * Long.SIZE_BYTES)
+        } else {
+            nodes.get(I64, nodeRecordOffset(rank) + NODE_TITLE_OFFSET)
+        }
+    }
+
+    private fun titleLength(rank: Int): Int {
+        return if (denseLayout) {
+            (nodes.get(I64, (rank + 1L) * Long.SIZE_BYTES) - titleOffset(rank)).toInt()
+        } else {
+            nodes.get(I32, nodeRecordOffset(rank) + NODE_TITLE_LEN_OFFSET)
+        }
+    }
+
+    private fun titleOfRank(rank: Int): String {
+        names?.let { return it.titleAt(titleOffset(rank).toInt()) }
+        val titleOffset = titleOffset(rank)
+        val data = ByteArray(titleLength(rank))
+        for (i in data.indices) {
+            data[i] = titles.get(I8, titleOffset + i)
+        }
+        return String(data, Charsets.UTF_8)
+    }
+
     private fun compareUnsignedLex(query: ByteArray, keys: MemorySegment, keyOffset: Long, keyLen: Int): Int {
         val minLen = min(query.size, keyLen)
         for (i in 0 until minLen) {
@@ -197,6 +354,20 @@ class SegmentWikiGraphStore private constructor(
     }
 
     private fun rankOfId(id: Int): Int {
+        if (denseLayout) {
+            require(id in 0 until nodeCount) { "Id $id not found" }
+            return id
+        }
+        if (idsArePositions) {
+            require(id in 0 until nodeCount) { "Id $id not found" }
+            return idIndex.get(I32, id.toLong() * ID_RECORD_SIZE_BYTES + ID_RANK_OFFSET)
+        }
+        val lookup = rankById
+        if (lookup != null) {
+            val rank = if (id in lookup.indices) lookup[id] else -1
+            require(rank >= 0) { "Id $id not found" }
+            return rank
+        }
         var lo = 0
         var hi = nodeCount - 1
         while (lo <= hi) {
@@ -212,15 +383,48 @@ class SegmentWikiGraphStore private constructor(
         throw IllegalArgumentException("Id $id not found")
     }
 
+    private fun readRankLookup(): IntArray? {
+        val firstId = idIndex.get(I32, ID_ID_OFFSET)
+        val lastId = idIndex.get(I32, (nodeCount - 1L) * ID_RECORD_SIZE_BYTES + ID_ID_OFFSET)
+        if (firstId < 0 || lastId >= RANK_LOOKUP_SLACK + 4L * nodeCount) return null
+        val lookup = IntArray(lastId + 1) { -1 }
+        for (entry in 0 until nodeCount) {
+            val entryOffset = entry.toLong() * ID_RECORD_SIZE_BYTES
+            lookup[idIndex.get(I32, entryOffset + ID_ID_OFFSET)] = idIndex.get(I32, entryOffset + ID_RANK_OFFSET)
+        }
+        return lookup
+    }
+
     companion object {
         const val MAGIC: Long = 0x574B475241463031L // "WKGRAF01"
         const val VERSION: Int = 1
+
+        /** Version 1 with adjacency lists sorted and stored as varint gaps, addressed by byte offset. */
+        const val VERSION_COMPRESSED_EDGES: Int = 2
+
+        /**
+         * Nodes are numbered densely by id order and stored as arrays instead of records: title, out-edge and
+         * in-edge offsets, N + 1 of each, followed by a redirect bitmap. There is no id index, and the header flags
+         * tell whether edges are compressed.
+         */
+        const val VERSION_DENSE: Int = 3
         const val FLAG_REDIRECT: Int = 1
 
+        /** Header flag of [VERSION_DENSE] graphs whose adjacency lists are sorted and stored as varint gaps. */
+        const val HEADER_FLAG_COMPRESSED_EDGES: Int = 1
+
+        /**
+         * Header flag of [VERSION_DENSE] graphs whose titles are stored once, front coded in title order in the
+         * name keys section. Their title offsets are positions in that order, and there is no titles section.
+         */
+        const val HEADER_FLAG_FRONT_CODED_TITLES: Int = 2
+
         const val HEADER_SIZE_BYTES: Int = 176
         const val NODE_RECORD_SIZE_BYTES: Long = 56
         const val NAME_RECORD_SIZE_BYTES: Long = 16
         const val ID_RECORD_SIZE_BYTES: Long = 8
+        private const val PREFAULT_SLICE_BYTES: Long = 64L * 1024 * 1024
+        const val NAME_ID_SIZE_BYTES: Long = 4
 
         private const val NODE_TITLE_OFFSET: Long = 0
         private const val NODE_TITLE_LEN_OFFSET: Long = 8
@@ -231,6 +435,9 @@ class SegmentWikiGraphStore private constructor(
         private const val NODE_IN_START_OFFSET: Long = 40
         private const val NODE_IN_DEGREE_OFFSET: Long = 48
 
+        /** Ids beyond four per node that a rank lookup may cover before ids are binary searched instead. */
+        private const val RANK_LOOKUP_SLACK: Long = 1L shl 20
+
         private const val NAME_KEY_OFFSET: Long = 0
         private const val NAME_KEY_LEN_OFFSET: Long = 8
         private const val NAME_ID_OFFSET: Long = 12
@@ -239,6 +446,7 @@ class SegmentWikiGraphStore private constructor(
 
         private const val HEADER_MAGIC_OFFSET: Long = 0
         private const val HEADER_VERSION_OFFSET: Long = 8
+        private const val HEADER_FLAGS_OFFSET: Long = 12
         private const val HEADER_NODE_COUNT_OFFSET: Long = 16
         private const val HEADER_EDGE_COUNT_OUT_OFFSET: Long = 24
         private const val HEADER_EDGE_COUNT_IN_OFFSET: Long = 32
@@ -271,7 +479,8 @@ class SegmentWikiGraphStore private constructor(
                 val magic = header.get(I64, HEADER_MAGIC_OFFSET)
                 require(magic == MAGIC) { "Invalid segment graph magic: $magic" }
                 val version = header.get(I32, HEADER_VERSION_OFFSET)
-                require(version == VERSION) { "Unsupported segment graph version: $version" }
+                require(version in VERSION..VERSION_DENSE) { "Unsupported segment graph version: $version" }
+                val flags = header.get(I32, HEADER_FLAGS_OFFSET)
 
                 val nodeCountLong = header.get(I64, HEADER_NODE_COUNT_OFFSET)
                 require(nodeCountLong in 1..Int.MAX_VALUE.toLong()) { "Invalid node count $nodeCountLong" }
@@ -302,6 +511,17 @@ class SegmentWikiGraphStore private constructor(
                 require(nameIndexOffset + nameIndexLen <= size) { "Name index section out of file bounds" }
                 require(nameKeysOffset + nameKeysLen <= size) { "Name keys section out of file bounds" }
                 require(idIndexOffset + idIndexLen <= size) { "Id index section out of file bounds" }
+                val frontCodedTitles = flags and HEADER_FLAG_FRONT_CODED_TITLES != 0
+                require(!frontCodedTitles || version == VERSION_DENSE) { "Front coded titles need a dense layout" }
+                val nameRecordSize = if (frontCodedTitles) NAME_ID_SIZE_BYTES else NAME_RECORD_SIZE_BYTES
+                if (version == VERSION_DENSE) {
+                    require(nodesLen == (3L * (nodeCount + 1) + (nodeCount + 63) / 64) * Long.SIZE_BYTES) {
+                        "Nodes section does not match node count"
+                    }
+                }
+                require(nameIndexLen % nameRecordSize == 0L && nameIndexLen / nameRecordSize >= nodeCount) {
+                    "Name index does not cover every node"
+                }
 
                 val nodes = channel.map(FileChannel.MapMode.READ_ONLY, nodesOffset, nodesLen, arena)
                 val titles = channel.map(FileChannel.MapMode.READ_ONLY, titlesOffset, titlesLen, arena)
@@ -321,7 +541,11 @@ class SegmentWikiGraphStore private constructor(
                     nameIndex = nameIndex,
                     nameKeys = nameKeys,
                     idIndex = idIndex,
-                    nodeCount = nodeCount
+                    nodeCount = nodeCount,
+                    compressedEdges = version == VERSION_COMPRESSED_EDGES ||
+                        (version == VERSION_DENSE && flags and HEADER_FLAG_COMPRESSED_EDGES != 0),
+                    denseLayout = version == VERSION_DENSE,
+                    frontCodedTitles = frontCodedTitles
                 )
             } catch (t: Throwable) {
                 try {
@@ -361,3 +585,37 @@ private class SegmentIntCursor(
         return value
     }
 }
+
+/**
+ * Reads an adjacency list written as a zigzag varint difference to the node's own id, given as [previous], followed
+ * by varint gaps. The list ends after [remaining] entries or at byte [end], whichever comes first.
+ */
+private class VarintIntCursor(
+    private val edges: MemorySegment,
+    private var position: Long,
+    private val end: Long,
+    private var remaining: Int,
+    private var previous: Int
+) : IntCursor {
+    private var first = true
+
+    override fun hasNext(): Boolean = remaining > 0 && position < end
+
+    override fun nextInt(): Int {
+        if (!hasNext()) {
+            throw NoSuchElementException("No more elements")
+        }
+        var encoded = 0
+        var shift = 0
+        while (true) {
+            val b = edges.get(ValueLayout.JAVA_BYTE, position++).toInt()
+            encoded = encoded or ((b and 0x7F) shl shift)
+            if (b >= 0) break
+            shift += 7
+        }
+        previous += if (first) (encoded ushr 1) xor -(encoded and 1) else encoded
+        first = false
+        remaining--
+        return previous
+    }
+}
@@ -26,6 +26,66 @@ class SegmentWikiRoutes(private val store: SegmentWikiGraphStore) {
 
     fun randomPage(): String? = store.randomTitle()
 
+    /** Whether [warmup] has finished. */
+    @Volatile
+    var isReady = false
+        private set
+
+    /**
+     * Prefaults and advises the sections of the store as [options] say, then searches random routes until their
+     * tail latency stops improving, so that the pages and compiled code the searches need are in place.
+     * [isReady] is true once this returns.
+     */
+    fun warmup(options: WarmupOptions = WarmupOptions()): WarmupReport = warmup(options) { start, end ->
+        val before = System.nanoTime()
+        try {
+            findRoute(start, end)
+        } catch (_: BadRouteException) {
+        }
+        System.nanoTime() - before
+    }
+
+    /**
+     * [warmup] with [timeRoute] giving the nanoseconds a route search between two titles took.
+     */
+    internal fun warmup(options: WarmupOptions, timeRoute: (String, String) -> Long): WarmupReport {
+        require(options.roundQueries > 0) { "Warmup rounds need at least one query" }
+        val prefaultStart = System.nanoTime()
+        val prefaulted = store.prefault(options.prefault, options.parallelism)
+        val prefaultMillis = (System.nanoTime() - prefaultStart) / 1_000_000
+        val advised = options.advice.mapValues { (section, access) -> store.advise(section, access) }
+
+        val queryStart = System.nanoTime()
+        val latencies = LongArray(options.roundQueries)
+        var queries = 0
+        var previousTail = Long.MAX_VALUE
+        var tail = 0L
+        var stable = false
+        while (!stable && queries + options.roundQueries <= options.maxQueries) {
+            for (i in latencies.indices) {
+                val start = randomPage() ?: break
+                val end = randomPage() ?: break
+                latencies[i] = timeRoute(start, end)
+            }
+            queries += latencies.size
+            latencies.sort()
+            tail = latencies[latencies.size * 9 / 10]
+            // Settled once a round no longer improves on the one before by more than the tolerance.
+            stable = previousTail != Long.MAX_VALUE && tail >= previousTail * (1 - options.tolerance)
+            previousTail = tail
+        }
+        isReady = true
+        return WarmupReport(
+            prefaultedBytes = prefaulted,
+            prefaultMillis = prefaultMillis,
+            advised = advised,
+            queries = queries,
+            queryMillis = (System.nanoTime() - queryStart) / 1_000_000,
+            tailLatencyMicros = tail / 1000,
+            latencyStable = stable
+        )
+    }
+
     private class SegmentMapper(
         private val store: SegmentWikiGraphStore,
         private val reverse: Boolean
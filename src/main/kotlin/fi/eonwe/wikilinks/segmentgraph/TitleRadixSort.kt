@@ -0,0 +1,142 @@
+package fi.eonwe.wikilinks.segmentgraph
+
+import java.lang.foreign.MemorySegment
+import java.lang.foreign.ValueLayout
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+/**
+ * Sorts entries by the unsigned bytes of their titles in [titleBytes], keeping entries with equal titles in the
+ * order they were given.
+ *
+ * A most significant digit radix sort: entries are bucketed by their first two bytes, and the buckets are sorted
+ * apart from each other, on several threads if asked to. Within a bucket, entries are ordered by keys holding the
+ * next seven bytes and how many bytes are left, and runs that tie on a key with bytes still left go on seven bytes
+ * further in. Small ranges are insertion sorted.
+ */
+internal class TitleRadixSort(
+    private val titleBytes: MemorySegment,
+    private val titleOffsets: LongArray,
+    private val titleLengths: IntArray
+) {
+    fun sort(entries: IntArray, parallelism: Int) {
+        if (entries.size < 2) return
+        val buckets = IntArray(entries.size) { bucketOf(entries[it]) }
+        val starts = IntArray(BUCKET_COUNT + 1)
+        for (bucket in buckets) starts[bucket + 1]++
+        for (bucket in 0 until BUCKET_COUNT) starts[bucket + 1] += starts[bucket]
+        val next = starts.copyOf(BUCKET_COUNT)
+        val sorted = IntArray(entries.size)
+        for (i in entries.indices) sorted[next[buckets[i]]++] = entries[i]
+        sorted.copyInto(entries)
+
+        val ranges = (0 until BUCKET_COUNT).filter { starts[it + 1] - starts[it] > 1 }
+        if (parallelism <= 1 || ranges.size < 2) {
+            for (bucket in ranges) sortRange(entries, starts[bucket], starts[bucket + 1], BUCKET_BYTES)
+            return
+        }
+        Executors.newFixedThreadPool(parallelism).use { executor ->
+            ranges
+                .map { bucket ->
+                    executor.submit(Callable { sortRange(entries, starts[bucket], starts[bucket + 1], BUCKET_BYTES) })
+                }
+                .forEach { it.get() }
+        }
+    }
+
+    /**
+     * First two bytes of a title, each one more than its value and 0 past the end, so that a title sorts before
+     * the longer titles it is a prefix of.
+     */
+    private fun bucketOf(entry: Int): Int {
+        val length = titleLengths[entry]
+        val first = if (length > 0) byteAt(entry, 0) + 1 else 0
+        val second = if (length > 1) byteAt(entry, 1) + 1 else 0
+        return first * 257 + second
+    }
+
+    /**
+     * Sorts entries [from] until [to], which share their first [depth] title bytes.
+     */
+    private fun sortRange(entries: IntArray, from: Int, to: Int, depth: Int) {
+        val size = to - from
+        if (size <= INSERTION_SORT_LIMIT) {
+            insertionSort(entries, from, to, depth)
+            return
+        }
+        var keys = LongArray(size) { keyOf(entries[from + it], depth) }
+        var order = entries.copyOfRange(from, to)
+        var keysTo = LongArray(size)
+        var orderTo = IntArray(size)
+        val counts = IntArray(257)
+        for (shift in 0 until Long.SIZE_BITS step 8) {
+            counts.fill(0)
+            for (key in keys) counts[((key ushr shift) and 0xFF).toInt() + 1]++
+            // Passes over a byte that all keys share move nothing.
+            if (counts.any { it == size }) continue
+            for (digit in 0 until 256) counts[digit + 1] += counts[digit]
+            for (i in 0 until size) {
+                val at = counts[((keys[i] ushr shift) and 0xFF).toInt()]++
+                keysTo[at] = keys[i]
+                orderTo[at] = order[i]
+            }
+            keys = keysTo.also { keysTo = keys }
+            order = orderTo.also { orderTo = order }
+        }
+        order.copyInto(entries, from)
+        var start = 0
+        while (start < size) {
+            var end = start + 1
+            while (end < size && keys[end] == keys[start]) end++
+            if (end - start > 1 && (keys[start] and 0xFF) == KEY_BYTES + 1L) {
+                sortRange(entries, from + start, from + end, depth + KEY_BYTES)
+            }
+            start = end
+        }
+    }
+
+    /**
+     * Seven title bytes from [depth] on, zero padded, followed by how many bytes are left there, capped at eight
+     * to mean that the title goes on past them.
+     */
+    private fun keyOf(entry: Int, depth: Int): Long {
+        val left = (titleLengths[entry] - depth).coerceAtLeast(0)
+        var key = 0L
+        for (i in 0 until KEY_BYTES) {
+            key = (key shl 8) or (if (i < left) byteAt(entry, depth + i).toLong() else 0L)
+        }
+        return (key shl 8) or minOf(left, KEY_BYTES + 1).toLong()
+    }
+
+    private fun insertionSort(entries: IntArray, from: Int, to: Int, depth: Int) {
+        for (i in from + 1 until to) {
+            val entry = entries[i]
+            var j = i - 1
+            while (j >= from && compareFrom(entries[j], entry, depth) > 0) {
+                entries[j + 1] = entries[j]
+                j--
+            }
+            entries[j + 1] = entry
+        }
+    }
+
+    private fun compareFrom(a: Int, b: Int, depth: Int): Int {
+        val length = minOf(titleLengths[a], titleLengths[b])
+        for (i in depth until length) {
+            val difference = byteAt(a, i) - byteAt(b, i)
+            if (difference != 0) return difference
+        }
+        return titleLengths[a] - titleLengths[b]
+    }
+
+    private fun byteAt(entry: Int, index: Int): Int {
+        return titleBytes.get(ValueLayout.JAVA_BYTE, titleOffsets[entry] + index).toInt() and 0xFF
+    }
+
+    private companion object {
+        const val BUCKET_BYTES = 2
+        const val BUCKET_COUNT = 257 * 257
+        const val KEY_BYTES = 7
+        const val INSERTION_SORT_LIMIT = 24
+    }
+}
@@ -0,0 +1,139 @@
+package fi.eonwe.wikilinks.utils
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.Arrays
+import java.util.PriorityQueue
+
+/**
+ * Sorts more longs than fit in memory. Values are collected into a buffer of [bufferLongs]; each full buffer is
+ * sorted and written to a run file in [directory], and [forEachSorted] merges the runs with what is left in the
+ * buffer. Run files are deleted on [close].
+ *
+ * Not thread-safe.
+ */
+class ExternalLongSorter(private val directory: Path, bufferLongs: Int) : AutoCloseable {
+    private val maxBuffered = bufferLongs.coerceAtLeast(MIN_BUFFER_LONGS)
+
+    // Grows up to maxBuffered, so that small inputs do not allocate the whole budget.
+    private var buffer = LongArray(MIN_BUFFER_LONGS)
+    private var buffered = 0
+    private val runs = ArrayList<Path>()
+
+    var size: Long = 0
+        private set
+
+    val runCount: Int get() = runs.size
+
+    fun add(value: Long) {
+        if (buffered == buffer.size) {
+            if (buffer.size < maxBuffered) {
+                buffer = buffer.copyOf(minOf(buffer.size.toLong() * 2, maxBuffered.toLong()).toInt())
+            } else {
+                writeRun()
+            }
+        }
+        buffer[buffered++] = value
+        size++
+    }
+
+    /**
+     * Calls [action] with every added value in ascending order.
+     */
+    fun forEachSorted(action: (Long) -> Unit) {
+        Arrays.sort(buffer, 0, buffered)
+        if (runs.isEmpty()) {
+            for (i in 0 until buffered) action(buffer[i])
+            return
+        }
+        val cursors = runs.map { RunCursor(it) } + MemoryCursor(buffer, buffered)
+        try {
+            val queue = PriorityQueue<Cursor>(cursors.size) { a, b -> a.head.compareTo(b.head) }
+            cursors.filterTo(queue) { it.advance() }
+            while (queue.isNotEmpty()) {
+                val cursor = queue.poll()
+                action(cursor.head)
+                if (cursor.advance()) queue.add(cursor)
+            }
+        } finally {
+            cursors.forEach { it.close() }
+        }
+    }
+
+    override fun close() {
+        runs.forEach { Files.deleteIfExists(it) }
+        runs.clear()
+    }
+
+    private fun writeRun() {
+        Arrays.sort(buffer, 0, buffered)
+        val run = Files.createTempFile(directory, "sort-run-", ".longs")
+        runs.add(run)
+        FileChannel.open(run, StandardOpenOption.WRITE).use { channel ->
+            val out = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+            for (i in 0 until buffered) {
+                if (!out.hasRemaining()) drain(out, channel)
+                out.putLong(buffer[i])
+            }
+            drain(out, channel)
+        }
+        buffered = 0
+    }
+
+    private fun drain(out: ByteBuffer, channel: FileChannel) {
+        out.flip()
+        while (out.hasRemaining()) channel.write(out)
+        out.clear()
+    }
+
+    private abstract class Cursor : AutoCloseable {
+        var head: Long = 0
+            protected set
+
+        /**
+         * Moves to the next value, @return false when there is none
+         */
+        abstract fun advance(): Boolean
+
+        override fun close() = Unit
+    }
+
+    private class MemoryCursor(private val values: LongArray, private val count: Int) : Cursor() {
+        private var next = 0
+
+        override fun advance(): Boolean {
+            if (next == count) return false
+            head = values[next++]
+            return true
+        }
+    }
+
+    private class RunCursor(path: Path) : Cursor() {
+        private val channel = FileChannel.open(path, StandardOpenOption.READ)
+        private val input = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN).limit(0)
+
+        override fun advance(): Boolean {
+            if (!input.hasRemaining()) {
+                input.clear()
+                while (input.hasRemaining() && channel.read(input) >= 0) {
+                    // Keep reading until the buffer is full or the run ends.
+                }
+                input.flip()
+                if (!input.hasRemaining()) return false
+            }
+            head = input.getLong()
+            return true
+        }
+
+        override fun close() = channel.close()
+    }
+
+    companion object {
+        private const val MIN_BUFFER_LONGS = 1024
+        private const val IO_BUFFER_SIZE = 1 shl 16
+    }
+}
@@ -0,0 +1,90 @@
+package fi.eonwe.wikilinks.utils
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Ints appended to a temporary file as little-endian words and read back in order. The file is deleted on [close].
+ *
+ * Not thread-safe.
+ */
+class IntSpillFile(directory: Path, prefix: String) : AutoCloseable {
+    val path: Path = Files.createTempFile(directory, prefix, ".ints")
+    private val channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+    private val buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+    private var written = 0L
+
+    var size: Long = 0
+        private set
+
+    fun add(value: Int) {
+        if (!buffer.hasRemaining()) flush()
+        buffer.putInt(value)
+        size++
+    }
+
+    /**
+     * @return a reader over the ints added so far, starting from the [first] one
+     */
+    fun reader(first: Long = 0): Reader {
+        flush()
+        return Reader(first)
+    }
+
+    /**
+     * Copies the ints added so far to [target] at byte [position], without moving the position of [target].
+     */
+    fun copyTo(target: FileChannel, position: Long) {
+        flush()
+        var copied = 0L
+        while (copied < written) {
+            copied += target.transferFrom(channel.position(copied), position + copied, written - copied)
+        }
+    }
+
+    override fun close() {
+        channel.close()
+        Files.deleteIfExists(path)
+    }
+
+    private fun flush() {
+        buffer.flip()
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, written)
+        }
+        buffer.clear()
+    }
+
+    inner class Reader internal constructor(first: Long) {
+        private val end = size
+        private val input = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN).limit(0)
+        private var position = first * Int.SIZE_BYTES
+
+        val hasNext: Boolean get() = input.hasRemaining() || position < end * Int.SIZE_BYTES
+
+        fun next(): Int {
+            if (!input.hasRemaining()) fill()
+            return input.getInt()
+        }
+
+        private fun fill() {
+            val remaining = end * Int.SIZE_BYTES - position
+            if (remaining <= 0) throw NoSuchElementException("No more ints in $path")
+            input.clear().limit(minOf(remaining, BUFFER_SIZE.toLong()).toInt())
+            while (input.hasRemaining()) {
+                val read = channel.read(input, position + input.position())
+                if (read < 0) throw IllegalStateException("$path ended before its $end ints")
+            }
+            position += input.limit()
+            input.flip()
+        }
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 1 shl 16
+    }
+}
@@ -0,0 +1,96 @@
+package fi.eonwe.wikilinks
+
+import fi.eonwe.wikilinks.TestHelper.usingTestDump
+import io.kotest.matchers.collections.shouldContainExactly
+import io.kotest.matchers.comparables.shouldBeGreaterThan
+import io.kotest.matchers.shouldBe
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+
+class ByteLinkExtractorTest {
+
+    private data class Parsed(val title: String, val isRedirect: Boolean, val redirectTarget: String?, val links: List<String>)
+
+    private fun parseWithBliki(input: InputStream): List<Parsed> {
+        val pages = mutableListOf<Parsed>()
+        WikiProcessor.parsePages(input) { pages.add(it.toParsed()) }
+        return pages
+    }
+
+    private fun parseWithBytes(input: InputStream, stripSectionAnchors: Boolean): List<Parsed> {
+        val pages = mutableListOf<Parsed>()
+        ByteLinkExtractor(stripSectionAnchors).parsePages(input) { pages.add(it.toParsed()) }
+        return pages
+    }
+
+    private fun WikiProcessor.ParsedPage.toParsed() = Parsed(title, isRedirect, redirectTarget, links)
+
+    private fun dump(vararg pages: Pair<String, String>): ByteArray {
+        val xml = StringBuilder("<mediawiki xmlns=\"http://www.mediawiki.org/xml/export-0.11/\" version=\"0.11\">\n")
+        xml.append("  <siteinfo>\n    <sitename>TestWiki</sitename>\n  </siteinfo>\n")
+        pages.forEachIndexed { i, (title, text) ->
+            val namespace = if (title.startsWith("Template:")) 10 else 0
+            xml.append("  <page>\n    <title>").append(title).append("</title>\n")
+                .append("    <ns>").append(namespace).append("</ns>\n")
+                .append("    <id>").append(i + 1).append("</id>\n")
+                .append("    <revision>\n      <text bytes=\"1\" xml:space=\"preserve\">").append(text).append("</text>\n")
+                .append("    </revision>\n  </page>\n")
+        }
+        xml.append("</mediawiki>\n")
+        return xml.toString().toByteArray(Charsets.UTF_8)
+    }
+
+    private val trickyDump = dump(
+        "Alpha" to "See [[beta]], [[Beta|again]] and [[gamma#History|history]]. [[]] [[|label]] [[a|]] [[||]]",
+        "Beta" to "[[Category:Things]] [[[[nested]]]] [[broken\nline]] [[ölsäure]] [[ßtraße]] [[ǆungla]] [[𝔸lpha]]",
+        "Gamma" to "#REDIRECT\n[[alpha#Top|x]]",
+        "Delta" to "#redirect [[Alpha]] and [[Zeta]] &lt;br&gt; [[&#x17B;ory]] [[Q&amp;A]] [[R&#38;D]]",
+        "Template:Box" to "[[Alpha]]",
+        "Epsilon" to "#REDIRECT[[Alpha]] then #REDIRECT  [[Beta]]",
+        "Zeta" to "Text with\r\n[[line\r\nend]] and [[x]]\r[[x]]",
+        "Eta" to "",
+        "Theta" to "[[a]]   [[b c]] [[d\u0085e]]"
+    )
+
+    @Test
+    fun `it matches bliki on the fixture dump`() {
+        val expected = usingTestDump { parseWithBliki(BZip2CompressorInputStream(it, true)) }
+        val actual = usingTestDump { parseWithBytes(BZip2CompressorInputStream(it, true), stripSectionAnchors = false) }
+
+        expected.size shouldBeGreaterThan 1000
+        actual shouldContainExactly expected
+    }
+
+    @Test
+    fun `it matches bliki on unusual links and markup`() {
+        val expected = parseWithBliki(ByteArrayInputStream(trickyDump))
+        val actual = parseWithBytes(ByteArrayInputStream(trickyDump), stripSectionAnchors = false)
+
+        expected.map { it.title } shouldContainExactly listOf("Alpha", "Beta", "Gamma", "Delta", "Epsilon", "Zeta", "Eta", "Theta")
+        actual shouldContainExactly expected
+    }
+
+    @Test
+    fun `section anchors are cut off and redirect targets are normalized`() {
+        val pages = parseWithBytes(ByteArrayInputStream(trickyDump), stripSectionAnchors = true).associateBy { it.title }
+
+        pages.getValue("Alpha").links shouldContainExactly listOf("Beta", "Gamma", "A")
+        pages.getValue("Gamma").redirectTarget shouldBe "Alpha"
+    }
+
+    @Test
+    fun `it can be chosen for reading a dump`() {
+        val xml = dump("Alpha" to "[[beta#History|b]]", "Beta" to "text")
+        fun linksOfAlpha(extractor: WikiProcessor.LinkExtractor): List<String> {
+            val result = WikiProcessor.readPagesWithStats(ByteArrayInputStream(xml), extractor)
+            val titles = result.pages.associate { it.id to it.title }
+            val alpha = result.pages.single { it.title == "Alpha" }
+            return buildList { alpha.forEachLink { add(titles.getValue(it)) } }
+        }
+
+        linksOfAlpha(WikiProcessor.LinkExtractor.BLIKI) shouldBe emptyList()
+        linksOfAlpha(WikiProcessor.LinkExtractor.BYTES) shouldContainExactly listOf("Beta")
+    }
+}
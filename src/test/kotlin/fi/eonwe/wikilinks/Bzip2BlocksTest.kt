@@ -0,0 +1,73 @@
+package fi.eonwe.wikilinks
+
+import io.kotest.matchers.comparables.shouldBeGreaterThan
+import io.kotest.matchers.shouldBe
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.lang.foreign.MemorySegment
+import java.util.BitSet
+import java.util.Random
+
+class Bzip2BlocksTest {
+
+    private val config = ProcessingConfig(parallelism = 4U, maxBlocksWaiting = 3U)
+
+    private val text: ByteArray = run {
+        val rng = Random(5L)
+        val words = listOf("wiki", "link", "page", "redirect", "[[", "]]", "title", "namespace", "\n")
+        buildString {
+            while (length < 1_500_000) {
+                append(words[rng.nextInt(words.size)]).append(rng.nextInt(1000)).append(' ')
+            }
+        }.toByteArray()
+    }
+
+    private fun compress(bytes: ByteArray, level: Int): ByteArray {
+        val out = ByteArrayOutputStream()
+        BZip2CompressorOutputStream(out, level).use { it.write(bytes) }
+        return out.toByteArray()
+    }
+
+    @Test
+    fun `blocks of a single stream decompress in parallel`() {
+        val compressed = compress(text, 1)
+        val data = MemorySegment.ofArray(compressed)
+        val parts = Bzip2BlockParts.of(data, parallelism = 4)!!
+
+        parts.ranges.size shouldBeGreaterThan 5
+        val markers = Bzip2BlockScanner.scan(data, parallelism = 3, sliceSize = 4099)
+        markers.bitOffsets.toList() shouldBe Bzip2BlockScanner.scan(data, parallelism = 1).bitOffsets.toList()
+        ParallelBzip2InputStream(parts, config).use { it.readAllBytes() } shouldBe text
+    }
+
+    @Test
+    fun `false markers inside blocks are decompressed across`() {
+        val compressed = compress(text, 1)
+        val data = MemorySegment.ofArray(compressed)
+        val real = Bzip2BlockScanner.scan(data, parallelism = 1)
+        val realBlocks = (0 until real.size).count { !real.isEndOfStream(it) }
+
+        // Pretend the scan also matched in the middle of two blocks, once for each magic.
+        val offsets = real.bitOffsets.toMutableList()
+        val fakeBlock = (offsets[1] + offsets[2]) / 2 + 3
+        val fakeEnd = (offsets[3] + offsets[4]) / 2 + 5
+        offsets += listOf(fakeBlock, fakeEnd)
+        offsets.sort()
+        val endOfStream = BitSet()
+        offsets.forEachIndexed { i, offset ->
+            val realIndex = real.bitOffsets.binarySearch(offset)
+            if ((realIndex >= 0 && real.isEndOfStream(realIndex)) || offset == fakeEnd) endOfStream.set(i)
+        }
+        val parts = Bzip2BlockParts(data, Bzip2Markers(offsets.toLongArray(), endOfStream), level = 1)
+
+        parts.ranges.size shouldBe realBlocks + 1
+        ParallelBzip2InputStream(parts, config).use { it.readAllBytes() } shouldBe text
+    }
+
+    @Test
+    fun `data that is not bzip2 has no blocks`() {
+        Bzip2BlockParts.of(MemorySegment.ofArray("BZh0 not really".toByteArray()), 2) shouldBe null
+        Bzip2BlockParts.of(MemorySegment.ofArray(ByteArray(3)), 2) shouldBe null
+    }
+}
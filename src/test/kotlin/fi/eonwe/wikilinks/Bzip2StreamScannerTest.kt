@@ -0,0 +1,51 @@
+package fi.eonwe.wikilinks
+
+import io.kotest.matchers.shouldBe
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream
+import org.junit.jupiter.api.Test
+import java.lang.foreign.MemorySegment
+import java.util.Random
+
+class Bzip2StreamScannerTest {
+
+    private val signature = byteArrayOf(0x42, 0x5A, 0x68, '9'.code.toByte(), 0x31, 0x41, 0x59, 0x26, 0x53, 0x59)
+
+    private fun naiveStarts(data: ByteArray): List<Long> {
+        return (0..data.size - signature.size)
+            .filter { pos -> signature.indices.all { data[pos + it] == signature[it] } }
+            .map { it.toLong() }
+    }
+
+    @Test
+    fun `signatures straddling slice boundaries are found once`() {
+        val rng = Random(3L)
+        val data = ByteArray(4096).also { rng.nextBytes(it) }
+        // Sprinkle in plenty of lone 'B's and partial signatures around the real ones.
+        for (i in data.indices step 7) data[i] = 0x42
+        for (pos in listOf(0, 17, 63, 500, 1021, 2047, 2058, 4086)) {
+            signature.copyInto(data, pos)
+        }
+        val expected = naiveStarts(data)
+        expected.size shouldBe 8
+
+        for (sliceSize in listOf(1L, 7L, 8L, 13L, 64L, 1000L, 1L shl 20)) {
+            Bzip2StreamScanner.streamStarts(MemorySegment.ofArray(data), 4, sliceSize).toList() shouldBe expected
+        }
+    }
+
+    @Test
+    fun `stream starts of a multistream dump match its index`() {
+        val pages = (0 until 400).map { TestHelper.SyntheticPage("Page $it", "[[Page ${(it * 7) % 400}]]") }
+        val dump = TestHelper.syntheticMultistreamDump(pages, pagesPerStream = 9)
+        val indexed = WikiReader.parseIndexRanges(
+            BZip2CompressorInputStream(dump.index.inputStream()),
+            dump.dump.size.toLong()
+        ).map { it.start }
+
+        val scanned = Bzip2StreamScanner.streamStarts(MemorySegment.ofArray(dump.dump), 3, sliceSize = 512).toList()
+
+        // The index does not list the trailing stream that closes the document.
+        scanned.dropLast(1) shouldBe indexed
+        scanned shouldBe naiveStarts(dump.dump)
+    }
+}
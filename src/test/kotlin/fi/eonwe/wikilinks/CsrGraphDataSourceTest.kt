@@ -0,0 +1,54 @@
+package fi.eonwe.wikilinks
+
+import fi.eonwe.wikilinks.TestHelper.usingTempDirectory
+import fi.eonwe.wikilinks.segmentgraph.CsrGraphDataSource
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.nio.file.Files
+import java.nio.file.Path
+
+class CsrGraphDataSourceTest {
+
+    private fun usingDirectory(block: (Path) -> Unit) = usingTempDirectory("csr-test-") { dir ->
+        block(dir)
+        Files.list(dir).use { files -> files.count() } shouldBe 0L
+    }
+
+    @Test
+    fun `out and in links are read back in node order`() {
+        // Node i links to the next few multiples of 3, so the graph has enough in-links to need sort runs.
+        val ids = (0 until 3000).map { it * 3 }
+        val outLinks = ids.associateWith { id -> (1..5).map { (id + it * 3) % 9000 }.sorted().toIntArray() }
+        usingDirectory { dir ->
+            val builder = CsrGraphDataSource.Builder(dir, sortBufferBytes = 8 * 1024)
+            ids.forEach { builder.add(it, it % 7 == 0, outLinks.getValue(it), outLinks.getValue(it).size) }
+            builder.build { "Page $it" }.use { graph ->
+                graph.nodeCount shouldBe ids.size
+                graph.edgeCount shouldBe ids.size * 5L
+                graph.titleOf(9) shouldBe "Page 9"
+                graph.titleOf(10) shouldBe null
+
+                val nodes = buildList { graph.forEachNode { add(it) } }
+                nodes.map { it.id } shouldBe ids
+                nodes.map { it.title } shouldBe ids.map { "Page $it" }
+                nodes.map { it.isRedirect } shouldBe ids.map { it % 7 == 0 }
+                nodes.map { it.outLinks.toList() } shouldBe ids.map { outLinks.getValue(it).toList() }
+
+                val inLinks = buildList { graph.inLinks.forEachInLinks { id, sources -> add(id to sources.toList()) } }
+                inLinks shouldBe ids.map { target -> target to ids.filter { target in outLinks.getValue(it) } }
+            }
+        }
+    }
+
+    @Test
+    fun `links to missing nodes are rejected`() {
+        usingDirectory { dir ->
+            CsrGraphDataSource.Builder(dir, sortBufferBytes = 1024).use { builder ->
+                builder.add(1, false, intArrayOf(2), 1)
+                builder.add(3, false, intArrayOf(1), 1)
+                Assertions.assertThrows(IllegalArgumentException::class.java) { builder.build { "Page $it" } }
+            }
+        }
+    }
+}
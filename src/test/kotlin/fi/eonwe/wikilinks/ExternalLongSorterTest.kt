@@ -0,0 +1,45 @@
+package fi.eonwe.wikilinks
+
+import fi.eonwe.wikilinks.utils.ExternalLongSorter
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+import java.nio.file.Files
+import java.util.Random
+
+class ExternalLongSorterTest {
+
+    private fun sortAll(values: LongArray, bufferLongs: Int): Pair<List<Long>, Int> {
+        val dir = Files.createTempDirectory("sorter-test-")
+        try {
+            ExternalLongSorter(dir, bufferLongs).use { sorter ->
+                values.forEach { sorter.add(it) }
+                val sorted = ArrayList<Long>(values.size)
+                sorter.forEachSorted { sorted.add(it) }
+                sorter.size shouldBe values.size.toLong()
+                return sorted to sorter.runCount
+            }
+        } finally {
+            Files.list(dir).use { files -> files.count() } shouldBe 0L
+            Files.delete(dir)
+        }
+    }
+
+    @Test
+    fun `values that fit in the buffer are sorted in memory`() {
+        val values = longArrayOf(5, -3, Long.MAX_VALUE, 0, 5, Long.MIN_VALUE)
+        val (sorted, runs) = sortAll(values, 1024)
+
+        sorted shouldBe values.sorted()
+        runs shouldBe 0
+    }
+
+    @Test
+    fun `runs are merged with the rest of the buffer`() {
+        val random = Random(42)
+        val values = LongArray(10_000) { random.nextLong() % 500 }
+        val (sorted, runs) = sortAll(values, 1024)
+
+        sorted shouldBe values.sorted()
+        runs shouldBe 9
+    }
+}
@@ -0,0 +1,97 @@
+package fi.eonwe.wikilinks
+
+import fi.eonwe.wikilinks.TestHelper.usingTempDirectory
+import io.kotest.matchers.comparables.shouldBeGreaterThan
+import io.kotest.matchers.comparables.shouldBeLessThan
+import io.kotest.matchers.shouldBe
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream
+import org.junit.jupiter.api.Test
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.FileTime
+
+class IngestCheckpointTest {
+
+    private val pages = TestHelper.syntheticPages(900) { i ->
+        when {
+            i % 19 == 7 -> "#REDIRECT [[Page ${(i * 5) % 900}]]"
+            else -> "[[Page ${(i * 7) % 900}]] [[page ${(i + 3) % 900}|x]] [[Missing ${i % 40}]]"
+        }
+    }
+    private val dump = TestHelper.syntheticMultistreamDump(pages, pagesPerStream = 30)
+    private val substreamCount = BZip2CompressorInputStream(dump.index.inputStream()).use {
+        WikiReader.parseIndexRanges(it, dump.dump.size.toLong()).size
+    }
+
+    private val expected = BZip2CompressorInputStream(dump.dump.inputStream(), true).use {
+        WikiProcessor.readPagesWithStats(it)
+    }
+
+    private fun usingDump(block: (xmlPath: Path, checkpoint: Path) -> Unit) {
+        usingTempDirectory("checkpoint-test-") { dir ->
+            val xmlPath = dir.resolve("synthetic.xml.bz2")
+            Files.write(xmlPath, dump.dump)
+            Files.write(dir.resolve("synthetic-index.txt.bz2"), dump.index)
+            block(xmlPath, dir.resolve("convert.checkpoint"))
+        }
+    }
+
+    private fun read(xmlPath: Path, checkpoint: Path): WikiProcessor.ReadPagesResult {
+        return WikiReader.readPagesWithStats(
+            FileCompressedSource(xmlPath),
+            ProcessingConfig(parallelism = 4U, maxBlocksWaiting = 3U, checkpoint = checkpoint)
+        )
+    }
+
+    private fun completedIn(checkpoint: Path, xmlPath: Path): Int {
+        return IngestCheckpoint.open(checkpoint, xmlPath, substreamCount, WikiProcessor.LinkExtractor.BLIKI, 1000)
+            .use { it.completedSubstreams }
+    }
+
+    private fun WikiProcessor.ReadPagesResult.shouldMatchExpected() {
+        pages.map { it.id to it.title } shouldBe expected.pages.map { it.id to it.title }
+        pages.map { page -> buildList { page.forEachLink { add(it) } } } shouldBe
+            expected.pages.map { page -> buildList { page.forEachLink { add(it) } } }
+        beforeRedirectCleanup shouldBe expected.beforeRedirectCleanup
+        afterRedirectCleanup shouldBe expected.afterRedirectCleanup
+    }
+
+    @Test
+    fun `a checkpointed read records every substream`() {
+        usingDump { xmlPath, checkpoint ->
+            read(xmlPath, checkpoint).shouldMatchExpected()
+
+            completedIn(checkpoint, xmlPath) shouldBe substreamCount
+            read(xmlPath, checkpoint).shouldMatchExpected()
+        }
+    }
+
+    @Test
+    fun `a read cut short resumes after the last complete substream`() {
+        usingDump { xmlPath, checkpoint ->
+            read(xmlPath, checkpoint)
+            // Cut the file in the middle of a record, as a crash while writing would.
+            FileChannel.open(checkpoint, StandardOpenOption.WRITE).use { it.truncate(it.size() / 2 + 3) }
+            val completed = completedIn(checkpoint, xmlPath)
+            completed shouldBeGreaterThan 0
+            completed shouldBeLessThan substreamCount
+
+            read(xmlPath, checkpoint).shouldMatchExpected()
+            completedIn(checkpoint, xmlPath) shouldBe substreamCount
+        }
+    }
+
+    @Test
+    fun `a checkpoint of another dump is not used`() {
+        usingDump { xmlPath, checkpoint ->
+            read(xmlPath, checkpoint)
+            Files.setLastModifiedTime(xmlPath, FileTime.fromMillis(Files.getLastModifiedTime(xmlPath).toMillis() - 60_000))
+
+            completedIn(checkpoint, xmlPath) shouldBe 0
+            read(xmlPath, checkpoint).shouldMatchExpected()
+            completedIn(checkpoint, xmlPath) shouldBe substreamCount
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package fi.eonwe.wikilinks
+
+import io.kotest.matchers.collections.shouldContainExactly
+import io.kotest.matchers.comparables.shouldBeGreaterThan
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.string.shouldContain
+import io.kotest.matchers.string.shouldStartWith
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.ByteBuffer
+
+class IngestTelemetryTest {
+
+    private val pages = TestHelper.syntheticPages(600) { i ->
+        if (i % 13 == 4) "#REDIRECT [[Page ${i - 1}]]" else "[[Page ${(i * 7) % 600}]] [[Page ${(i + 1) % 600}]]"
+    }
+    private val dump = TestHelper.syntheticMultistreamDump(pages, pagesPerStream = 25)
+    private val xmlSize = BZip2CompressorInputStream(dump.dump.inputStream(), true).use { it.readAllBytes().size.toLong() }
+
+    private fun readWith(config: ProcessingConfig): Pair<WikiProcessor.ReadPagesResult, IngestTelemetry.Snapshot> {
+        val result = WikiReader.readPagesWithStats(ByteBufferCompressedSource(ByteBuffer.wrap(dump.dump)), config)
+        val telemetry = config.telemetry!!
+        telemetry.completedStages.map { it.name } shouldContainExactly listOf("read", "resolve")
+        return result to telemetry.snapshot()
+    }
+
+    @Test
+    fun `reading a dump counts bytes, pages and links`() {
+        for (parseSubstreams in listOf(false, true)) {
+            val config = ProcessingConfig(
+                parallelism = 4U,
+                maxBlocksWaiting = 3U,
+                parseSubstreams = parseSubstreams,
+                telemetry = IngestTelemetry()
+            )
+            val (result, snapshot) = readWith(config)
+            val mainPages = pages.filter { it.namespace == 0 }
+
+            snapshot.compressedBytes shouldBe dump.dump.size.toLong()
+            snapshot.decompressedBytes shouldBe xmlSize
+            snapshot.pages shouldBe mainPages.size.toLong()
+            snapshot.links shouldBe mainPages.sumOf { if (it.text.startsWith("#REDIRECT")) 0L else 2L }
+            // No page links twice to the same page, so every resolved link is kept.
+            snapshot.resolvedLinks shouldBe result.pages.sumOf { it.linkCount.toLong() }
+            snapshot.titles shouldBe 600
+            snapshot.workerBusyNanos shouldBeGreaterThan 0L
+        }
+    }
+
+    @Test
+    fun `summary and reports are written`() {
+        val telemetry = IngestTelemetry()
+        val out = ByteArrayOutputStream()
+        telemetry.startReporting(10, PrintStream(out, true)).use {
+            readWith(ProcessingConfig(parallelism = 2U, maxBlocksWaiting = 2U, telemetry = telemetry))
+            Thread.sleep(50)
+        }
+
+        out.toString() shouldContain "pages/s"
+        out.toString() shouldContain "resolved links/s"
+        val json = telemetry.toJson()
+        json shouldStartWith "{\"compressedBytes\":${dump.dump.size},"
+        json shouldContain "\"stages\":[{\"name\":\"read\","
+        json shouldContain "\"heapPeakBytes\":"
+        json shouldContain "\"resolvedLinksPerSecond\":"
+    }
+
+    @Test
+    fun `streaming a graph to its writer is a write stage inside the resolve stage`() {
+        val telemetry = IngestTelemetry()
+        val config = ProcessingConfig(parallelism = 2U, maxBlocksWaiting = 2U, telemetry = telemetry)
+        var nodes = 0
+        BZip2CompressorInputStream(dump.dump.inputStream(), true).use { input ->
+            WikiProcessor.writeGraph(input, config) { graph -> graph.forEachNode { nodes++ } }
+        }
+
+        nodes shouldBeGreaterThan 0
+        telemetry.completedStages.map { it.name } shouldContainExactly
+            listOf(IngestTelemetry.READ_STAGE, IngestTelemetry.WRITE_STAGE, IngestTelemetry.RESOLVE_STAGE)
+    }
+
+    @Test
+    fun `a nested stage keeps the high-water mark of the stage around it`() {
+        val telemetry = IngestTelemetry()
+        val size = 64 * 1024 * 1024
+        telemetry.stage("outer") {
+            var block: ByteArray? = ByteArray(size)
+            Thread.sleep(5 * IngestTelemetry.HEAP_SAMPLE_MILLIS)
+            block!![0] = 1
+            block = null
+            System.gc()
+            telemetry.stage("inner") { }
+        }
+
+        val (inner, outer) = telemetry.completedStages
+        outer.heapPeakBytes shouldBeGreaterThan size.toLong()
+        outer.heapPeakBytes shouldBeGreaterThan inner.heapPeakBytes
+    }
+}
@@ -3,9 +3,14 @@ package fi.eonwe.wikilinks
 import fi.eonwe.wikilinks.TestHelper.usingTestDump
 import fi.eonwe.wikilinks.fatpages.PagePointer
 import fi.eonwe.wikilinks.fatpages.WikiPageData
+import fi.eonwe.wikilinks.segmentgraph.SectionAccess
+import fi.eonwe.wikilinks.segmentgraph.SegmentSection
 import fi.eonwe.wikilinks.segmentgraph.SegmentWikiGraphSerialization
+import fi.eonwe.wikilinks.segmentgraph.SegmentWikiGraphStore
 import fi.eonwe.wikilinks.segmentgraph.SegmentWikiRoutes
+import fi.eonwe.wikilinks.segmentgraph.WarmupOptions
 import io.kotest.matchers.collections.shouldContainExactly
+import io.kotest.matchers.shouldBe
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.Timeout
@@ -76,4 +81,67 @@ class SegmentGraphIntegrationTest {
             Files.deleteIfExists(temp)
         }
     }
+
+    @Test
+    fun `warmup loads every section and runs routes before the store is ready`() {
+        val pages = (0 until 500).map { i -> WikiPageData("Page $i", i, emptyList()) }
+        val withLinks = pages.map { page ->
+            val links = listOf((page.id + 1) % 500, (page.id * 7) % 500).map { PagePointer(pages[it]) }
+            WikiPageData(page.title, page.id, links)
+        }
+
+        val temp = Files.createTempFile("wikilinks-segment-warmup-", ".graph")
+        try {
+            java.nio.channels.FileChannel.open(temp, StandardOpenOption.WRITE).use { channel ->
+                SegmentWikiGraphSerialization().serializeFatPages(withLinks, channel)
+            }
+
+            SegmentWikiGraphSerialization.open(temp).use { store ->
+                val routes = SegmentWikiRoutes(store)
+                routes.isReady shouldBe false
+                val report = routes.warmup(
+                    WarmupOptions(
+                        advice = mapOf(SegmentSection.OUT_EDGES to SectionAccess.RANDOM),
+                        parallelism = 3,
+                        maxQueries = 200,
+                        roundQueries = 20
+                    )
+                )
+
+                routes.isReady shouldBe true
+                report.prefaultedBytes shouldBe Files.size(temp) - SegmentWikiGraphStore.HEADER_SIZE_BYTES
+                report.advised.keys shouldBe setOf(SegmentSection.OUT_EDGES)
+                (report.queries in 40..200) shouldBe true
+                routes.findRoute("Page 1", "Page 3") shouldContainExactly listOf("Page 1", "Page 2", "Page 3")
+            }
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+    }
+
+    @Test
+    fun `warmup keeps going while rounds get faster`() {
+        val pages = (0 until 50).map { i -> WikiPageData("Page $i", i, emptyList()) }
+        val temp = Files.createTempFile("wikilinks-segment-warmup-", ".graph")
+        try {
+            java.nio.channels.FileChannel.open(temp, StandardOpenOption.WRITE).use { channel ->
+                SegmentWikiGraphSerialization().serializeFatPages(pages, channel)
+            }
+
+            SegmentWikiGraphSerialization.open(temp).use { store ->
+                // A slow first round, a much faster second one and a third that is about as fast as the second.
+                val roundNanos = listOf(1_000_000L, 300_000L, 290_000L, 280_000L)
+                var routes = 0
+                val report = SegmentWikiRoutes(store).warmup(
+                    WarmupOptions(advice = emptyMap(), parallelism = 1, maxQueries = 200, roundQueries = 20)
+                ) { _, _ -> roundNanos[routes++ / 20] }
+
+                report.queries shouldBe 60
+                report.latencyStable shouldBe true
+                report.tailLatencyMicros shouldBe 290
+            }
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+    }
 }
@@ -0,0 +1,327 @@
+package fi.eonwe.wikilinks
+
+import fi.eonwe.wikilinks.TestHelper.usingTempDirectory
+import fi.eonwe.wikilinks.segmentgraph.CsrGraphDataSource
+import fi.eonwe.wikilinks.segmentgraph.GraphDataSource
+import fi.eonwe.wikilinks.segmentgraph.IntCursor
+import fi.eonwe.wikilinks.segmentgraph.NodeRecord
+import fi.eonwe.wikilinks.segmentgraph.SegmentWikiGraphSerialization
+import fi.eonwe.wikilinks.segmentgraph.SegmentStoreGraphDataSource
+import fi.eonwe.wikilinks.segmentgraph.SegmentWikiRoutes
+import fi.eonwe.wikilinks.segmentgraph.TitleAlias
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+class SegmentWikiGraphSerializationTest {
+
+    private class ListSource(
+        private val nodes: List<NodeRecord>,
+        private val aliases: List<TitleAlias> = emptyList()
+    ) : GraphDataSource {
+        override val nodeCount: Int
+            get() = nodes.size
+
+        override fun titleOf(id: Int): String? = nodes.firstOrNull { it.id == id }?.title
+
+        override fun forEachNode(consumer: (NodeRecord) -> Unit) = nodes.forEach(consumer)
+
+        override fun forEachAlias(consumer: (TitleAlias) -> Unit) = aliases.forEach(consumer)
+    }
+
+    // Ids are spread out and handed over in a shuffled order; links are not sorted.
+    private val nodes = (0 until 2000).map { i ->
+        val id = i * 7 + 3
+        NodeRecord(
+            id = id,
+            title = if (i % 3 == 0) "Ä title $i" else "Title $i",
+            isRedirect = i % 11 == 0,
+            outLinks = (1..(i % 6)).map { ((i * 31 + it * 17) % 2000) * 7 + 3 }.distinct().reversed().toIntArray()
+        )
+    }.shuffled(java.util.Random(7))
+
+    private fun write(
+        source: GraphDataSource,
+        file: Path,
+        spill: Path,
+        budget: Long,
+        parallelism: Int = 1,
+        compressEdges: Boolean = false,
+        denseLayout: Boolean = false,
+        frontCodeTitles: Boolean = false,
+        bfsOrder: Boolean = false
+    ) {
+        FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).use { channel ->
+            SegmentWikiGraphSerialization(spill, budget, parallelism, compressEdges, denseLayout, frontCodeTitles, bfsOrder)
+                .serialize(source, channel)
+        }
+    }
+
+    private fun IntCursor.toList(): List<Int> = buildList { while (hasNext()) add(nextInt()) }
+
+    @Test
+    fun `edges sorted through runs give the graph that was written`() {
+        usingTempDirectory("segment-writer-test-") { dir ->
+            val spill = Files.createDirectory(dir.resolve("spill"))
+            val file = dir.resolve("graph.segment")
+            write(ListSource(nodes), file, spill, budget = 8 * 1024)
+            Files.list(spill).use { it.count() } shouldBe 0L
+
+            SegmentWikiGraphSerialization.open(file).use { store ->
+                store.nodeCount shouldBe nodes.size
+                for (node in nodes) {
+                    store.titleOf(node.id) shouldBe node.title
+                    store.isRedirect(node.id) shouldBe node.isRedirect
+                    store.findIdByTitle(node.title) shouldBe node.id
+                    store.outNeighbors(node.id).toList() shouldBe node.outLinks.toList()
+                    store.inNeighbors(node.id).toList() shouldBe
+                        nodes.filter { node.id in it.outLinks }.map { it.id }.sorted()
+                }
+                store.findTitlesByPrefix("Ä", 3) shouldBe nodes.map { it.title }.filter { it.startsWith("Ä") }.sorted().take(3)
+                buildList { store.forEachNode { add(it.id) } } shouldBe nodes.map { it.id }.sorted()
+            }
+        }
+    }
+
+    @Test
+    fun `a source with in-links is written the same as one whose in-links are sorted`() {
+        usingTempDirectory("segment-writer-test-") { dir ->
+            val sorted = nodes.sortedBy { it.id }
+            val builder = CsrGraphDataSource.Builder(dir, 4096)
+            sorted.forEach { builder.add(it.id, it.isRedirect, it.outLinks, it.outLinks.size) }
+            val titles = sorted.associate { it.id to it.title }
+            builder.build { titles.getValue(it) }.use { csr ->
+                write(csr, dir.resolve("from-csr.segment"), dir, budget = 1 shl 20)
+            }
+            write(ListSource(sorted), dir.resolve("from-list.segment"), dir, budget = 1024)
+
+            Files.mismatch(dir.resolve("from-csr.segment"), dir.resolve("from-list.segment")) shouldBe -1L
+        }
+    }
+
+    @Test
+    fun `sections written on several threads give the file written on one`() {
+        usingTempDirectory("segment-writer-test-") { dir ->
+            write(ListSource(nodes), dir.resolve("one.segment"), dir, budget = 8 * 1024)
+            write(ListSource(nodes), dir.resolve("four.segment"), dir, budget = 8 * 1024, parallelism = 4)
+
+            Files.mismatch(dir.resolve("one.segment"), dir.resolve("four.segment")) shouldBe -1L
+        }
+    }
+
+    @Test
+    fun `compressed edges give the same graph with sorted links in a smaller file`() {
+        usingTempDirectory("segment-writer-test-") { dir ->
+            val sorted = nodes.sortedBy { it.id }
+            val builder = CsrGraphDataSource.Builder(dir, 4096)
+            sorted.forEach { builder.add(it.id, it.isRedirect, it.outLinks, it.outLinks.size) }
+            val titles = sorted.associate { it.id to it.title }
+            builder.build { titles.getValue(it) }.use { csr ->
+                write(csr, dir.resolve("from-csr.segment"), dir, budget = 1 shl 20, compressEdges = true)
+            }
+            write(ListSource(nodes), dir.resolve("raw.segment"), dir, budget = 8 * 1024)
+            write(ListSource(sorted), dir.resolve("from-list.segment"), dir, budget = 8 * 1024, compressEdges = true)
+            write(ListSource(nodes), dir.resolve("compressed.segment"), dir, budget = 8 * 1024, compressEdges = true)
+
+            Files.mismatch(dir.resolve("from-csr.segment"), dir.resolve("from-list.segment")) shouldBe -1L
+            (Files.size(dir.resolve("compressed.segment")) < Files.size(dir.resolve("raw.segment"))) shouldBe true
+            SegmentWikiGraphSerialization.open(dir.resolve("compressed.segment")).use { store ->
+                for (node in nodes) {
+                    store.titleOf(node.id) shouldBe node.title
+                    store.findIdByTitle(node.title) shouldBe node.id
+                    store.outNeighbors(node.id).toList() shouldBe node.outLinks.sorted()
+                    store.inNeighbors(node.id).toList() shouldBe
+                        nodes.filter { node.id in it.outLinks }.map { it.id }.sorted()
+                }
+                buildList { store.forEachNode { add(it.id to it.outLinks.toList()) } } shouldBe
+                    sorted.map { it.id to it.outLinks.sorted() }
+            }
+        }
+    }
+
+    @Test
+    fun `a dense layout numbers nodes in id order and keeps their titles and links`() {
+        usingTempDirectory("segment-writer-test-") { dir ->
+            val numberOf = nodes.map { it.id }.sorted().withIndex().associate { (number, id) -> id to number }
+            val aliases = listOf(TitleAlias("Alias of 10", nodes[10].id))
+            write(ListSource(nodes, aliases), dir.resolve("records.segment"), dir, budget = 8 * 1024)
+            for (compressEdges in listOf(false, true)) {
+                val file = dir.resolve("dense-$compressEdges.segment")
+                val source = ListSource(nodes, aliases)
+                write(source, file, dir, budget = 8 * 1024, parallelism = 3, compressEdges = compressEdges, denseLayout = true)
+                (Files.size(file) < Files.size(dir.resolve("records.segment"))) shouldBe true
+
+                SegmentWikiGraphSerialization.open(file).use { store ->
+                    store.nodeCount shouldBe nodes.size
+                    for (node in nodes) {
+                        val number = numberOf.getValue(node.id)
+                        val outLinks = node.outLinks.map { numberOf.getValue(it) }
+                        store.titleOf(number) shouldBe node.title
+                        store.isRedirect(number) shouldBe node.isRedirect
+                        store.findIdByTitle(node.title) shouldBe number
+                        store.outNeighbors(number).toList() shouldBe if (compressEdges) outLinks.sorted() else outLinks
+                        store.inNeighbors(number).toList() shouldBe
+                            nodes.filter { node.id in it.outLinks }.map { numberOf.getValue(it.id) }.sorted()
+                    }
+                    store.findIdByTitle("Alias of 10") shouldBe numberOf.getValue(nodes[10].id)
+                    buildList { store.forEachNode { add(it.id) } } shouldBe nodes.indices.toList()
+                    Assertions.assertThrows(IllegalArgumentException::class.java) { store.titleOf(nodes.size) }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `nodes numbered in breadth-first order keep their links and route lengths`() {
+        usingTempDirectory("segment-writer-test-") { dir ->
+            val byId = nodes.associateBy { it.id }
+            // Among the most linked nodes, the one with the lowest id.
+            val linkedFrom = nodes.flatMap { it.outLinks.toList() }.groupingBy { it }.eachCount()
+            val hub = linkedFrom.filterValues { it == linkedFrom.values.max() }.keys.min()
+            val idOrdered = dir.resolve("id-order.segment")
+            write(ListSource(nodes), idOrdered, dir, budget = 8 * 1024, denseLayout = true)
+            for (compressEdges in listOf(false, true)) {
+                val file = dir.resolve("bfs-$compressEdges.segment")
+                val source = ListSource(nodes)
+                write(source, file, dir, budget = 8 * 1024, compressEdges = compressEdges, denseLayout = true, bfsOrder = true)
+
+                SegmentWikiGraphSerialization.open(idOrdered).use { expected ->
+                    SegmentWikiGraphSerialization.open(file).use { store ->
+                        store.titleOf(0) shouldBe byId.getValue(hub).title
+                        for (node in nodes) {
+                            val number = store.findIdByTitle(node.title)!!
+                            store.isRedirect(number) shouldBe node.isRedirect
+                            store.outNeighbors(number).toList().map(store::titleOf).sorted() shouldBe
+                                node.outLinks.map { byId.getValue(it).title }.sorted()
+                            store.inNeighbors(number).toList().map(store::titleOf).sorted() shouldBe
+                                nodes.filter { node.id in it.outLinks }.map { it.title }.sorted()
+                        }
+                        val routes = SegmentWikiRoutes(store)
+                        val expectedRoutes = SegmentWikiRoutes(expected)
+                        for (i in 0 until 200) {
+                            val start = nodes[i * 7 % nodes.size].title
+                            val end = nodes[i * 13 % nodes.size].title
+                            val route = routes.findRoute(start, end)
+                            route.size shouldBe expectedRoutes.findRoute(start, end).size
+                            for ((from, to) in route.zipWithNext()) {
+                                val fromNode = nodes.first { it.title == from }
+                                (to in fromNode.outLinks.map { byId.getValue(it).title }) shouldBe true
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `front coded titles answer like titles stored whole in a smaller file`() {
+        usingTempDirectory("segment-writer-test-") { dir ->
+            val aliases = (0 until 2000 step 97).map { TitleAlias("Title ${it}x", nodes[it].id) } +
+                TitleAlias("", nodes[5].id)
+            val source = ListSource(nodes, aliases)
+            val plain = dir.resolve("plain.segment")
+            val frontCoded = dir.resolve("front-coded.segment")
+            write(source, plain, dir, budget = 8 * 1024, denseLayout = true)
+            write(source, frontCoded, dir, budget = 8 * 1024, denseLayout = true, frontCodeTitles = true)
+            (Files.size(frontCoded) < Files.size(plain)) shouldBe true
+
+            SegmentWikiGraphSerialization.open(plain).use { expected ->
+                SegmentWikiGraphSerialization.open(frontCoded).use { store ->
+                    for (id in 0 until store.nodeCount) {
+                        store.titleOf(id) shouldBe expected.titleOf(id)
+                        store.findIdByTitle(expected.titleOf(id)) shouldBe id
+                        store.outNeighbors(id).toList() shouldBe expected.outNeighbors(id).toList()
+                    }
+                    for (alias in aliases) store.findIdByTitle(alias.title) shouldBe expected.findIdByTitle(alias.title)
+                    for (missing in listOf("Title", "Title 19999", "Ä", "Zzz", "Title 1x")) {
+                        store.findIdByTitle(missing) shouldBe null
+                    }
+                    for (prefix in listOf("", "T", "Title 1", "Title 123", "Title 1234", "Ä title 9", "Ö", "Title 12x")) {
+                        store.findTitlesByPrefix(prefix, 40) shouldBe expected.findTitlesByPrefix(prefix, 40)
+                    }
+                    buildList { store.forEachAlias { add(it) } } shouldBe buildList { expected.forEachAlias { add(it) } }
+                    store.hasTitle(store.randomTitle()!!) shouldBe true
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `nodes are found by contiguous, sparse and very sparse ids`() {
+        usingTempDirectory("segment-writer-test-") { dir ->
+            val spacings = mapOf("contiguous" to 1, "sparse" to 7, "very-sparse" to 1000)
+            for ((name, spacing) in spacings) {
+                val graph = (0 until 2000).map { i ->
+                    val links = intArrayOf((i + 1) % 2000, (i * 13) % 2000).distinct().map { it * spacing }
+                    NodeRecord(i * spacing, "Title $i", false, links.toIntArray())
+                }
+                val file = dir.resolve("$name.segment")
+                write(ListSource(graph.shuffled(java.util.Random(3))), file, dir, budget = 8 * 1024)
+
+                SegmentWikiGraphSerialization.open(file).use { store ->
+                    for (node in graph) {
+                        store.titleOf(node.id) shouldBe node.title
+                        store.outNeighbors(node.id).toList() shouldBe node.outLinks.toList()
+                    }
+                    for (missing in listOfNotNull(-1, 2000 * spacing, (spacing + 1).takeIf { spacing > 1 })) {
+                        Assertions.assertThrows(IllegalArgumentException::class.java) { store.outNeighbors(missing) }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `aliases find their node by title without becoming nodes`() {
+        usingTempDirectory("segment-writer-test-") { dir ->
+            val aliases = listOf(TitleAlias("Beta", 4), TitleAlias("Aardvark", 1), TitleAlias("Deltoid", 4))
+            val source = ListSource(
+                listOf(NodeRecord(4, "Delta", false, intArrayOf(1)), NodeRecord(1, "Alpha", false, intArrayOf(4))),
+                aliases
+            )
+            val file = dir.resolve("graph.segment")
+            write(source, file, dir, budget = 1024)
+
+            SegmentWikiGraphSerialization.open(file).use { store ->
+                store.nodeCount shouldBe 2
+                store.findIdByTitle("Beta") shouldBe 4
+                store.findIdByTitle("Aardvark") shouldBe 1
+                store.titleOf(4) shouldBe "Delta"
+                store.findTitlesByPrefix("", 10) shouldBe listOf("Aardvark", "Alpha", "Beta", "Delta", "Deltoid")
+                buildList { store.forEachAlias { add(it) } } shouldBe aliases.sortedBy { it.title }
+
+                // Converting a segment file keeps its aliases.
+                write(SegmentStoreGraphDataSource(store), dir.resolve("copy.segment"), dir, budget = 1024)
+            }
+            SegmentWikiGraphSerialization.open(dir.resolve("copy.segment")).use { copy ->
+                buildList { copy.forEachAlias { add(it) } } shouldBe aliases.sortedBy { it.title }
+            }
+
+            val orphan = ListSource(listOf(NodeRecord(1, "Alpha", false, IntArray(0))), listOf(TitleAlias("Beta", 2)))
+            val rejected = dir.resolve("rejected.segment")
+            Assertions.assertThrows(IllegalArgumentException::class.java) { write(orphan, rejected, dir, budget = 1024) }
+            Files.delete(rejected)
+        }
+    }
+
+    @Test
+    fun `links to missing nodes are rejected`() {
+        usingTempDirectory("segment-writer-test-") { dir ->
+            val source = ListSource(
+                listOf(
+                    NodeRecord(1, "A", false, intArrayOf(2)),
+                    NodeRecord(3, "C", false, intArrayOf(1))
+                )
+            )
+            val file = dir.resolve("graph.segment")
+            Assertions.assertThrows(IllegalArgumentException::class.java) { write(source, file, dir, budget = 1024) }
+            Files.delete(file)
+            Files.list(dir).use { it.count() } shouldBe 0L
+        }
+    }
+}
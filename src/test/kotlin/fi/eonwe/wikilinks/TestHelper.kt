@@ -1,7 +1,11 @@
 package fi.eonwe.wikilinks
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream
+import java.io.ByteArrayOutputStream
 import java.io.InputStream
 import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
 
 object TestHelper {
 
@@ -16,6 +20,79 @@ object TestHelper {
         return consumer(bb)
     }
 
+    /**
+     * Runs [block] with a new temporary directory, which is deleted with the files in it afterwards.
+     */
+    inline fun <T> usingTempDirectory(prefix: String, block: (Path) -> T): T {
+        val dir = Files.createTempDirectory(prefix)
+        try {
+            return block(dir)
+        } finally {
+            Files.list(dir).use { files -> files.forEach(Files::delete) }
+            Files.delete(dir)
+        }
+    }
+
+    data class SyntheticPage(val title: String, val text: String, val namespace: Int = 0)
+
+    /**
+     * Pages `Page 0` until `Page [count]` with the texts [text] gives them. Every tenth page is in namespace 1, so
+     * readers have pages to skip.
+     */
+    fun syntheticPages(count: Int, text: (Int) -> String): List<SyntheticPage> {
+        return (0 until count).map { i -> SyntheticPage("Page $i", text(i), namespace = if (i % 10 == 9) 1 else 0) }
+    }
+
+    data class SyntheticDump(val dump: ByteArray, val index: ByteArray)
+
+    /**
+     * Builds a multistream dump laid out like the Wikimedia ones: the header in its own bzip2 stream, then
+     * [pagesPerStream] pages per stream and finally the closing tag. The index uses the `offset:id:title` lines of
+     * the real sidecar files.
+     */
+    fun syntheticMultistreamDump(pages: List<SyntheticPage>, pagesPerStream: Int): SyntheticDump {
+        val dump = ByteArrayOutputStream()
+        val index = StringBuilder()
+        fun writeStream(text: String) {
+            BZip2CompressorOutputStream(dump).use { it.write(text.toByteArray(Charsets.UTF_8)) }
+        }
+        writeStream(
+            """
+            <mediawiki xmlns="http://www.mediawiki.org/xml/export-0.11/" version="0.11" xml:lang="en">
+              <siteinfo>
+                <sitename>SyntheticWiki</sitename>
+              </siteinfo>
+            """.trimIndent() + "\n"
+        )
+        pages.chunked(pagesPerStream).forEachIndexed { chunkIndex, chunk ->
+            val offset = dump.size()
+            val xml = StringBuilder()
+            chunk.forEachIndexed { i, page ->
+                val id = chunkIndex * pagesPerStream + i + 1
+                index.append(offset).append(':').append(id).append(':').append(page.title).append('\n')
+                xml.append("  <page>\n")
+                    .append("    <title>").append(escapeXml(page.title)).append("</title>\n")
+                    .append("    <ns>").append(page.namespace).append("</ns>\n")
+                    .append("    <id>").append(id).append("</id>\n")
+                    .append("    <revision>\n")
+                    .append("      <id>").append(id).append("</id>\n")
+                    .append("      <text xml:space=\"preserve\">").append(escapeXml(page.text)).append("</text>\n")
+                    .append("    </revision>\n")
+                    .append("  </page>\n")
+            }
+            writeStream(xml.toString())
+        }
+        writeStream("</mediawiki>\n")
+
+        val compressedIndex = ByteArrayOutputStream()
+        BZip2CompressorOutputStream(compressedIndex).use { it.write(index.toString().toByteArray(Charsets.UTF_8)) }
+        return SyntheticDump(dump.toByteArray(), compressedIndex.toByteArray())
+    }
+
+    private fun escapeXml(text: String): String {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;")
+    }
+
 }
 
 private const val SILESIAN = "/szlwiki-20190801-pages-articles-multistream.xml.bz2"
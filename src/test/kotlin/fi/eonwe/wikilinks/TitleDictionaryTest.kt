@@ -0,0 +1,84 @@
+package fi.eonwe.wikilinks
+
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+import kotlin.text.Charsets.UTF_8
+
+class TitleDictionaryTest {
+
+    @Test
+    fun `ids are dense and in insertion order`() {
+        val dictionary = TitleDictionary(4)
+        val titles = (0 until 5000).map { "Title $it" }
+
+        titles.map { dictionary.idOf(it) } shouldBe titles.indices.toList()
+        titles.map { dictionary.idOf(it) } shouldBe titles.indices.toList()
+        dictionary.size shouldBe titles.size
+        titles.indices.map { dictionary.titleOf(it) } shouldBe titles
+    }
+
+    @Test
+    fun `titles are looked up by string or by utf-8 bytes`() {
+        val dictionary = TitleDictionary()
+        val titles = listOf("Gůrny Ślůnsk", "Gdańsk", "𝔸lpha", "", "Ω")
+        titles.forEach { dictionary.idOf(it) }
+
+        for ((id, title) in titles.withIndex()) {
+            val bytes = "xx$title".toByteArray(UTF_8)
+            dictionary.find(title) shouldBe id
+            dictionary.find(bytes, 2, bytes.size - 2) shouldBe id
+            dictionary.idOf(bytes, 2, bytes.size - 2) shouldBe id
+            dictionary.titleLength(id) shouldBe bytes.size - 2
+        }
+        dictionary.find("Gdansk") shouldBe -1
+        dictionary.size shouldBe titles.size
+    }
+
+    @Test
+    fun `titles longer than a slab get a slab of their own`() {
+        val dictionary = TitleDictionary()
+        val long = "x".repeat(200_000)
+        dictionary.idOf("short") shouldBe 0
+        dictionary.idOf(long) shouldBe 1
+        dictionary.idOf("after") shouldBe 2
+
+        dictionary.titleOf(1) shouldBe long
+        dictionary.titleOf(2) shouldBe "after"
+    }
+
+    @Test
+    fun `ids translate between dictionaries`() {
+        val first = TitleDictionary()
+        val second = TitleDictionary()
+        listOf("A", "B", "C").forEach { first.idOf(it) }
+        listOf("C", "D").forEach { second.idOf(it) }
+
+        second.find(first, 2) shouldBe 0
+        second.find(first, 0) shouldBe -1
+    }
+
+    @Test
+    fun `threads adding the same titles at once agree on their ids`() {
+        val dictionary = TitleDictionary(16)
+        val titles = (0 until 20_000).map { "Title ${it % 7_000} ${"ä".repeat(it % 5)}" }
+        val threads = 8
+        val seen = Array(threads) { IntArray(titles.size) }
+        val workers = (0 until threads).map { t ->
+            Thread {
+                // Each thread walks the titles from a different place.
+                for (i in titles.indices) {
+                    val index = (i + t * 2_500) % titles.size
+                    seen[t][index] = dictionary.idOf(titles[index])
+                }
+            }
+        }
+        workers.forEach { it.start() }
+        workers.forEach { it.join() }
+
+        val distinct = titles.toSet()
+        dictionary.size shouldBe distinct.size
+        for (t in 1 until threads) seen[t].toList() shouldBe seen[0].toList()
+        titles.indices.map { dictionary.titleOf(seen[0][it]) } shouldBe titles
+        seen[0].toSet().size shouldBe distinct.size
+    }
+}
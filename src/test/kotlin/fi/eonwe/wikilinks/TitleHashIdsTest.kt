@@ -0,0 +1,31 @@
+package fi.eonwe.wikilinks
+
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+
+class TitleHashIdsTest {
+
+    @Test
+    fun `ids are dense and in insertion order`() {
+        val ids = TitleHashIds(4)
+        val titles = (0 until 5000).map { "Title $it" }
+
+        titles.map { ids.idOf(it) } shouldBe titles.indices.toList()
+        titles.map { ids.find(it) } shouldBe titles.indices.toList()
+        ids.size shouldBe titles.size
+        ids.find("Title 5000") shouldBe -1
+    }
+
+    @Test
+    fun `titles read back from a dictionary are found`() {
+        val ids = TitleHashIds()
+        val dictionary = TitleDictionary()
+        val titles = listOf("Gůrny Ślůnsk", "𝔸lpha", "", "Broken \uD835 surrogate", "Lone \uDC00 low")
+        titles.forEach {
+            ids.idOf(it)
+            dictionary.idOf(it)
+        }
+
+        titles.indices.map { ids.find(dictionary.titleOf(it)) } shouldBe titles.indices.toList()
+    }
+}
@@ -0,0 +1,36 @@
+package fi.eonwe.wikilinks
+
+import fi.eonwe.wikilinks.segmentgraph.TitleRadixSort
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+import java.lang.foreign.MemorySegment
+import java.util.Arrays
+import kotlin.random.Random
+import kotlin.text.Charsets.UTF_8
+
+class TitleRadixSortTest {
+
+    @Test
+    fun `titles sort by unsigned bytes and equal titles keep their order`() {
+        val random = Random(17)
+        val prefixes = listOf("", "List of ", "List of people from ", "Ä", "ä", "Z", "\u0000", "𝔸")
+        val titles = List(30_000) {
+            val prefix = prefixes[random.nextInt(prefixes.size)]
+            val tail = String(CharArray(random.nextInt(0, 12)) { "ab\u0000Åz"[random.nextInt(5)] })
+            prefix + tail
+        }
+        val encoded = titles.map { it.toByteArray(UTF_8) }
+        val offsets = LongArray(encoded.size)
+        for (i in 1 until encoded.size) offsets[i] = offsets[i - 1] + encoded[i - 1].size
+        val bytes = ByteArray(encoded.sumOf { it.size })
+        encoded.forEachIndexed { i, title -> title.copyInto(bytes, offsets[i].toInt()) }
+        val sorter = TitleRadixSort(MemorySegment.ofArray(bytes), offsets, IntArray(encoded.size) { encoded[it].size })
+        val expected = encoded.indices.sortedWith { a, b -> Arrays.compareUnsigned(encoded[a], encoded[b]) }
+
+        for (parallelism in listOf(1, 4)) {
+            val entries = IntArray(encoded.size) { it }
+            sorter.sort(entries, parallelism)
+            entries.toList() shouldBe expected
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package fi.eonwe.wikilinks
 
+import fi.eonwe.wikilinks.TestHelper.usingTempDirectory
 import fi.eonwe.wikilinks.TestHelper.usingTestDump
 import fi.eonwe.wikilinks.leanpages.BufferWikiPage
+import fi.eonwe.wikilinks.segmentgraph.BufferPagesGraphDataSource
+import fi.eonwe.wikilinks.segmentgraph.SegmentWikiGraphSerialization
+import fi.eonwe.wikilinks.segmentgraph.TitleAlias
 import io.kotest.matchers.collections.shouldContainAll
 import io.kotest.matchers.collections.shouldContainExactly
 import io.kotest.matchers.maps.shouldContainKeys
+import io.kotest.matchers.shouldBe
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream
 import org.junit.jupiter.api.Test
 import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
 import java.util.stream.Collectors
 
 class WikiProcessorTest {
@@ -102,4 +112,254 @@ class WikiProcessorTest {
         gammaLinks shouldContainExactly listOf(pagesByTitle["Alpha"]!!.id)
     }
 
+    @Test
+    fun `it drops pages outside the main namespace before parsing their text`() {
+        // The talk page text is not even well-formed XML, so parsing fails unless the page is skipped unread.
+        val wikiXml = """
+            <mediawiki>
+              <siteinfo>
+                <sitename>TestWiki</sitename>
+              </siteinfo>
+              <page>
+                <title>Talk:Alpha</title>
+                <ns>1</ns>
+                <id>1</id>
+                <revision>
+                  <text xml:space="preserve">[[Beta]] &undefined; <unclosed></text>
+                </revision>
+              </page>
+              <page>
+                <title>Alpha</title>
+                <ns>0</ns>
+                <id>2</id>
+                <revision>
+                  <text xml:space="preserve">[[Beta]]</text>
+                </revision>
+              </page>
+              <page>
+                <title>Template:Beta</title>
+                <ns>10</ns>
+                <id>3</id>
+                <revision>
+                  <text xml:space="preserve"><page></text>
+                </revision>
+              </page>
+              <page>
+                <title>Beta</title>
+                <ns>0</ns>
+                <id>4</id>
+                <revision>
+                  <text xml:space="preserve">[[Alpha]]</text>
+                </revision>
+              </page>
+            </mediawiki>
+        """.trimIndent().toByteArray()
+
+        for (extractor in WikiProcessor.LinkExtractor.entries) {
+            // Hand the bytes out a few at a time so that tags are split between reads.
+            val trickle = object : InputStream() {
+                private val bytes = wikiXml.inputStream()
+                override fun read(): Int = bytes.read()
+                override fun read(b: ByteArray, off: Int, len: Int): Int = bytes.read(b, off, minOf(len, 3))
+            }
+            val pages = WikiProcessor.readPagesWithStats(trickle, extractor).pages
+
+            pages.map { it.title } shouldContainExactly listOf("Alpha", "Beta")
+        }
+    }
+
+    @Test
+    fun `it drops redirects that lead nowhere and keeps the last page of a title`() {
+        val pages = listOf(
+            "Alpha" to "[[Beta]] [[Missing]] [[beta|b]] [[Self]]",
+            "Beta" to "#REDIRECT [[Alpha]]",
+            "Self" to "#REDIRECT [[Self]]",
+            "Dangling" to "#REDIRECT [[Nowhere]]",
+            "Gamma" to "[[Alpha]]",
+            "Gamma" to "[[Beta]]"
+        )
+        val wikiXml = buildString {
+            append("<mediawiki>\n")
+            pages.forEachIndexed { i, (title, text) ->
+                append("  <page>\n    <title>$title</title>\n    <ns>0</ns>\n    <id>${i + 1}</id>\n")
+                append("    <revision>\n      <text xml:space=\"preserve\">$text</text>\n    </revision>\n  </page>\n")
+            }
+            append("</mediawiki>\n")
+        }
+
+        val result = WikiProcessor.readPagesWithStats(wikiXml.byteInputStream())
+
+        result.pages.map { page -> page.title to buildList { page.forEachLink { add(it) } } } shouldContainExactly
+            listOf("Alpha" to listOf(1), "Beta" to listOf(0), "Gamma" to listOf(1))
+        result.pages.map { it.id } shouldContainExactly listOf(0, 1, 5)
+        result.beforeRedirectCleanup shouldBe WikiProcessor.GraphStatistics(
+            articleCount = 2, redirectCount = 3, linkCount = 3, nullLinkCount = 2
+        )
+        result.afterRedirectCleanup shouldBe WikiProcessor.GraphStatistics(
+            articleCount = 2, redirectCount = 1, linkCount = 2, nullLinkCount = 5
+        )
+    }
+
+    @Test
+    fun `collapsed redirects leave the graph and stay as aliases of the pages they lead to`() {
+        val pages = listOf(
+            "Alpha" to "[[Beta]] [[Loop one]] [[Delta]] [[Into loop]]",
+            "Beta" to "#REDIRECT [[Gamma]]",
+            "Gamma" to "#REDIRECT [[Delta]]",
+            "Delta" to "[[Beta]]",
+            "Loop one" to "#REDIRECT [[Loop two]]",
+            "Loop two" to "#REDIRECT [[Loop one]]",
+            "Into loop" to "#REDIRECT [[Loop two]]"
+        ).map { (title, text) -> TestHelper.SyntheticPage(title, text) }
+        val xml = TestHelper.syntheticMultistreamDump(pages, pagesPerStream = 10).dump
+        fun links(page: BufferWikiPage) = buildList { page.forEachLink { add(it) } }
+
+        // Every redirect of a loop is dropped, also the one that only leads into it.
+        val kept = BZip2CompressorInputStream(xml.inputStream(), true).use { WikiProcessor.readPagesWithStats(it) }
+        kept.pages.map { it.title to links(it) } shouldContainExactly
+            listOf("Alpha" to listOf(1, 3), "Beta" to listOf(2), "Gamma" to listOf(3), "Delta" to listOf(1))
+        kept.afterRedirectCleanup.redirectCount shouldBe 2
+        kept.aliases shouldBe emptyList()
+
+        val config = ProcessingConfig(parallelism = 1U, maxBlocksWaiting = 1U, collapseRedirects = true)
+        val collapsed = BZip2CompressorInputStream(xml.inputStream(), true).use {
+            WikiProcessor.readPagesWithStats(it, config)
+        }
+        collapsed.pages.map { it.title to links(it) } shouldContainExactly listOf("Alpha" to listOf(3), "Delta" to listOf(3))
+        collapsed.aliases shouldContainExactly listOf(TitleAlias("Beta", 3), TitleAlias("Gamma", 3))
+        collapsed.afterRedirectCleanup shouldBe kept.afterRedirectCleanup
+
+        usingTempDirectory("collapse-test-") { dir ->
+            val graph = BZip2CompressorInputStream(xml.inputStream(), true).use {
+                WikiProcessor.readGraph(it, config.copy(spillDirectory = dir))
+            }.graph
+            graph.use {
+                buildList { graph.forEachNode { add(it.title to it.outLinks.toList()) } } shouldContainExactly
+                    listOf("Alpha" to listOf(3), "Delta" to listOf(3))
+                buildList { graph.forEachAlias { add(it) } } shouldContainExactly collapsed.aliases
+            }
+        }
+    }
+
+    @Test
+    fun `links to pages read later resolve and red links count once per title`() {
+        val pages = listOf(
+            WikiProcessor.ParsedPage("Alpha", false, null, listOf("Late", "Red", "Red", "Pink", "Alpha")),
+            WikiProcessor.ParsedPage("To red", true, "Red", emptyList()),
+            WikiProcessor.ParsedPage("To unknown", true, "Unknown", emptyList()),
+            WikiProcessor.ParsedPage("Beta", false, null, listOf("Red", "To red", "Late")),
+            WikiProcessor.ParsedPage("Late", false, null, listOf("Beta", "Pink"))
+        )
+        fun read(parallelism: UInt) = WikiProcessor.ingest(
+            pages.chunked(2).iterator(),
+            ProcessingConfig(parallelism = parallelism, maxBlocksWaiting = 1U),
+            WikiProcessor::buildResult
+        )
+
+        for (parallelism in listOf(1U, 3U)) {
+            val result = read(parallelism)
+            // A redirect to a red link stays without links, one to a title never linked to is dropped.
+            result.pages.map { page -> page.title to buildList { page.forEachLink { add(it) } } } shouldContainExactly
+                listOf("Alpha" to listOf(0, 4), "To red" to emptyList(), "Beta" to listOf(1, 4), "Late" to listOf(3))
+            result.beforeRedirectCleanup shouldBe WikiProcessor.GraphStatistics(
+                articleCount = 3, redirectCount = 2, linkCount = 5, nullLinkCount = 7
+            )
+            result.afterRedirectCleanup shouldBe WikiProcessor.GraphStatistics(
+                articleCount = 3, redirectCount = 1, linkCount = 5, nullLinkCount = 8
+            )
+        }
+    }
+
+    @Test
+    fun `a graph written while it is resolved is the segment of the packed pages`() {
+        val pages = (0 until 300).map { i ->
+            val text = when {
+                i % 11 == 2 -> "#REDIRECT [[Page ${(i * 5) % 300}]]"
+                i % 23 == 7 -> "#REDIRECT [[Nowhere $i]]"
+                else -> "[[Page ${(i * 7) % 300}]] [[Page ${(i + 1) % 300}]] [[Red ${i % 9}]]"
+            }
+            TestHelper.SyntheticPage("Page ${i % 290}", text)
+        }
+        val xml = TestHelper.syntheticMultistreamDump(pages, pagesPerStream = 50).dump
+        usingTempDirectory("write-graph-test-") { dir ->
+            for (collapseRedirects in listOf(false, true)) {
+                val config = ProcessingConfig(parallelism = 2U, maxBlocksWaiting = 2U, collapseRedirects = collapseRedirects)
+                val packedFile = dir.resolve("packed-$collapseRedirects.segment")
+                val packed = BZip2CompressorInputStream(xml.inputStream(), true).use {
+                    WikiProcessor.readPagesWithStats(it, config)
+                }
+                FileChannel.open(packedFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).use { channel ->
+                    SegmentWikiGraphSerialization(dir)
+                        .serialize(BufferPagesGraphDataSource(packed.pages, packed.aliases), channel)
+                }
+
+                val streamedFile = dir.resolve("streamed-$collapseRedirects.segment")
+                val streamed = BZip2CompressorInputStream(xml.inputStream(), true).use { input ->
+                    FileChannel.open(streamedFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).use { channel ->
+                        WikiProcessor.writeGraph(input, config) { SegmentWikiGraphSerialization(dir).serialize(it, channel) }
+                    }
+                }
+
+                Files.readAllBytes(streamedFile).toList() shouldBe Files.readAllBytes(packedFile).toList()
+                streamed.beforeRedirectCleanup shouldBe packed.beforeRedirectCleanup
+                streamed.afterRedirectCleanup shouldBe packed.afterRedirectCleanup
+            }
+        }
+    }
+
+    @Test
+    fun `pages packed on several threads are the ones packed on one`() {
+        val pages = (0 until 50_000).map { i ->
+            if (i % 13 == 1) {
+                WikiProcessor.ParsedPage("Page $i", true, "Page ${(i + 1) % 50_000}", emptyList())
+            } else {
+                val links = listOf("Page ${(i * 7) % 50_000}", "Page ${(i + 1) % 50_000}", "Missing ${i % 100}", "Päge $i")
+                WikiProcessor.ParsedPage(if (i % 3 == 0) "Päge $i" else "Page $i", false, null, links)
+            }
+        }
+        fun pack(parallelism: UInt, spillDirectory: Path? = null) = WikiProcessor.ingest(
+            pages.chunked(1000).iterator(),
+            ProcessingConfig(parallelism = parallelism, maxBlocksWaiting = 1U, spillDirectory = spillDirectory),
+            WikiProcessor::buildResult
+        ).pages.map { page -> listOf(page.id, page.title, page.isRedirect, buildList { page.forEachLink { add(it) } }) }
+
+        val sequential = pack(1U)
+        sequential.size shouldBe 50_000
+        pack(4U) shouldContainExactly sequential
+        usingTempDirectory("pack-test-") { dir ->
+            pack(4U, dir) shouldContainExactly sequential
+        }
+    }
+
+    @Test
+    fun `reading a graph to disk gives the same pages as reading them to the heap`() {
+        val pages = (0 until 500).map { i ->
+            val text = when {
+                i % 17 == 3 -> "#REDIRECT [[Page ${(i * 3) % 500}]]"
+                i % 29 == 5 -> "#REDIRECT [[Page $i]]"
+                else -> "[[Page ${(i * 7) % 500}]] [[page ${(i + 1) % 500}|x]] [[Missing ${i % 20}]] [[Page ${(i * 7) % 500}]]"
+            }
+            TestHelper.SyntheticPage("Page ${i % 480}", text)
+        }
+        val dump = TestHelper.syntheticMultistreamDump(pages, pagesPerStream = 40).dump
+        usingTempDirectory("graph-test-") { dir ->
+            val expected = BZip2CompressorInputStream(dump.inputStream(), true).use { WikiProcessor.readPagesWithStats(it) }
+            val config = ProcessingConfig(parallelism = 2U, maxBlocksWaiting = 2U, spillDirectory = dir, spillSortBytes = 8192)
+
+            val result = BZip2CompressorInputStream(dump.inputStream(), true).use { WikiProcessor.readGraph(it, config) }
+            result.graph.use { graph ->
+                val nodes = buildList { graph.forEachNode { add(Triple(it.id, it.title, it.outLinks.toList())) } }
+                nodes shouldContainExactly expected.pages.map { page ->
+                    Triple(page.id, page.title, buildList { page.forEachLink { add(it) } })
+                }
+            }
+            result.beforeRedirectCleanup shouldBe expected.beforeRedirectCleanup
+            result.afterRedirectCleanup shouldBe expected.afterRedirectCleanup
+
+            // Links spilled to disk can also be packed into pages.
+            WikiReader.readPagesWithStats(ByteBufferCompressedSource(ByteBuffer.wrap(dump)), config)
+                .pages.map { it.title } shouldContainExactly expected.pages.map { it.title }
+            Files.list(dir).use { files -> files.count() } shouldBe 0L
+        }
+    }
 }
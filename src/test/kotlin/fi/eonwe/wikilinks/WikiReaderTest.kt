@@ -6,15 +6,22 @@ import fi.eonwe.wikilinks.leanpages.BufferWikiPage
 import io.kotest.matchers.collections.shouldContainExactly
 import io.kotest.matchers.comparables.shouldBeGreaterThan
 import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream
+import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.Nested
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.TestFactory
 import org.junit.jupiter.api.Timeout
 import org.junit.jupiter.api.DynamicTest
+import java.io.ByteArrayOutputStream
+import java.io.IOException
 import java.nio.ByteBuffer
 import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.Random
 import java.util.concurrent.TimeUnit
 
 class WikiReaderTest {
@@ -76,6 +83,7 @@ class WikiReaderTest {
             Files.write(indexPath, indexBytes)
             block(xmlPath, indexPath)
         } finally {
+            Files.deleteIfExists(IndexRangeCache.cachePathFor(indexPath))
             Files.deleteIfExists(indexPath)
             Files.deleteIfExists(xmlPath)
             Files.deleteIfExists(tempDir)
@@ -120,6 +128,55 @@ class WikiReaderTest {
         }
     }
 
+    private fun syntheticPages(count: Int, seed: Long): List<TestHelper.SyntheticPage> {
+        val rng = Random(seed)
+        return TestHelper.syntheticPages(count) { i ->
+            when {
+                i % 17 == 5 -> "#REDIRECT [[Page ${rng.nextInt(count)}]]"
+                else -> (0 until rng.nextInt(8)).joinToString(" ") {
+                    when (rng.nextInt(4)) {
+                        0 -> "[[page ${rng.nextInt(count)}|label]]"
+                        1 -> "[[Missing ${rng.nextInt(count)}]]"
+                        else -> "[[Page ${rng.nextInt(count)}]]"
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-compresses [dump] into streams of [streamBytes] uncompressed bytes each, cut with no regard to pages, and
+     * indexes every stream.
+     */
+    private fun splitAcrossStreams(dump: TestHelper.SyntheticDump, streamBytes: Int): TestHelper.SyntheticDump {
+        val xml = BZip2CompressorInputStream(dump.dump.inputStream(), true).use { it.readAllBytes() }
+        val out = ByteArrayOutputStream()
+        val index = StringBuilder()
+        for (start in xml.indices step streamBytes) {
+            index.append(out.size()).append(":0:Stream ").append(start).append('\n')
+            BZip2CompressorOutputStream(out).use { it.write(xml, start, minOf(streamBytes, xml.size - start)) }
+        }
+        val compressedIndex = ByteArrayOutputStream()
+        BZip2CompressorOutputStream(compressedIndex).use { it.write(index.toString().toByteArray(Charsets.UTF_8)) }
+        return TestHelper.SyntheticDump(out.toByteArray(), compressedIndex.toByteArray())
+    }
+
+    private fun usingSyntheticDumpWithSidecar(dump: TestHelper.SyntheticDump, block: (Path, Path) -> Unit) {
+        val tempDir = Files.createTempDirectory("wikireader-test-synthetic-")
+        val xmlPath = tempDir.resolve("synthetic.xml.bz2")
+        val indexPath = indexSidecarPathFor(xmlPath)
+        try {
+            Files.write(xmlPath, dump.dump)
+            Files.write(indexPath, dump.index)
+            block(xmlPath, indexPath)
+        } finally {
+            Files.deleteIfExists(IndexRangeCache.cachePathFor(indexPath))
+            Files.deleteIfExists(indexPath)
+            Files.deleteIfExists(xmlPath)
+            Files.deleteIfExists(tempDir)
+        }
+    }
+
     @Nested
     inner class GenerateSubstreams {
 
@@ -285,6 +342,32 @@ class WikiReaderTest {
         }
     }
 
+    @Nested
+    inner class DecompressionBudget {
+        private val dump = TestHelper.syntheticMultistreamDump(syntheticPages(3000, 7L), pagesPerStream = 53)
+
+        @TestFactory
+        @Timeout(value = 60, unit = TimeUnit.SECONDS)
+        fun `pooled decompression matches a single stream regardless of budget`(): List<DynamicTest> {
+            val expected = BZip2CompressorInputStream(dump.dump.inputStream(), true).use {
+                canonicalizePagesByTitle(WikiProcessor.readPages(it))
+            }
+            val configs = listOf(
+                ProcessingConfig(parallelism = 8U, maxBlocksWaiting = 8U, maxBytesWaiting = 8192UL, bufferSize = 4096U),
+                ProcessingConfig(parallelism = 3U, maxBlocksWaiting = 1U, maxBytesWaiting = 4096UL, bufferSize = 4096U),
+                ProcessingConfig(parallelism = 4U, maxBlocksWaiting = 16U, maxBytesWaiting = 65536UL, bufferSize = 8192U)
+            )
+            return configs.map { config ->
+                DynamicTest.dynamicTest("config=$config") {
+                    usingSyntheticDumpWithSidecar(dump) { xmlPath, _ ->
+                        val pages = WikiReader.readPages(FileCompressedSource(xmlPath), config)
+                        canonicalizePagesByTitle(pages) shouldBe expected
+                    }
+                }
+            }
+        }
+    }
+
     @Nested
     inner class IndexDrivenReading {
         @Test
@@ -316,6 +399,105 @@ class WikiReaderTest {
             }
         }
 
+        @Test
+        fun `parallel substream parsing matches wikiprocessor`() {
+            usingTempCompressedFileWithSidecar(TestData.NewSilesian, TestData.NewSilesianIndex) { xmlPath, _ ->
+                val result = WikiReader.readPagesWithStats(
+                    FileCompressedSource(xmlPath),
+                    ProcessingConfig(parallelism = 4U, maxBlocksWaiting = 3U, parseSubstreams = true),
+                    indexSelection = WikiReader.IndexSelection.AUTO
+                )
+                canonicalizePagesByTitle(result.pages) shouldBe baselineFor(TestData.NewSilesian)
+                val baseline = baselineStatsFor(TestData.NewSilesian)
+                result.beforeRedirectCleanup shouldBe baseline.beforeRedirectCleanup
+                result.afterRedirectCleanup shouldBe baseline.afterRedirectCleanup
+            }
+        }
+
+        @Test
+        fun `parallel substream parsing assigns the same ids as a single parser`() {
+            val dump = TestHelper.syntheticMultistreamDump(syntheticPages(2000, 42L), pagesPerStream = 37)
+            val expected = BZip2CompressorInputStream(dump.dump.inputStream(), true).use {
+                WikiProcessor.readPagesWithStats(it)
+            }
+            usingSyntheticDumpWithSidecar(dump) { xmlPath, _ ->
+                val result = WikiReader.readPagesWithStats(
+                    FileCompressedSource(xmlPath),
+                    ProcessingConfig(parallelism = 8U, maxBlocksWaiting = 2U, parseSubstreams = true)
+                )
+                result.pages.map { it.id to it.title } shouldBe expected.pages.map { it.id to it.title }
+                canonicalizePagesByTitle(result.pages) shouldBe canonicalizePagesByTitle(expected.pages)
+                result.beforeRedirectCleanup shouldBe expected.beforeRedirectCleanup
+                result.afterRedirectCleanup shouldBe expected.afterRedirectCleanup
+            }
+        }
+
+        @Test
+        fun `parallel substream parsing fails on pages split between substreams`() {
+            val dump = splitAcrossStreams(TestHelper.syntheticMultistreamDump(syntheticPages(300, 5L), 300), 4096)
+            usingSyntheticDumpWithSidecar(dump) { xmlPath, _ ->
+                Assertions.assertThrows(IOException::class.java) {
+                    WikiReader.readPagesWithStats(
+                        FileCompressedSource(xmlPath),
+                        ProcessingConfig(parallelism = 4U, maxBlocksWaiting = 2U, parseSubstreams = true)
+                    )
+                }
+            }
+        }
+
+        @Test
+        fun `auto mode without sidecar scans for substreams`() {
+            val dump = TestHelper.syntheticMultistreamDump(syntheticPages(1500, 11L), pagesPerStream = 29)
+            val expected = BZip2CompressorInputStream(dump.dump.inputStream(), true).use {
+                WikiProcessor.readPagesWithStats(it)
+            }
+            usingSyntheticDumpWithSidecar(dump) { xmlPath, indexPath ->
+                Files.delete(indexPath)
+                val result = WikiReader.readPagesWithStats(
+                    FileCompressedSource(xmlPath),
+                    ProcessingConfig(parallelism = 4U, maxBlocksWaiting = 2U, parseSubstreams = true),
+                    indexSelection = WikiReader.IndexSelection.AUTO
+                )
+                result.pages.map { it.id to it.title } shouldBe expected.pages.map { it.id to it.title }
+                canonicalizePagesByTitle(result.pages) shouldBe canonicalizePagesByTitle(expected.pages)
+            }
+        }
+
+        @Test
+        fun `scanned substreams that split pages are parsed as one stream`() {
+            val synthetic = TestHelper.syntheticMultistreamDump(syntheticPages(600, 9L), pagesPerStream = 600)
+            val expected = BZip2CompressorInputStream(synthetic.dump.inputStream(), true).use {
+                WikiProcessor.readPagesWithStats(it)
+            }
+            usingSyntheticDumpWithSidecar(splitAcrossStreams(synthetic, 4096)) { xmlPath, indexPath ->
+                Files.delete(indexPath)
+                val result = WikiReader.readPagesWithStats(
+                    FileCompressedSource(xmlPath),
+                    ProcessingConfig(parallelism = 4U, maxBlocksWaiting = 2U, parseSubstreams = true),
+                    indexSelection = WikiReader.IndexSelection.AUTO
+                )
+                result.pages.map { it.id to it.title } shouldBe expected.pages.map { it.id to it.title }
+                canonicalizePagesByTitle(result.pages) shouldBe canonicalizePagesByTitle(expected.pages)
+            }
+        }
+
+        @Test
+        fun `single-stream dumps are decompressed block by block`() {
+            val dump = TestHelper.syntheticMultistreamDump(syntheticPages(3000, 13L), pagesPerStream = 3000)
+            val xml = BZip2CompressorInputStream(dump.dump.inputStream(), true).use { it.readAllBytes() }
+            val singleStream = ByteArrayOutputStream().also { out ->
+                BZip2CompressorOutputStream(out, 1).use { it.write(xml) }
+            }.toByteArray()
+            val expected = WikiProcessor.readPagesWithStats(xml.inputStream())
+
+            val result = WikiReader.readPagesWithStats(
+                sourceFrom(singleStream),
+                ProcessingConfig(parallelism = 4U, maxBlocksWaiting = 2U)
+            )
+            result.pages.map { it.id to it.title } shouldBe expected.pages.map { it.id to it.title }
+            canonicalizePagesByTitle(result.pages) shouldBe canonicalizePagesByTitle(expected.pages)
+        }
+
         @Test
         fun `invalid explicit index falls back to single-threaded and still reads correctly`() {
             usingTempCompressedFile(TestData.NewSilesian) { xmlPath ->
@@ -337,4 +519,52 @@ class WikiReaderTest {
             }
         }
     }
+
+    @Nested
+    inner class IndexRangeCaching {
+        private val dump = TestHelper.syntheticMultistreamDump(syntheticPages(800, 3L), pagesPerStream = 31)
+        private val config = ProcessingConfig(parallelism = 4U, maxBlocksWaiting = 2U)
+
+        @Test
+        fun `parsed index ranges are cached and reused`() {
+            usingSyntheticDumpWithSidecar(dump) { xmlPath, indexPath ->
+                val expected = canonicalizePagesByTitle(WikiReader.readPages(FileCompressedSource(xmlPath), config))
+                IndexRangeCache.load(indexPath, xmlPath) shouldBe WikiReader.parseIndexRanges(
+                    BZip2CompressorInputStream(dump.index.inputStream()),
+                    dump.dump.size.toLong()
+                )
+
+                // With a matching cache the index is not parsed again, so not even an unreadable index of the same
+                // size and age is noticed.
+                val modified = Files.getLastModifiedTime(indexPath)
+                Files.write(indexPath, ByteArray(dump.index.size))
+                Files.setLastModifiedTime(indexPath, modified)
+                IndexRangeCache.load(indexPath, xmlPath) shouldNotBe null
+                canonicalizePagesByTitle(WikiReader.readPages(FileCompressedSource(xmlPath), config)) shouldBe expected
+            }
+        }
+
+        @Test
+        fun `cache is ignored when the dump changes`() {
+            usingSyntheticDumpWithSidecar(dump) { xmlPath, indexPath ->
+                WikiReader.readPages(FileCompressedSource(xmlPath), config)
+                IndexRangeCache.load(indexPath, xmlPath) shouldNotBe null
+
+                Files.setLastModifiedTime(xmlPath, FileTime.fromMillis(Files.getLastModifiedTime(xmlPath).toMillis() - 60_000))
+                IndexRangeCache.load(indexPath, xmlPath) shouldBe null
+            }
+        }
+
+        @Test
+        fun `corrupt cache is replaced`() {
+            usingSyntheticDumpWithSidecar(dump) { xmlPath, indexPath ->
+                val expected = canonicalizePagesByTitle(WikiReader.readPages(FileCompressedSource(xmlPath), config))
+                Files.write(IndexRangeCache.cachePathFor(indexPath), "garbage".toByteArray())
+                IndexRangeCache.load(indexPath, xmlPath) shouldBe null
+
+                canonicalizePagesByTitle(WikiReader.readPages(FileCompressedSource(xmlPath), config)) shouldBe expected
+                IndexRangeCache.load(indexPath, xmlPath) shouldNotBe null
+            }
+        }
+    }
 }